@@ -0,0 +1,23 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Local HTTP endpoint for operating the proxy, e.g. purging the response cache after
+ * a deployment.
+ *
+ * @param enable start the admin server
+ * @param port port of the admin server, default 9401
+ * @param bindAddress address to listen on, default {@code 127.0.0.1}. The admin server has
+ *                    no authentication, it should not be reachable from the internet
+ * @param warmUpConcurrency maximum number of concurrent upstream requests when warming up
+ *                          the cache, default 8
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record AdminConfig(
+  boolean enable,
+  int port,
+  String bindAddress,
+  int warmUpConcurrency) { }
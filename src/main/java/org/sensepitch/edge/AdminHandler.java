@@ -0,0 +1,211 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.FutureListener;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Endpoints of the {@link AdminServer}. All endpoints expect {@code POST} and answer with
+ * plain text.
+ *
+ * <ul>
+ *   <li>{@code /purge?url=<url>} remove the cached response of the URL</li>
+ *   <li>{@code /purge?prefix=<url prefix>} remove cached responses with URLs starting with the prefix</li>
+ *   <li>{@code /purge?tag=<tag>} remove cached responses with the tag in {@code Surrogate-Key}</li>
+ *   <li>{@code /warmup} fetch the URLs in the request body, one per line, and store the responses</li>
+ * </ul>
+ *
+ * URLs are absolute, e.g. {@code https://example.com/index.html}, or given as cache key,
+ * which is host and path, e.g. {@code example.com/index.html}. Warm up requests go through
+ * the normal upstream connection pools with bounded concurrency. The response is sent when
+ * all URLs are fetched.
+ *
+ * @author Jens Wilke
+ */
+public class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+
+  static final ProxyLogger LOG = ProxyLogger.get(AdminHandler.class);
+
+  private final ResponseCache cache;
+  private final EventLoopGroup upstreamGroup;
+  private final int warmUpConcurrency;
+
+  /**
+   * @param upstreamGroup event loops of the upstream connection pools used for warm up
+   */
+  AdminHandler(ResponseCache cache, EventLoopGroup upstreamGroup, int warmUpConcurrency) {
+    this.cache = cache;
+    this.upstreamGroup = upstreamGroup;
+    this.warmUpConcurrency = warmUpConcurrency;
+  }
+
+  @Override
+  protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+    QueryStringDecoder decoder = new QueryStringDecoder(request.uri());
+    boolean keepAlive = HttpUtil.isKeepAlive(request);
+    if (request.method() != HttpMethod.POST) {
+      respond(ctx, keepAlive, HttpResponseStatus.METHOD_NOT_ALLOWED, "POST expected");
+      return;
+    }
+    try {
+      switch (decoder.path()) {
+        case "/purge" -> respond(ctx, keepAlive, HttpResponseStatus.OK, "purged " + purge(decoder.parameters()));
+        case "/warmup" -> warmUp(ctx, keepAlive, request.content().toString(CharsetUtil.UTF_8));
+        default -> respond(ctx, keepAlive, HttpResponseStatus.NOT_FOUND, "unknown endpoint " + decoder.path());
+      }
+    } catch (IllegalArgumentException e) {
+      respond(ctx, keepAlive, HttpResponseStatus.BAD_REQUEST, e.getMessage());
+    }
+  }
+
+  private int purge(Map<String, List<String>> parameters) {
+    if (parameters.isEmpty()) {
+      throw new IllegalArgumentException("url, prefix or tag parameter expected");
+    }
+    int count = 0;
+    for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+      for (String value : parameter.getValue()) {
+        count += switch (parameter.getKey()) {
+          case "url" -> cache.purge(cacheKey(value));
+          case "prefix" -> cache.purgePrefix(cacheKey(value));
+          case "tag" -> cache.purgeTag(value);
+          default -> throw new IllegalArgumentException("unknown parameter " + parameter.getKey());
+        };
+      }
+    }
+    LOG.info("Purged " + count + " cache entries: " + parameters);
+    return count;
+  }
+
+  private void warmUp(ChannelHandlerContext ctx, boolean keepAlive, String body) {
+    List<URI> urls = new ArrayList<>();
+    for (String line : body.split("\n")) {
+      String url = line.trim();
+      if (!url.isEmpty() && !url.startsWith("#")) {
+        // parse all first, so an invalid list is rejected as a whole
+        urls.add(parse(url.contains("://") ? url : "https://" + url));
+      }
+    }
+    new WarmUp(ctx, keepAlive, urls).start();
+  }
+
+  /**
+   * Cache key of an absolute URL or a URL given as key already, see {@link ResponseCache#cacheKey}
+   */
+  static String cacheKey(String url) {
+    if (!url.contains("://")) {
+      return url;
+    }
+    URI uri = parse(url);
+    String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+    return uri.getHost() + path + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+  }
+
+  static FullHttpRequest warmUpRequest(URI uri) {
+    String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+      path + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : ""), Unpooled.EMPTY_BUFFER);
+    request.headers().set(HttpHeaderNames.HOST, uri.getHost());
+    request.headers().set("X-Forwarded-Proto", uri.getScheme());
+    return request;
+  }
+
+  private static URI parse(String url) {
+    URI uri = URI.create(url);
+    if (uri.getHost() == null) {
+      throw new IllegalArgumentException("host missing: " + url);
+    }
+    return uri;
+  }
+
+  private static void respond(ChannelHandlerContext ctx, boolean keepAlive, HttpResponseStatus status, String text) {
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status,
+      Unpooled.copiedBuffer(text + "\n", CharsetUtil.UTF_8));
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+    HttpUtil.setContentLength(response, response.content().readableBytes());
+    HttpUtil.setKeepAlive(response, keepAlive);
+    if (keepAlive) {
+      ctx.writeAndFlush(response);
+    } else {
+      ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+  /**
+   * Fetches a list of URLs, with at most {@code warmUpConcurrency} requests in flight.
+   * Each finished request starts the next one. The state is only accessed from the event
+   * loop of the admin connection.
+   */
+  private class WarmUp {
+
+    private final ChannelHandlerContext ctx;
+    private final boolean keepAlive;
+    private final List<URI> urls;
+    private int next;
+    private int inFlight;
+    private int stored;
+
+    WarmUp(ChannelHandlerContext ctx, boolean keepAlive, List<URI> urls) {
+      this.ctx = ctx;
+      this.keepAlive = keepAlive;
+      this.urls = urls;
+    }
+
+    void start() {
+      if (urls.isEmpty()) {
+        finish();
+        return;
+      }
+      int parallel = Math.min(warmUpConcurrency, urls.size());
+      for (int i = 0; i < parallel; i++) {
+        fetchNext();
+      }
+    }
+
+    private void fetchNext() {
+      FullHttpRequest request = warmUpRequest(urls.get(next++));
+      inFlight++;
+      cache.warmUp(upstreamGroup.next(), request).addListener((FutureListener<Boolean>) future ->
+        ctx.executor().execute(() -> completed(Boolean.TRUE.equals(future.getNow()))));
+    }
+
+    private void completed(boolean success) {
+      inFlight--;
+      if (success) {
+        stored++;
+      }
+      if (next < urls.size()) {
+        fetchNext();
+      } else if (inFlight == 0) {
+        finish();
+      }
+    }
+
+    private void finish() {
+      LOG.info("Cache warm up finished, requested " + urls.size() + ", stored " + stored);
+      respond(ctx, keepAlive, HttpResponseStatus.OK, "requested " + urls.size() + ", stored " + stored);
+    }
+
+  }
+
+}
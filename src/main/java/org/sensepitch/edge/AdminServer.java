@@ -0,0 +1,56 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+
+/**
+ * Admin HTTP server on a separate port, served by the worker event loops of the proxy.
+ * The endpoints are implemented by the {@link AdminHandler}.
+ *
+ * @author Jens Wilke
+ */
+public class AdminServer {
+
+  static final ProxyLogger LOG = ProxyLogger.get(AdminServer.class);
+
+  /** Limit of the request body, e.g. the URL list of a warm up */
+  private static final int MAX_CONTENT_BYTES = 16 * 1024 * 1024;
+
+  private final AdminConfig config;
+  private final ResponseCache cache;
+  private final EventLoopGroup group;
+  private final Transport transport;
+
+  public AdminServer(AdminConfig config, ResponseCache cache, EventLoopGroup group, Transport transport) {
+    this.config = config;
+    this.cache = cache;
+    this.group = group;
+    this.transport = transport;
+  }
+
+  public Channel start() throws InterruptedException {
+    int port = config.port() > 0 ? config.port() : 9401;
+    String bindAddress = config.bindAddress() != null ? config.bindAddress() : "127.0.0.1";
+    int concurrency = config.warmUpConcurrency() > 0 ? config.warmUpConcurrency() : 8;
+    ServerBootstrap sb = new ServerBootstrap()
+      .group(group)
+      .channel(transport.serverSocketChannelClass())
+      .childHandler(new ChannelInitializer<SocketChannel>() {
+        @Override
+        protected void initChannel(SocketChannel ch) {
+          ch.pipeline().addLast(new HttpServerCodec());
+          ch.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_BYTES));
+          ch.pipeline().addLast(new AdminHandler(cache, group, concurrency));
+        }
+      });
+    Channel channel = sb.bind(bindAddress, port).sync().channel();
+    LOG.info("Admin server listening on http://" + bindAddress + ":" + port);
+    return channel;
+  }
+
+}
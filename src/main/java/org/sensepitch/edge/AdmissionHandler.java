@@ -135,6 +135,8 @@ public class AdmissionHandler extends ChannelInboundHandlerAdapter implements Ha
     LOG.traceChannelRead(ctx, msg);
     if (msg instanceof HttpRequest) {
       HttpRequest request = (HttpRequest) msg;
+      // only set by us after a valid cookie, upstreams and the waiting room trust it
+      request.headers().remove(ADMISSION_TOKEN_HEADER);
       if (checkAdmissionCookie(request)) {
         passedRequestCounter.increment();
         ctx.fireChannelRead(msg);
@@ -0,0 +1,46 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.Future;
+
+import java.util.List;
+
+/**
+ * Upstream with multiple targets. Each target has its own connection pools and statistics,
+ * the load balancer selects the target per request.
+ *
+ * @author Jens Wilke
+ */
+public class BalancingUpstream implements Upstream {
+
+  private final List<DefaultUpstream> targets;
+  private final LoadBalancer<DefaultUpstream> balancer;
+
+  public BalancingUpstream(List<DefaultUpstream> targets, String policy) {
+    this.targets = List.copyOf(targets);
+    this.balancer = LoadBalancer.create(policy, this.targets);
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+    return balancer.select().connect(downstreamContext);
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext downstreamContext, HttpRequest request) {
+    return balancer.select().connect(downstreamContext, request);
+  }
+
+  @Override
+  public Future<Channel> connect(EventLoop loop, Channel downstream, HttpRequest request) {
+    return balancer.select().connect(loop, downstream, request);
+  }
+
+  List<DefaultUpstream> targets() {
+    return targets;
+  }
+
+}
@@ -0,0 +1,27 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Shared cache for upstream responses. Only responses with explicit freshness information
+ * for shared caches are stored.
+ *
+ * @param enable enable the response cache
+ * @param maxMegabytes memory budget for cached response bodies and headers, default 256
+ * @param maxEntryKilobytes larger responses are not cached in memory, default 1024
+ * @param diskDirectory directory for the disk tier, the disk tier is disabled if not set
+ * @param diskMaxMegabytes disk space used by the disk tier, default 4096
+ * @param diskSegmentMegabytes size of one segment file, default 64
+ * @param diskMaxEntryKilobytes larger responses are not cached on disk, default 16384
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record CacheConfig(
+  boolean enable,
+  int maxMegabytes,
+  int maxEntryKilobytes,
+  String diskDirectory,
+  int diskMaxMegabytes,
+  int diskSegmentMegabytes,
+  int diskMaxEntryKilobytes) { }
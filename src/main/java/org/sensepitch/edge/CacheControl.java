@@ -0,0 +1,97 @@
+package org.sensepitch.edge;
+
+import java.util.Locale;
+
+/**
+ * Parsed {@code Cache-Control} header. Only the directives relevant for a shared cache are
+ * recognized, durations are in seconds and -1 if not present.
+ *
+ * @author Jens Wilke
+ */
+record CacheControl(
+  boolean noStore,
+  boolean noCache,
+  boolean isPrivate,
+  boolean mustRevalidate,
+  long maxAge,
+  long sMaxAge,
+  long staleWhileRevalidate,
+  long staleIfError) {
+
+  static final CacheControl EMPTY = new CacheControl(false, false, false, false, -1, -1, -1, -1);
+
+  static CacheControl parse(String header) {
+    if (header == null || header.isEmpty()) {
+      return EMPTY;
+    }
+    boolean noStore = false;
+    boolean noCache = false;
+    boolean isPrivate = false;
+    boolean mustRevalidate = false;
+    long maxAge = -1;
+    long sMaxAge = -1;
+    long staleWhileRevalidate = -1;
+    long staleIfError = -1;
+    for (String directive : header.split(",")) {
+      String d = directive.trim().toLowerCase(Locale.ROOT);
+      int eq = d.indexOf('=');
+      String name = eq < 0 ? d : d.substring(0, eq).trim();
+      String value = eq < 0 ? null : unquote(d.substring(eq + 1).trim());
+      switch (name) {
+        case "no-store" -> noStore = true;
+        case "no-cache" -> noCache = true;
+        case "private" -> isPrivate = true;
+        case "must-revalidate", "proxy-revalidate" -> mustRevalidate = true;
+        case "max-age" -> maxAge = parseSeconds(value);
+        case "s-maxage" -> sMaxAge = parseSeconds(value);
+        case "stale-while-revalidate" -> staleWhileRevalidate = parseSeconds(value);
+        case "stale-if-error" -> staleIfError = parseSeconds(value);
+        default -> { }
+      }
+    }
+    return new CacheControl(noStore, noCache, isPrivate, mustRevalidate, maxAge, sMaxAge,
+      staleWhileRevalidate, staleIfError);
+  }
+
+  /**
+   * Freshness lifetime for a shared cache, s-maxage takes precedence
+   */
+  long sharedMaxAge() {
+    return sMaxAge >= 0 ? sMaxAge : maxAge;
+  }
+
+  /**
+   * Time after expiry a stale response may be served while it is revalidated in the
+   * background. Zero if the response must be revalidated.
+   */
+  long staleWhileRevalidateMillis() {
+    return mustRevalidate || staleWhileRevalidate < 0 ? 0 : staleWhileRevalidate * 1000;
+  }
+
+  /**
+   * Time after expiry a stale response may be served if upstream fails.
+   * Zero if the response must be revalidated.
+   */
+  long staleIfErrorMillis() {
+    return mustRevalidate || staleIfError < 0 ? 0 : staleIfError * 1000;
+  }
+
+  private static String unquote(String s) {
+    if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+      return s.substring(1, s.length() - 1);
+    }
+    return s;
+  }
+
+  private static long parseSeconds(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+}
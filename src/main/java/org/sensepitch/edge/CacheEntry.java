@@ -0,0 +1,178 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cached response. Status and body are immutable after the entry is inserted, headers and
+ * freshness are replaced when a conditional request to upstream returns not modified.
+ * A reader may see a mix of old and new freshness values once, which is harmless.
+ * The body is kept in a pooled direct buffer, owned by the entry. The entry has its own
+ * reference count, the cache holds one reference until the entry is evicted or removed.
+ * Readers retain the entry only while its count is above zero, and take a retained
+ * duplicate of the body, so an eviction while the body is written is safe. The body is
+ * released when the count of the entry reaches zero. Retaining the pooled buffer itself
+ * after it was released could succeed on a buffer recycled for another response.
+ *
+ * @author Jens Wilke
+ */
+final class CacheEntry {
+
+  final String key;
+  final HttpResponseStatus status;
+  /** Replaced as a whole on refresh, never modified */
+  volatile HttpHeaders headers;
+  final ByteBuf content;
+  /** Body length, the body may not be accessed without holding a reference */
+  final int contentLength;
+  /** Names of the request headers the response varies on, lower case */
+  final String[] varyNames;
+  /** Values of the request headers at the time of storing, {@code null} if absent */
+  final String[] varyValues;
+  /** Response age reported by upstream via the {@code Age} header at the time of storing */
+  volatile long initialAgeMillis;
+  volatile long storedMillis;
+  volatile long expiresMillis;
+  /** Time after expiry the entry may be served while it is revalidated */
+  volatile long staleWhileRevalidateMillis;
+  /** Time after expiry the entry may be served if upstream fails */
+  volatile long staleIfErrorMillis;
+  /** Surrogate key tags of the stored response, for purging */
+  final String[] tags;
+  /** Memory usage estimate used for the cache budget */
+  final int weight;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  // eviction policy data, guarded by the lock of the policy
+  CacheEntry prev;
+  CacheEntry next;
+  int region = -1;
+  boolean removed;
+
+  CacheEntry(String key, HttpResponseStatus status, HttpHeaders headers, ByteBuf content,
+             String[] varyNames, String[] varyValues,
+             long initialAgeMillis, long storedMillis, long expiresMillis,
+             long staleWhileRevalidateMillis, long staleIfErrorMillis) {
+    this.key = key;
+    this.status = status;
+    this.headers = headers;
+    this.content = content;
+    this.contentLength = content.readableBytes();
+    this.varyNames = varyNames;
+    this.varyValues = varyValues;
+    this.initialAgeMillis = initialAgeMillis;
+    this.storedMillis = storedMillis;
+    this.expiresMillis = expiresMillis;
+    this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+    this.staleIfErrorMillis = staleIfErrorMillis;
+    this.tags = CacheIndex.tags(headers);
+    this.weight = content.capacity() + headers.size() * 64 + key.length() * 2 + 128;
+  }
+
+  /**
+   * Update headers and freshness after upstream confirmed the entry is not modified.
+   */
+  void refresh(HttpHeaders headers, long initialAgeMillis, long storedMillis, long expiresMillis,
+               long staleWhileRevalidateMillis, long staleIfErrorMillis) {
+    this.headers = headers;
+    this.initialAgeMillis = initialAgeMillis;
+    this.storedMillis = storedMillis;
+    this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+    this.staleIfErrorMillis = staleIfErrorMillis;
+    this.expiresMillis = expiresMillis;
+  }
+
+  boolean isFresh(long nowMillis) {
+    return nowMillis < expiresMillis;
+  }
+
+  boolean isStaleWhileRevalidate(long nowMillis) {
+    return nowMillis < expiresMillis + staleWhileRevalidateMillis;
+  }
+
+  boolean isStaleIfError(long nowMillis) {
+    return nowMillis < expiresMillis + staleIfErrorMillis;
+  }
+
+  /**
+   * Fresh or may still be served stale
+   */
+  boolean isUsable(long nowMillis) {
+    return nowMillis < expiresMillis + Math.max(staleWhileRevalidateMillis, staleIfErrorMillis);
+  }
+
+  /**
+   * Current age in seconds, as sent in the {@code Age} header.
+   */
+  long ageSeconds(long nowMillis) {
+    return (initialAgeMillis + Math.max(0, nowMillis - storedMillis)) / 1000;
+  }
+
+  /**
+   * True, if the request headers the response varies on are equal.
+   */
+  boolean matches(HttpRequest request) {
+    return matches(varyNames, varyValues, request);
+  }
+
+  static boolean matches(String[] varyNames, String[] varyValues, HttpRequest request) {
+    for (int i = 0; i < varyNames.length; i++) {
+      if (!Objects.equals(varyValues[i], request.headers().get(varyNames[i]))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * True, if this is a variant for the same request header values as the other entry.
+   */
+  boolean sameVariant(CacheEntry other) {
+    return Arrays.equals(varyNames, other.varyNames) && Arrays.equals(varyValues, other.varyValues);
+  }
+
+  /**
+   * Body for writing, or {@code null} if the entry was evicted and released concurrently.
+   */
+  ByteBuf retainedContent() {
+    if (!tryRetain()) {
+      return null;
+    }
+    try {
+      return content.retainedDuplicate();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Take a reference, unless the entry was released already
+   */
+  boolean tryRetain() {
+    for (;;) {
+      int count = references.get();
+      if (count == 0) {
+        return false;
+      }
+      if (references.compareAndSet(count, count + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give up a reference, the body is released with the last one
+   */
+  void release() {
+    if (references.decrementAndGet() == 0) {
+      content.release();
+    }
+  }
+
+}
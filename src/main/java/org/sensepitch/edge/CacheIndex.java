@@ -0,0 +1,118 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * Secondary index of cache keys for purging: the keys in sorted order for purging by
+ * prefix and the keys per surrogate key tag. Purges find the matching keys without
+ * scanning the cache. Each tier of the cache has its own index, which is updated while
+ * the lock of the key in the primary map is held, so index and map agree for each key.
+ *
+ * <p>Tags are taken from the {@code Surrogate-Key} response header, a space separated list.
+ *
+ * @author Jens Wilke
+ */
+final class CacheIndex {
+
+  static final String SURROGATE_KEY = "surrogate-key";
+  static final String[] NO_TAGS = new String[0];
+
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+  private final ConcurrentMap<String, Set<String>> tagToKeys = new ConcurrentHashMap<>();
+
+  /**
+   * Surrogate key tags of a response
+   */
+  static String[] tags(HttpHeaders headers) {
+    return tags(headers.get(SURROGATE_KEY));
+  }
+
+  static String[] tags(String value) {
+    if (value == null || value.isBlank()) {
+      return NO_TAGS;
+    }
+    return value.trim().split("\\s+");
+  }
+
+  /**
+   * Update the index after the variants of a key changed. Called within the compute
+   * function of the primary map.
+   *
+   * @param before variants before the change or {@code null}
+   * @param after variants after the change or {@code null}, if the key was removed
+   */
+  <T> void update(String key, T[] before, T[] after, Function<T, String[]> tags) {
+    Set<String> oldTags = collectTags(before, tags);
+    Set<String> newTags = collectTags(after, tags);
+    if (after == null || after.length == 0) {
+      keys.remove(key);
+    } else {
+      keys.add(key);
+    }
+    for (String tag : oldTags) {
+      if (!newTags.contains(tag)) {
+        tagToKeys.computeIfPresent(tag, (t, set) -> {
+          set.remove(key);
+          return set.isEmpty() ? null : set;
+        });
+      }
+    }
+    for (String tag : newTags) {
+      if (!oldTags.contains(tag)) {
+        tagToKeys.compute(tag, (t, set) -> {
+          if (set == null) {
+            set = ConcurrentHashMap.newKeySet();
+          }
+          set.add(key);
+          return set;
+        });
+      }
+    }
+  }
+
+  private static <T> Set<String> collectTags(T[] variants, Function<T, String[]> tags) {
+    if (variants == null) {
+      return Set.of();
+    }
+    Set<String> set = null;
+    for (T variant : variants) {
+      for (String tag : tags.apply(variant)) {
+        if (set == null) {
+          set = new HashSet<>();
+        }
+        set.add(tag);
+      }
+    }
+    return set != null ? set : Set.of();
+  }
+
+  /**
+   * Keys starting with the prefix, in O(log n + m)
+   */
+  List<String> keysWithPrefix(String prefix) {
+    List<String> result = new ArrayList<>();
+    for (String key : keys.tailSet(prefix)) {
+      if (!key.startsWith(prefix)) {
+        break;
+      }
+      result.add(key);
+    }
+    return result;
+  }
+
+  Collection<String> keysWithTag(String tag) {
+    Set<String> set = tagToKeys.get(tag);
+    return set != null ? List.copyOf(set) : List.of();
+  }
+
+}
@@ -0,0 +1,232 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.quic.QuicSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.DomainWildcardMappingBuilder;
+import io.netty.util.Mapping;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * TLS contexts of the listener, selected by SNI, which are rebuilt when the key or
+ * certificate files change, including the files of an additional ECDSA certificate.
+ * The files are checked periodically. A changed file gets a new context and a new
+ * mapping is swapped in, which is used for following handshakes. Established
+ * connections keep their context.
+ *
+ * <p>The modification times of the files are compared, following symbolic links, so a
+ * renewal by Let's Encrypt, which switches the links in the {@code live} directory, is
+ * recognized. If the new files can't be loaded, e.g. if the key was written but not the
+ * certificate yet, the current context stays in use and loading is tried again on the
+ * next check.
+ *
+ * @author Jens Wilke
+ */
+public class Certificates implements Mapping<String, SslContext>, HasMultipleMetrics {
+
+  static final ProxyLogger LOG = ProxyLogger.get(Certificates.class);
+
+  static final int DEFAULT_CHECK_SECONDS = 60;
+
+  private final SslConfig defaultConfig;
+  private final Map<String, SslConfig> domains;
+  private final Function<SslConfig, SslContext> factory;
+  private final Function<SslConfig, QuicSslContext> quicFactory;
+  private final Consumer<SslContext> retired;
+  /** Only accessed by the constructor and the reload thread */
+  private final Map<SslConfig, Loaded> loaded = new HashMap<>();
+  private final MetricSet metricSet = new MetricSet();
+  /** Reading files and building contexts blocks, so it is kept off the event loops */
+  private final ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "certificate-reload");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private volatile Mapping<String, SslContext> mapping;
+  private volatile Mapping<String, QuicSslContext> quicMapping;
+  /** Expiry per certificate, swapped in with the mappings and read by the metrics scrape */
+  private volatile Map<SslConfig, Instant> expiries;
+
+  final Counter reloadsCounter = metricSet.add(Counter.builder()
+    .name("tls_certificate_reloads")
+    .help("Certificate reloads after a change of the key or certificate file, by result: success or error")
+    .labelNames("result")
+    .build());
+
+  /**
+   * Load all certificates, fails if a certificate can't be loaded.
+   *
+   * @param defaultConfig certificate for clients without SNI or with an unknown host
+   * @param domains certificate per domain, domains may contain a wildcard
+   * @param quicFactory builds the contexts for HTTP/3 or {@code null}
+   * @param retired called with a context that is replaced
+   */
+  public Certificates(SslConfig defaultConfig, Map<String, SslConfig> domains,
+                      Function<SslConfig, SslContext> factory,
+                      Function<SslConfig, QuicSslContext> quicFactory,
+                      Consumer<SslContext> retired) {
+    this.defaultConfig = defaultConfig;
+    this.domains = new LinkedHashMap<>(domains);
+    this.factory = factory;
+    this.quicFactory = quicFactory;
+    this.retired = retired;
+    try {
+      load(defaultConfig);
+      for (SslConfig cfg : domains.values()) {
+        if (!loaded.containsKey(cfg)) {
+          load(cfg);
+        }
+      }
+    } catch (IOException | CertificateException e) {
+      throw new RuntimeException(e);
+    }
+    buildMappings();
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_certificate_expiry_timestamp_seconds")
+      .help("Expiry time of the certificate in use for the domain, seconds since epoch")
+      .labelNames("domain")
+      .callback(callback -> {
+        callback.call(expiry(defaultConfig), "default");
+        this.domains.forEach((domain, cfg) -> callback.call(expiry(cfg), domain));
+      })
+      .build());
+  }
+
+  @Override
+  public SslContext map(String hostname) {
+    return mapping.map(hostname);
+  }
+
+  /**
+   * Mapping of the HTTP/3 contexts, which follows reloads as well
+   */
+  public Mapping<String, QuicSslContext> quicMapping() {
+    return hostname -> quicMapping.map(hostname);
+  }
+
+  public void scheduleReload(int checkSeconds) {
+    int seconds = checkSeconds > 0 ? checkSeconds : DEFAULT_CHECK_SECONDS;
+    reloader.scheduleWithFixedDelay(this::check, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Reload certificates with changed files and swap in the new mapping
+   */
+  void check() {
+    boolean changed = false;
+    for (Map.Entry<SslConfig, Loaded> entry : loaded.entrySet()) {
+      SslConfig cfg = entry.getKey();
+      Loaded current = entry.getValue();
+      try {
+        if (modified(cfg).equals(current.modified)) {
+          continue;
+        }
+        Loaded update = create(cfg);
+        entry.setValue(update);
+        retired.accept(current.context);
+        changed = true;
+        reloadsCounter.labelValues("success").inc();
+        LOG.info("Reloaded certificate " + cfg.cert() + ", expires " + update.notAfter);
+      } catch (IOException | CertificateException | RuntimeException e) {
+        reloadsCounter.labelValues("error").inc();
+        LOG.error("Cannot reload certificate " + cfg.cert() + ", keeping current", e);
+      }
+    }
+    if (changed) {
+      buildMappings();
+    }
+  }
+
+  private void load(SslConfig cfg) throws IOException, CertificateException {
+    loaded.put(cfg, create(cfg));
+  }
+
+  /**
+   * Read the modification times before the files, so a change while reading is seen on
+   * the next check.
+   */
+  private Loaded create(SslConfig cfg) throws IOException, CertificateException {
+    List<FileTime> modified = modified(cfg);
+    Instant notAfter = notAfter(Path.of(cfg.cert()));
+    QuicSslContext quicContext = quicFactory != null ? quicFactory.apply(cfg) : null;
+    SslContext context = factory.apply(cfg);
+    return new Loaded(context, quicContext, modified, notAfter);
+  }
+
+  private void buildMappings() {
+    Map<SslConfig, Instant> update = new HashMap<>();
+    loaded.forEach((cfg, current) -> update.put(cfg, current.notAfter));
+    expiries = update;
+    var builder = new DomainWildcardMappingBuilder<>(loaded.get(defaultConfig).context);
+    domains.forEach((domain, cfg) -> builder.add(domain, loaded.get(cfg).context));
+    mapping = builder.build();
+    if (quicFactory != null) {
+      var quicBuilder = new DomainWildcardMappingBuilder<>(loaded.get(defaultConfig).quicContext);
+      domains.forEach((domain, cfg) -> quicBuilder.add(domain, loaded.get(cfg).quicContext));
+      quicMapping = quicBuilder.build();
+    }
+  }
+
+  private long expiry(SslConfig cfg) {
+    return expiries.get(cfg).getEpochSecond();
+  }
+
+  /**
+   * Modification times of the key and certificate files, including the ECDSA pair
+   */
+  private static List<FileTime> modified(SslConfig cfg) throws IOException {
+    List<FileTime> times = new ArrayList<>();
+    times.add(modified(cfg.key()));
+    times.add(modified(cfg.cert()));
+    if (ServerKeys.hasEcdsa(cfg)) {
+      times.add(modified(cfg.ecdsaKey()));
+      times.add(modified(cfg.ecdsaCert()));
+    }
+    return times;
+  }
+
+  private static FileTime modified(String file) throws IOException {
+    return Files.getLastModifiedTime(Path.of(file));
+  }
+
+  /**
+   * Expiry of the first certificate in the file, which is the server certificate
+   * in a full chain.
+   */
+  static Instant notAfter(Path certFile) throws IOException, CertificateException {
+    try (InputStream in = Files.newInputStream(certFile)) {
+      X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+      return certificate.getNotAfter().toInstant();
+    }
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  private record Loaded(SslContext context, QuicSslContext quicContext,
+                        List<FileTime> modified, Instant notAfter) { }
+
+}
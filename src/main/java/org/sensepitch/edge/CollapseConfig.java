@@ -0,0 +1,20 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+import java.util.List;
+
+/**
+ * Collapsed forwarding of identical concurrent requests.
+ *
+ * @param enable send only one of identical concurrent GET or HEAD requests upstream and
+ *               share its response with the others
+ * @param keyHeaders request headers that are part of the request identity, because the
+ *                   upstream response may vary on them. Default is {@code accept-encoding}
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record CollapseConfig(
+  boolean enable,
+  List<String> keyHeaders) { }
@@ -0,0 +1,135 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Registry of requests currently forwarded upstream, shared by all event loops. Identical
+ * requests arriving while the first one waits for the response attach to it, see
+ * {@link CollapsedForwardingHandler}.
+ *
+ * @author Jens Wilke
+ */
+public class CollapsedForwarding implements HasMultipleMetrics {
+
+  private final ConcurrentMap<String, CollapsedForwardingHandler.Flight> inFlight = new ConcurrentHashMap<>();
+  private final List<String> keyHeaders;
+  private final MetricSet metricSet = new MetricSet();
+
+  private final Counter requestsCounter = metricSet.add(Counter.builder()
+    .name("collapsed_forwarding_requests")
+    .help("Requests sent upstream (leader), served from the response of another request (follower) "
+      + "or sent upstream after all, because the response could not be shared (retry)")
+    .labelNames("role")
+    .build());
+
+  final CounterDataPoint leaderCounter = requestsCounter.labelValues("leader");
+  final CounterDataPoint followerCounter = requestsCounter.labelValues("follower");
+  final CounterDataPoint retryCounter = requestsCounter.labelValues("retry");
+
+  public CollapsedForwarding(CollapseConfig cfg) {
+    List<String> headers = cfg.keyHeaders() != null && !cfg.keyHeaders().isEmpty() ?
+      cfg.keyHeaders() : List.of(HttpHeaderNames.ACCEPT_ENCODING.toString());
+    keyHeaders = headers.stream().map(s -> s.toLowerCase(Locale.ROOT)).toList();
+  }
+
+  public CollapsedForwardingHandler newHandler() {
+    return new CollapsedForwardingHandler(this);
+  }
+
+  ConcurrentMap<String, CollapsedForwardingHandler.Flight> inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Key of the request or {@code null} if the request cannot be collapsed. Requests with
+   * cookies other than the admission cookie are not collapsed, the response may be
+   * personalized even without cache control headers.
+   */
+  String requestKey(HttpRequest request) {
+    HttpMethod method = request.method();
+    if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+      return null;
+    }
+    HttpHeaders headers = request.headers();
+    if (headers.contains(HttpHeaderNames.AUTHORIZATION) || headers.contains(HttpHeaderNames.RANGE) ||
+      hasUserCookie(headers)) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(128);
+    sb.append(method.name()).append(' ')
+      .append(headers.get(HttpHeaderNames.HOST)).append(request.uri());
+    for (String name : keyHeaders) {
+      String value = headers.get(name);
+      sb.append('\n');
+      if (value != null) {
+        sb.append(value);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean hasUserCookie(HttpHeaders headers) {
+    for (String value : headers.getAll(HttpHeaderNames.COOKIE)) {
+      for (Cookie cookie : ServerCookieDecoder.LAX.decodeAll(value)) {
+        if (!cookie.name().equals(AdmissionHandler.cookieName)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A response can be shared, if it is not private to the requesting user and does not
+   * vary on headers that are not part of the key. A not modified response answers the
+   * conditions of the leader, which are not part of the key.
+   */
+  boolean isShareable(HttpResponse response) {
+    int code = response.status().code();
+    if (code >= 500 || code == 206 || code == 304) {
+      return false;
+    }
+    HttpHeaders headers = response.headers();
+    if (headers.contains(HttpHeaderNames.SET_COOKIE)) {
+      return false;
+    }
+    String cacheControl = headers.get(HttpHeaderNames.CACHE_CONTROL);
+    if (cacheControl != null) {
+      String lower = cacheControl.toLowerCase(Locale.ROOT);
+      if (lower.contains(HttpHeaderValues.PRIVATE) || lower.contains(HttpHeaderValues.NO_STORE)) {
+        return false;
+      }
+    }
+    for (String vary : headers.getAll(HttpHeaderNames.VARY)) {
+      for (String name : vary.split(",")) {
+        String trimmed = name.trim().toLowerCase(Locale.ROOT);
+        if (!trimmed.isEmpty() && !keyHeaders.contains(trimmed)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+}
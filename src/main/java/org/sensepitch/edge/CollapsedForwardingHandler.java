@@ -0,0 +1,230 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collapsed forwarding: the first of identical concurrent requests (the leader) is forwarded
+ * upstream, the following ones (the followers) wait for its response. The response passes
+ * the leader's handler outbound and is fanned out to the followers with retained duplicates
+ * of the content, not copies. Followers may attach until the response header arrives. If the
+ * response cannot be shared, the followers forward their own request.
+ *
+ * <p>Messages for a follower are written within the follower's event loop. Sits after the
+ * admission handler, so only admitted requests are collapsed.
+ *
+ * @author Jens Wilke
+ */
+public class CollapsedForwardingHandler extends ChannelDuplexHandler {
+
+  private final CollapsedForwarding registry;
+  private ChannelHandlerContext ctx;
+  /** Flight this channel leads, only accessed within the channel's event loop */
+  private Flight leading;
+  /** Flight this channel follows or {@code null} */
+  private Flight following;
+  private HttpRequest followerRequest;
+  private boolean followerRequestComplete;
+
+  CollapsedForwardingHandler(CollapsedForwarding registry) {
+    this.registry = registry;
+  }
+
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) {
+    this.ctx = ctx;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    if (following != null) {
+      // discard the request content of a follower, it is not sent anywhere
+      if (msg instanceof LastHttpContent) {
+        followerRequestComplete = true;
+      }
+      ReferenceCountUtil.release(msg);
+      return;
+    }
+    if (msg instanceof HttpRequest request) {
+      String key = leading == null ? registry.requestKey(request) : null;
+      if (key != null) {
+        Flight flight = new Flight(key, this);
+        Flight existing = registry.inFlight().putIfAbsent(key, flight);
+        if (existing == null) {
+          leading = flight;
+          registry.leaderCounter.inc();
+        } else if (existing.attach(this)) {
+          following = existing;
+          followerRequest = headersOnly(request);
+          followerRequestComplete = request instanceof LastHttpContent;
+          ReferenceCountUtil.release(request);
+          registry.followerCounter.inc();
+          return;
+        }
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  /**
+   * The follower request is kept until the leader response arrives, but a full request
+   * may hold a buffer. Requests that are collapsed have no body to forward.
+   */
+  private static HttpRequest headersOnly(HttpRequest request) {
+    if (!(request instanceof FullHttpRequest)) {
+      return request;
+    }
+    return new DefaultHttpRequest(request.protocolVersion(), request.method(), request.uri(),
+      request.headers().copy());
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (leading != null && msg instanceof HttpObject) {
+      Flight flight = leading;
+      if (msg instanceof LastHttpContent) {
+        leading = null;
+      }
+      flight.fanOut((HttpObject) msg);
+    }
+    ctx.write(msg, promise);
+  }
+
+  /**
+   * If the leader goes away before the response is complete, the followers need
+   * to get their response elsewhere.
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (leading != null) {
+      leading.abort();
+      leading = null;
+    }
+    super.channelInactive(ctx);
+  }
+
+  /**
+   * Write a response message from the leader. Runs in our event loop.
+   */
+  private void deliver(HttpObject msg) {
+    if (msg instanceof LastHttpContent) {
+      following = null;
+      followerRequest = null;
+      ctx.writeAndFlush(msg);
+    } else {
+      ctx.write(msg);
+    }
+  }
+
+  /**
+   * Leader response was not shareable or the leader is gone, forward our own request.
+   * Runs in our event loop.
+   */
+  private void forwardOwnRequest() {
+    HttpRequest request = followerRequest;
+    boolean complete = followerRequestComplete;
+    following = null;
+    followerRequest = null;
+    registry.retryCounter.inc();
+    ctx.fireChannelRead(request);
+    if (complete) {
+      ctx.fireChannelRead(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+  }
+
+  private void abortFollower() {
+    following = null;
+    followerRequest = null;
+    ctx.close();
+  }
+
+  /**
+   * One request forwarded upstream with its followers. Followers attach from other event loops,
+   * attaching and the decision whether to share are synchronized. Once the response header
+   * arrived the list of followers does not change any more.
+   */
+  static class Flight {
+
+    private final String key;
+    private final CollapsedForwardingHandler leader;
+    private final List<CollapsedForwardingHandler> followers = new ArrayList<>(4);
+    private boolean closed;
+    private boolean shared;
+
+    Flight(String key, CollapsedForwardingHandler leader) {
+      this.key = key;
+      this.leader = leader;
+    }
+
+    synchronized boolean attach(CollapsedForwardingHandler follower) {
+      if (closed) {
+        return false;
+      }
+      followers.add(follower);
+      return true;
+    }
+
+    private synchronized boolean close() {
+      if (closed) {
+        return false;
+      }
+      closed = true;
+      leader.registry.inFlight().remove(key, this);
+      return true;
+    }
+
+    void fanOut(HttpObject msg) {
+      if (msg instanceof HttpResponse response) {
+        if (!close()) {
+          return;
+        }
+        shared = leader.registry.isShareable(response);
+        if (!shared) {
+          followers.forEach(f -> f.ctx.executor().execute(f::forwardOwnRequest));
+          return;
+        }
+        for (CollapsedForwardingHandler f : followers) {
+          HttpObject copy;
+          if (response instanceof FullHttpResponse full) {
+            copy = full.retainedDuplicate();
+          } else {
+            copy = new DefaultHttpResponse(response.protocolVersion(), response.status(), response.headers().copy());
+          }
+          f.ctx.executor().execute(() -> f.deliver(copy));
+        }
+      } else if (shared && msg instanceof HttpContent content) {
+        for (CollapsedForwardingHandler f : followers) {
+          HttpContent copy = content.retainedDuplicate();
+          f.ctx.executor().execute(() -> f.deliver(copy));
+        }
+      }
+    }
+
+    /**
+     * Leader channel closed before the response was complete.
+     */
+    void abort() {
+      if (close()) {
+        followers.forEach(f -> f.ctx.executor().execute(f::forwardOwnRequest));
+      } else if (shared) {
+        followers.forEach(f -> f.ctx.executor().execute(f::abortFollower));
+      }
+    }
+
+  }
+
+}
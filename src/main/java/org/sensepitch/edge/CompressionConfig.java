@@ -0,0 +1,25 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+import java.util.List;
+
+/**
+ * Compression of upstream responses that are not compressed already.
+ *
+ * @param enable compress responses with brotli, gzip or deflate, as accepted by the client
+ * @param minBytes responses with a smaller content length are not compressed, default 1024
+ * @param contentTypes media types to compress, a type ending with {@code /*} matches all
+ *                     subtypes. Default are text, JavaScript, JSON, XML and SVG
+ * @param level compression level for gzip and deflate, 1 to 9, default 6
+ * @param brotliQuality brotli quality, 0 to 11, default 4
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record CompressionConfig(
+  boolean enable,
+  int minBytes,
+  List<String> contentTypes,
+  int level,
+  int brotliQuality) { }
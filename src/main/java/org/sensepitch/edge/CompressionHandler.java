@@ -0,0 +1,99 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.List;
+
+/**
+ * Streaming compression of a response, based on the Netty {@link HttpContentCompressor}.
+ * Responses already encoded by upstream pass unchanged. A response is compressed if its
+ * content type is allowed, it is not smaller than the threshold and the client accepts
+ * an encoding we produce. Compressible responses get {@code Vary: Accept-Encoding}, so
+ * the response cache keeps the variants apart. A strong {@code ETag} becomes weak when
+ * compressing, since the bytes differ from the upstream representation.
+ *
+ * @author Jens Wilke
+ * @see ResponseCompression
+ */
+public class CompressionHandler extends HttpContentCompressor {
+
+  private final ResponseCompression compression;
+  /** Encoding of the current response, or {@code null} if it is not compressed */
+  private String encoding;
+  private long inputBytes;
+  private long outputBytes;
+  private long nanos;
+
+  CompressionHandler(ResponseCompression compression, CompressionOptions... options) {
+    super(0, options);
+    this.compression = compression;
+  }
+
+  @Override
+  protected Result beginEncode(HttpResponse response, String acceptEncoding) throws Exception {
+    HttpHeaders headers = response.headers();
+    if (!compression.isCompressible(headers.get(HttpHeaderNames.CONTENT_TYPE)) ||
+      headers.containsValue(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_TRANSFORM, true)) {
+      return null;
+    }
+    if (!headers.containsValue(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING, true)) {
+      headers.add(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+    }
+    long contentLength = response instanceof HttpContent content ?
+      content.content().readableBytes() : HttpUtil.getContentLength(response, -1L);
+    if (contentLength >= 0 && contentLength < compression.minBytes()) {
+      return null;
+    }
+    Result result = super.beginEncode(response, acceptEncoding);
+    if (result != null) {
+      encoding = result.targetContentEncoding();
+      String etag = headers.get(HttpHeaderNames.ETAG);
+      if (etag != null && !etag.startsWith("W/")) {
+        headers.set(HttpHeaderNames.ETAG, "W/" + etag);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Measure the time spent compressing and the bytes before and after.
+   */
+  @Override
+  protected void encode(ChannelHandlerContext ctx, HttpObject msg, List<Object> out) throws Exception {
+    if (msg instanceof HttpResponse) {
+      encoding = null;
+      inputBytes = outputBytes = nanos = 0;
+    }
+    int outStart = out.size();
+    long in = msg instanceof HttpContent content ? content.content().readableBytes() : 0;
+    long start = System.nanoTime();
+    super.encode(ctx, msg, out);
+    if (encoding == null) {
+      return;
+    }
+    nanos += System.nanoTime() - start;
+    inputBytes += in;
+    for (int i = outStart; i < out.size(); i++) {
+      if (out.get(i) instanceof HttpContent content) {
+        outputBytes += content.content().readableBytes();
+      }
+    }
+    if (msg instanceof LastHttpContent) {
+      compression.recordCompression(inputBytes, outputBytes, nanos);
+      compression.responsesCounter.labelValues(encoding).inc();
+      encoding = null;
+      inputBytes = outputBytes = nanos = 0;
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Adaptive limit of concurrent requests to an upstream target. The limit is adjusted by
+ * the observed response times: it grows while the response time stays close to the
+ * minimum seen, and shrinks when requests start to queue at the upstream.
+ *
+ * @param initialLimit limit at startup, default 20
+ * @param minLimit the limit never drops below this, default 1
+ * @param maxLimit the limit never grows above this, default 1000
+ * @param queueSize requests waiting for the limit when all permits are in use. Further
+ *                  requests are rejected immediately. 0 means no queueing
+ * @param queueTimeoutMillis maximum time a request waits in the queue before it is rejected,
+ *                           default 1000
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record ConcurrencyLimitConfig(
+  int initialLimit,
+  int minLimit,
+  int maxLimit,
+  int queueSize,
+  int queueTimeoutMillis) { }
@@ -0,0 +1,218 @@
+package org.sensepitch.edge;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive concurrency limit of one upstream target, following the TCP Vegas idea. The
+ * response time without load is tracked as the minimum response time. The number of requests
+ * that queue at the upstream is estimated as {@code limit * (1 - minRtt / rtt)}. If the
+ * estimated queue is small, the limit grows, if it gets large, the limit shrinks.
+ *
+ * <p>Permits are taken with a CAS on the in flight counter. The limit and the minimum response
+ * time are updated from all event loops without synchronization, a lost update drops a sample
+ * only. Waiting requests are kept in a shared queue, the promise of a waiter completes within
+ * its own event loop, when a permit is handed over.
+ *
+ * @author Jens Wilke
+ */
+class ConcurrencyLimiter {
+
+  /** Forget the minimum response time periodically, in case the upstream got slower permanently */
+  private static final long MIN_RTT_RESET_NANOS = TimeUnit.SECONDS.toNanos(30);
+  /** Reduction of the limit, if a request failed */
+  private static final double BACKOFF_RATIO = 0.9;
+
+  private final String name;
+  private final int minLimit;
+  private final int maxLimit;
+  private final int queueSize;
+  private final long queueTimeoutMillis;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Queue<Promise<Void>> waiters = new ConcurrentLinkedQueue<>();
+  private final LongAdder rejectedQueueFull = new LongAdder();
+  private final LongAdder rejectedTimeout = new LongAdder();
+
+  /** Gets the first chance on a released permit, {@code null} if not used */
+  private final Runnable releaseListener;
+
+  private volatile double limit;
+  private volatile long minRttNanos;
+  private volatile long minRttResetNanos;
+
+  ConcurrencyLimiter(String name, ConcurrencyLimitConfig cfg) {
+    this(name, cfg, null);
+  }
+
+  /**
+   * @param releaseListener called when a permit is released, before waiting requests of the
+   *                        own queue get it. Used for the {@link WaitingRoom}
+   */
+  ConcurrencyLimiter(String name, ConcurrencyLimitConfig cfg, Runnable releaseListener) {
+    this.name = name;
+    this.releaseListener = releaseListener;
+    minLimit = cfg.minLimit() > 0 ? cfg.minLimit() : 1;
+    maxLimit = cfg.maxLimit() > 0 ? cfg.maxLimit() : 1000;
+    queueSize = cfg.queueSize();
+    queueTimeoutMillis = cfg.queueTimeoutMillis() > 0 ? cfg.queueTimeoutMillis() : 1000;
+    limit = Math.max(minLimit, Math.min(maxLimit, cfg.initialLimit() > 0 ? cfg.initialLimit() : 20));
+    minRttResetNanos = System.nanoTime() + MIN_RTT_RESET_NANOS;
+  }
+
+  String name() { return name; }
+
+  int limit() { return (int) limit; }
+
+  int inFlight() { return inFlight.get(); }
+
+  int queued() { return queued.get(); }
+
+  long rejectedQueueFull() { return rejectedQueueFull.sum(); }
+
+  long rejectedTimeout() { return rejectedTimeout.sum(); }
+
+  /**
+   * Take a permit if the limit is not reached. Fast path without allocation.
+   */
+  boolean tryAcquire() {
+    for (;;) {
+      int current = inFlight.get();
+      if (current >= (int) limit) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Wait for a permit. The future fails with {@link LimitExceededException}, if the queue is
+   * full or the permit is not available within the queue timeout.
+   */
+  Future<Void> enqueue(EventExecutor executor) {
+    if (queued.incrementAndGet() > queueSize) {
+      queued.decrementAndGet();
+      rejectedQueueFull.increment();
+      return executor.newFailedFuture(new LimitExceededException(name, "queue full"));
+    }
+    Promise<Void> promise = executor.newPromise();
+    waiters.add(promise);
+    // a permit might have been released between tryAcquire and adding to the queue
+    dispatch();
+    if (!promise.isDone()) {
+      executor.schedule(() -> {
+        if (promise.tryFailure(new LimitExceededException(name, "queue timeout"))) {
+          queued.decrementAndGet();
+          rejectedTimeout.increment();
+        }
+      }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    return promise;
+  }
+
+  /**
+   * Return the permit and adjust the limit.
+   *
+   * @param rttNanos response time of the request
+   * @param success false, if the request failed, which reduces the limit
+   */
+  void release(long rttNanos, boolean success) {
+    inFlight.decrementAndGet();
+    if (success) {
+      update(rttNanos);
+    } else {
+      limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+    }
+    notifyRelease();
+  }
+
+  /**
+   * Request was never sent, e.g. because no upstream connection could be acquired.
+   */
+  void releaseWithoutSample() {
+    inFlight.decrementAndGet();
+    notifyRelease();
+  }
+
+  /**
+   * Give back a permit that was taken by {@link #tryAcquire()} but not used.
+   */
+  void returnPermit() {
+    inFlight.decrementAndGet();
+    dispatch();
+  }
+
+  private void notifyRelease() {
+    if (releaseListener != null) {
+      releaseListener.run();
+    }
+    dispatch();
+  }
+
+  private void update(long rttNanos) {
+    long now = System.nanoTime();
+    long minRtt = minRttNanos;
+    if (minRtt == 0 || rttNanos < minRtt || now - minRttResetNanos >= 0) {
+      minRttNanos = minRtt = rttNanos;
+      minRttResetNanos = now + MIN_RTT_RESET_NANOS;
+    }
+    double currentLimit = limit;
+    double log = Math.max(1, Math.log10(currentLimit));
+    double estimatedQueue = currentLimit * (1 - (double) minRtt / rttNanos);
+    double alpha = 3 * log;
+    double beta = 6 * log;
+    double newLimit;
+    if (estimatedQueue <= alpha) {
+      // only grow if the limit is actually used, otherwise it would grow without bounds
+      if (inFlight.get() * 2 < currentLimit) {
+        return;
+      }
+      newLimit = currentLimit + log;
+    } else if (estimatedQueue >= beta) {
+      newLimit = currentLimit - log;
+    } else {
+      return;
+    }
+    limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+  }
+
+  /**
+   * Hand over free permits to waiting requests. Waiters that timed out are skipped.
+   */
+  private void dispatch() {
+    while (!waiters.isEmpty() && tryAcquire()) {
+      Promise<Void> waiter;
+      do {
+        waiter = waiters.poll();
+      } while (waiter != null && waiter.isDone());
+      if (waiter == null) {
+        inFlight.decrementAndGet();
+        return;
+      }
+      if (waiter.trySuccess(null)) {
+        queued.decrementAndGet();
+      } else {
+        // timed out concurrently, give the permit back
+        inFlight.decrementAndGet();
+      }
+    }
+  }
+
+  static class LimitExceededException extends Exception {
+
+    LimitExceededException(String upstream, String reason) {
+      super("Concurrency limit of upstream " + upstream + " exceeded, " + reason);
+    }
+
+  }
+
+}
@@ -14,6 +14,9 @@ import lombok.Builder;
  *                            request will be aborted as well.
  * @param responseTimeoutSeconds if the HTTP response is not arriving within the defined tme,
  *                               the request is aborted
+ * @param maxPipelinedRequests HTTP/1.1 requests that are queued while a previous request on the same
+ *                             connection is processed. If more requests arrive, reading from the
+ *                             connection pauses. 0 means the default of 16.
  *
  * @author Jens Wilke
  */
@@ -21,13 +24,15 @@ import lombok.Builder;
 public record ConnectionConfig (
   int readTimeoutSeconds,
   int writeTimeoutSeconds,
-  int responseTimeoutSeconds
+  int responseTimeoutSeconds,
+  int maxPipelinedRequests
 ) {
 
   public static final ConnectionConfig DEFAULT = builder()
     .readTimeoutSeconds(30)
     .writeTimeoutSeconds(30)
     .responseTimeoutSeconds(15)
+    .maxPipelinedRequests(16)
     .build();
 
 }
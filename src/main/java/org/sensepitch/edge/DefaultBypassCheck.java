@@ -82,7 +82,7 @@ public class DefaultBypassCheck implements BypassCheck {
     if (hostCheck != null) {
       return hostCheck.allowBypass(channel, request);
     }
-    if (channel.remoteAddress() instanceof InetSocketAddress addr) {
+    if (ProxyUtil.remoteSocketAddress(channel) instanceof InetSocketAddress addr) {
       String remoteHost = addr.getAddress().getHostAddress();
       BypassCheck remoteCheck = remoteAddressMap.get(remoteHost);
       if (remoteCheck != null) {
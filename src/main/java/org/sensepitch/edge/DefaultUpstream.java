@@ -9,80 +9,279 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
+import io.netty.channel.pool.AbstractChannelPoolMap;
 import io.netty.channel.pool.ChannelHealthChecker;
 import io.netty.channel.pool.ChannelPoolHandler;
 import io.netty.channel.pool.FixedChannelPool;
 import io.netty.channel.pool.SimpleChannelPool;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.FutureListener;
 import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 
 /**
+ * Upstream with a connection pool per event loop. An upstream connection is always acquired
+ * from the pool of the downstream channel's event loop, so request and response are forwarded
+ * within the same thread and without task handoff.
+ *
+ * <p>With protocol {@code h2c} requests are multiplexed as HTTP/2 streams over few
+ * connections per event loop, see {@link H2cConnectionPool}.
+ *
+ * <p>As a target of a {@link BalancingUpstream} it keeps the statistics the
+ * {@link LoadBalancer} selects on.
+ *
  * @author Jens Wilke
  */
-public class DefaultUpstream implements Upstream {
+public class DefaultUpstream implements Upstream, LoadBalancer.Target {
 
   private static ProxyLogger LOG = ProxyLogger.get(DefaultUpstream.class);
+  private static final long WARM_UP_INTERVAL_MILLIS = 1000;
+  /** Weight of a new response time sample in the moving average */
+  private static final double LATENCY_EWMA_ALPHA = 0.2;
 
   private final Bootstrap bootstrap;
-  private final SimpleChannelPool pool;
+  private final AbstractChannelPoolMap<EventLoop, SimpleChannelPool> poolMap;
+  /** HTTP/2 connections per event loop, or {@code null} for HTTP/1.1 */
+  private final Map<EventLoop, H2cConnectionPool> h2cPools;
+  private final String host;
+  private final String name;
+  private final UpstreamMetrics metrics;
+  private final LongAdder openConnections = new LongAdder();
+  private final LongAdder inUseConnections = new LongAdder();
+  private final LongAdder pendingAcquires = new LongAdder();
+  private final LongAdder activeStreams = new LongAdder();
+  private final int minIdleConnections;
+  private final int idleTimeoutSeconds;
+  private final int weight;
+  private final UpstreamHealth health;
+  /** Adaptive concurrency limit or {@code null} if not configured */
+  private final ConcurrencyLimiter limiter;
+  private final WaitingRoom waitingRoom;
+  /**
+   * Updated from all event loops without synchronization, a lost update just drops a sample.
+   */
+  private volatile double latencyEwmaNanos;
 
   public DefaultUpstream(ProxyContext ctx, UpstreamConfig cfg) {
-    String[] sa = cfg.target().split(":");
+    this(ctx, cfg, cfg.target(), 1, null);
+  }
+
+  /**
+   * Upstream for one of multiple targets, connection settings are taken from the upstream
+   * configuration.
+   *
+   * @param waitingRoom waiting room shared by all targets of the host or {@code null}
+   */
+  public DefaultUpstream(ProxyContext ctx, UpstreamConfig cfg, String targetHostAndPort, int weight,
+                         WaitingRoom waitingRoom) {
+    host = cfg.host() != null ? cfg.host() : "default";
+    name = targetHostAndPort;
+    this.waitingRoom = waitingRoom;
+    this.weight = weight > 0 ? weight : 1;
+    metrics = ctx.upstreamMetrics();
+    minIdleConnections = cfg.minIdleConnections();
+    idleTimeoutSeconds = cfg.idleTimeoutSeconds();
+    String[] sa = targetHostAndPort.split(":");
     int port = 80;
     String target = sa[0];
     if (sa.length > 2) {
-      throw new IllegalArgumentException("Target: " + cfg.target());
+      throw new IllegalArgumentException("Target: " + targetHostAndPort);
     }
     if (sa.length > 1) {
       port = Integer.parseInt(sa[1]);
     }
     bootstrap = new Bootstrap()
       .group(ctx.eventLoopGroup())
-      .channel(NioSocketChannel.class)
+      .channel(ctx.transport().socketChannelClass())
       .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
       .option(ChannelOption.SO_KEEPALIVE, true)
       .remoteAddress(target, port);
-    ChannelPoolHandler channelHandler = new ChannelPoolHandler() {
+    int loopCount = 0;
+    for (EventExecutor ignored : ctx.eventLoopGroup()) {
+      loopCount++;
+    }
+    // limits are per upstream, each event loop pool gets an equal share
+    int maxConnections = perLoopShare(cfg.maxConnections(), loopCount);
+    int maxPendingAcquires = cfg.maxPendingAcquires() > 0 ?
+      perLoopShare(cfg.maxPendingAcquires(), loopCount) : Integer.MAX_VALUE;
+    long acquireTimeoutMillis = cfg.acquireTimeoutMillis() > 0 ? cfg.acquireTimeoutMillis() : -1;
+    FixedChannelPool.AcquireTimeoutAction acquireTimeoutAction =
+      acquireTimeoutMillis > 0 ? FixedChannelPool.AcquireTimeoutAction.FAIL : null;
+    poolMap = new AbstractChannelPoolMap<>() {
       @Override
-      public void channelReleased(Channel ch) throws Exception {
+      protected SimpleChannelPool newPool(EventLoop loop) {
+        // new connections are registered on the same loop
+        Bootstrap loopBootstrap = bootstrap.clone(loop);
+        LoopPoolHandler channelHandler = new LoopPoolHandler();
+        SimpleChannelPool pool;
+        if (maxConnections <= 0) {
+          pool = new WarmUpSimpleChannelPool(loopBootstrap,
+            channelHandler,
+            ChannelHealthChecker.ACTIVE);
+        } else {
+          pool = new WarmUpFixedChannelPool(loopBootstrap,
+            channelHandler,
+            ChannelHealthChecker.ACTIVE,
+            acquireTimeoutAction,
+            acquireTimeoutMillis,
+            maxConnections,
+            maxPendingAcquires,
+            true
+          );
+        }
+        if (minIdleConnections > 0) {
+          loop.scheduleWithFixedDelay(() -> warmUp((WarmUpPool) pool, channelHandler),
+            0, WARM_UP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return pool;
       }
-
-      @Override
-      public void channelAcquired(Channel ch) throws Exception {
+    };
+    String protocol = cfg.protocol() != null ? cfg.protocol() : "http1";
+    switch (protocol) {
+      case "http1" -> {
+        h2cPools = null;
+        // create all pools upfront, so there is no contention when the first requests come in
+        for (EventExecutor executor : ctx.eventLoopGroup()) {
+          poolMap.get((EventLoop) executor);
+        }
       }
-
-      @Override
-      public void channelCreated(Channel ch) throws Exception {
-        addHttpHandler(ch.pipeline());
-        ch.pipeline().addLast("forward", new ForwardHandler(null, null));
+      case "h2c" -> {
+        h2cPools = new IdentityHashMap<>();
+        for (EventExecutor executor : ctx.eventLoopGroup()) {
+          EventLoop loop = (EventLoop) executor;
+          H2cConnectionPool pool = new H2cConnectionPool(bootstrap, loop, maxConnections,
+            cfg.maxConcurrentStreams(), maxPendingAcquires == Integer.MAX_VALUE ? 0 : maxPendingAcquires,
+            acquireTimeoutMillis, idleTimeoutSeconds, openConnections, inUseConnections, activeStreams);
+          h2cPools.put(loop, pool);
+          if (minIdleConnections > 0) {
+            loop.scheduleWithFixedDelay(() -> pool.ensureConnections(minIdleConnections),
+              0, WARM_UP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+          }
+        }
       }
-    };
-    // TODO: parameter
-    int maxConnections = 0;
-    if (maxConnections <= 0) {
-      pool = new SimpleChannelPool(bootstrap,
-        channelHandler,
-        ChannelHealthChecker.ACTIVE);
+      default -> throw new IllegalArgumentException("Unknown upstream protocol: " + protocol + ", host: " + cfg.host());
+    }
+    HealthCheckConfig healthCheck = cfg.healthCheck() != null ? cfg.healthCheck() : HealthCheckConfig.builder().build();
+    health = new UpstreamHealth(host, name, target, healthCheck, metrics);
+    health.start(bootstrap, ctx.eventLoopGroup().next());
+    if (cfg.concurrencyLimit() == null) {
+      limiter = null;
+    } else if (waitingRoom == null) {
+      limiter = new ConcurrencyLimiter(name, cfg.concurrencyLimit());
     } else {
-      pool = new FixedChannelPool(bootstrap,
-        channelHandler,
-        ChannelHealthChecker.ACTIVE,
-        FixedChannelPool.AcquireTimeoutAction.FAIL,
-        50,   // acquire timeout ms
-        maxConnections,     // max connections
-        1,
-        true
-      );
+      limiter = new ConcurrencyLimiter(name, cfg.concurrencyLimit(), () -> waitingRoom.dispatch(this));
     }
+    metrics.register(this);
+  }
+
+  private static int perLoopShare(int total, int loopCount) {
+    if (total <= 0) {
+      return 0;
+    }
+    return Math.max(1, (total + loopCount - 1) / loopCount);
+  }
+
+  /**
+   * Configured host or {@code "default"}. Several hosts may use the same target, so
+   * the metrics are labeled with both.
+   */
+  String host() { return host; }
+
+  /** Name of the upstream used as metrics label */
+  String name() { return name; }
+
+  long idleConnections() { return openConnections.sum() - inUseConnections.sum(); }
+
+  long inUseConnections() { return inUseConnections.sum(); }
+
+  long pendingAcquires() { return pendingAcquires.sum(); }
+
+  long activeStreams() { return activeStreams.sum(); }
+
+  ConcurrencyLimiter limiter() { return limiter; }
+
+  @Override
+  public int weight() { return weight; }
+
+  @Override
+  public long inFlight() {
+    long waiting = limiter != null ? limiter.queued() : 0;
+    long requests = h2cPools != null ? activeStreams.sum() : inUseConnections.sum();
+    return waiting + pendingAcquires.sum() + requests;
+  }
+
+  @Override
+  public double latencyEwmaNanos() { return latencyEwmaNanos; }
+
+  @Override
+  public boolean isAvailable() { return health.isAvailable(); }
+
+  @Override
+  public double weightFactor() { return health.weightFactor(); }
+
+  /**
+   * Record response time and status for balancing and passive health checks. The time is from
+   * requesting a connection until the response header arrives, so a slow connect or a long
+   * wait for a pooled connection is included.
+   */
+  private void recordResponse(long nanos, boolean serverError) {
+    double current = latencyEwmaNanos;
+    latencyEwmaNanos = current == 0 ? nanos : current + LATENCY_EWMA_ALPHA * (nanos - current);
+    if (serverError) {
+      health.recordError();
+    } else {
+      health.recordSuccess();
+    }
+  }
+
+  /**
+   * Make sure the pool has at least {@code minIdleConnections} idle connections. A channel
+   * counts as open when it is created, so connections that are still connecting are not
+   * opened twice on the next run. Only the missing connections are opened and each goes
+   * to the pool as soon as it is connected.
+   */
+  private void warmUp(WarmUpPool pool, LoopPoolHandler handler) {
+    int missing = minIdleConnections - (handler.open - handler.inUse);
+    for (int i = 0; i < missing; i++) {
+      pool.openIdle();
+    }
+  }
+
+  /**
+   * Offer a connected channel to the pool as idle. Acquiring new connections for the
+   * warm up would take the idle ones first.
+   */
+  private void offerWhenConnected(ChannelFuture connect, Predicate<Channel> offer) {
+    connect.addListener((ChannelFutureListener) future -> {
+      if (!future.isSuccess()) {
+        LOG.trace("warm up connect to " + name + " failed: " + future.cause());
+      } else if (!offer.test(future.channel())) {
+        future.channel().close();
+      }
+    });
   }
 
   void addHttpHandler(ChannelPipeline  pipeline) {
     // pipeline.addLast(new ReportIoErrorsHandler("upstream"));
     pipeline.addLast(new HttpClientCodec());
+    if (idleTimeoutSeconds > 0) {
+      // close is done by ForwardHandler, if the connection is not in use
+      pipeline.addLast(new IdleStateHandler(0, 0, idleTimeoutSeconds));
+    }
     // FIXME: timeout?
     // pipeline.addLast(new ReadTimeoutHandler(23));
     // pipeline.addLast(new LoggingHandler(LogLevel.INFO));
@@ -90,9 +289,14 @@ public class DefaultUpstream implements Upstream {
 
   @Override
   public Future<Channel> connect(ChannelHandlerContext downstreamContext) {
+    return connect(downstreamContext, null);
+  }
+
+  @Override
+  public Future<Channel> connect(ChannelHandlerContext downstreamContext, HttpRequest request) {
     boolean pooled = true;
     if (pooled) {
-      return getPooledChannel(downstreamContext.channel());
+      return getPooledChannel(downstreamContext.channel(), request);
     } else {
       ChannelFuture upstreamFuture = connectToUpstream(downstreamContext.channel());
       Promise<Channel> promise = downstreamContext.executor().newPromise();
@@ -107,24 +311,196 @@ public class DefaultUpstream implements Upstream {
     }
   }
 
-  private Future<Channel> getPooledChannel(Channel downstream) {
-    Future<Channel> future = pool.acquire(downstream.eventLoop().newPromise());
+  /**
+   * Background requests never wait for a concurrency permit, they fail with
+   * {@link ConcurrencyLimiter.LimitExceededException} if the upstream is at its limit.
+   */
+  @Override
+  public Future<Channel> connect(EventLoop loop, Channel downstream, HttpRequest request) {
+    if (limiter == null) {
+      return acquire(loop, downstream, false);
+    }
+    if (limiter.tryAcquire()) {
+      return acquire(loop, downstream, true);
+    }
+    return loop.newFailedFuture(new ConcurrencyLimiter.LimitExceededException(limiter.name(), "background"));
+  }
+
+  /**
+   * Acquire a connection from the loop pool. With a concurrency limit, a permit is taken
+   * first or the request waits for one. Admitted users wait in the waiting room of the host,
+   * if present, and get the next free permit of any target.
+   */
+  private Future<Channel> getPooledChannel(Channel downstream, HttpRequest request) {
+    EventLoop loop = downstream.eventLoop();
+    if (limiter == null) {
+      return acquire(loop, downstream, false);
+    }
+    if (limiter.tryAcquire()) {
+      return acquire(loop, downstream, true);
+    }
+    Promise<Channel> promise = loop.newPromise();
+    if (waitingRoom != null && request != null &&
+      request.headers().contains(AdmissionHandler.ADMISSION_TOKEN_HEADER)) {
+      waitingRoom.enter(loop, this).addListener((FutureListener<DefaultUpstream>) future -> {
+        if (future.isSuccess()) {
+          future.resultNow().acquire(loop, downstream, true).addListener(new PromiseNotifier<>(promise));
+        } else {
+          promise.setFailure(future.cause());
+        }
+      });
+      return promise;
+    }
+    limiter.enqueue(loop).addListener(future -> {
+      if (future.isSuccess()) {
+        acquire(loop, downstream, true).addListener(new PromiseNotifier<>(promise));
+      } else {
+        promise.setFailure(future.cause());
+      }
+    });
+    return promise;
+  }
+
+  /**
+   * @param loop event loop of the pool, the downstream channel might not be registered
+   *             in an event loop of the proxy
+   */
+  private Future<Channel> acquire(EventLoop loop, Channel downstream, boolean permit) {
+    // an HTTP/2 stream closes by itself when the response is complete, it is not released
+    SimpleChannelPool pool = h2cPools != null ? null : poolMap.get(loop);
+    long startNanos = System.nanoTime();
+    pendingAcquires.increment();
+    Future<Channel> future = pool != null ?
+      pool.acquire(loop.newPromise()) : h2cPools.get(loop).acquire(loop.newPromise());
     future.addListener((FutureListener<Channel>) future1 -> {
-      if (future1.isSuccess()) {
+      pendingAcquires.decrement();
+      metrics.observeAcquire(this, System.nanoTime() - startNanos);
+      if (!future1.isSuccess()) {
+        if (permit) {
+          limiter.releaseWithoutSample();
+        }
+        // a timeout or full pending queue is our own limit and not an error of the target
+        if (!(future1.cause() instanceof TimeoutException) && !(future1.cause() instanceof IllegalStateException)) {
+          health.recordError();
+        }
+      } else {
         DownstreamProgress.progress(downstream, "upstream connection established");
         Channel ch = future1.resultNow();
         if (LOG.isTraceEnabled()) {
           LOG.trace(downstream, future1.resultNow(), "pool acquire complete isActive=" + ch.isActive() + " pipeline=" + ch.pipeline().names());
         }
         // we need to do this in the lister call back, to set the downstream
-        future1.resultNow().pipeline().replace("forward", "forward", new ForwardHandler(downstream, pool));
+        future1.resultNow().pipeline().replace("forward", "forward",
+          new ForwardHandler(downstream, pool, new Exchange(startNanos, permit)));
       }
     });
     return future;
   }
 
+  /** Pool that can open a connection without acquiring it */
+  private interface WarmUpPool {
+
+    void openIdle();
+
+  }
+
+  private class WarmUpSimpleChannelPool extends SimpleChannelPool implements WarmUpPool {
+
+    WarmUpSimpleChannelPool(Bootstrap bootstrap, ChannelPoolHandler handler, ChannelHealthChecker healthCheck) {
+      super(bootstrap, handler, healthCheck);
+    }
+
+    @Override
+    public void openIdle() {
+      offerWhenConnected(connectChannel(bootstrap()), this::offerChannel);
+    }
+
+  }
+
+  private class WarmUpFixedChannelPool extends FixedChannelPool implements WarmUpPool {
+
+    WarmUpFixedChannelPool(Bootstrap bootstrap, ChannelPoolHandler handler, ChannelHealthChecker healthCheck,
+                           AcquireTimeoutAction action, long acquireTimeoutMillis, int maxConnections,
+                           int maxPendingAcquires, boolean releaseHealthCheck) {
+      super(bootstrap, handler, healthCheck, action, acquireTimeoutMillis, maxConnections,
+        maxPendingAcquires, releaseHealthCheck);
+    }
+
+    @Override
+    public void openIdle() {
+      offerWhenConnected(connectChannel(bootstrap()), this::offerChannel);
+    }
+
+  }
+
+  /**
+   * Statistics of one request to this upstream. Runs within the event loop of the request.
+   */
+  private class Exchange implements ForwardHandler.ResponseObserver {
+
+    private final long startNanos;
+    private final boolean permit;
+    private long responseNanos;
+    private boolean serverError;
+
+    Exchange(long startNanos, boolean permit) {
+      this.startNanos = startNanos;
+      this.permit = permit;
+    }
+
+    @Override
+    public void responseReceived(HttpResponse response) {
+      responseNanos = System.nanoTime() - startNanos;
+      serverError = response.status().code() >= 500;
+      recordResponse(responseNanos, serverError);
+    }
+
+    @Override
+    public void released(boolean responseComplete) {
+      if (permit) {
+        limiter.release(responseNanos, responseComplete && !serverError);
+      }
+    }
+
+  }
+
+  /**
+   * Pool callbacks for the pool of one event loop. The callbacks run within the event loop,
+   * so the loop local counts need no synchronization.
+   */
+  private class LoopPoolHandler implements ChannelPoolHandler {
+
+    int open;
+    int inUse;
+
+    @Override
+    public void channelReleased(Channel ch) throws Exception {
+      inUse--;
+      inUseConnections.decrement();
+    }
+
+    @Override
+    public void channelAcquired(Channel ch) throws Exception {
+      inUse++;
+      inUseConnections.increment();
+    }
+
+    @Override
+    public void channelCreated(Channel ch) throws Exception {
+      open++;
+      openConnections.increment();
+      ch.closeFuture().addListener(future -> {
+        open--;
+        openConnections.decrement();
+      });
+      addHttpHandler(ch.pipeline());
+      ch.pipeline().addLast("forward", new ForwardHandler(null, null));
+    }
+
+  }
+
   private ChannelFuture connectToUpstream(Channel downstream) {
-    Bootstrap  bs = bootstrap.clone()
+    Bootstrap  bs = bootstrap.clone(downstream.eventLoop())
       .handler(new ChannelInitializer<SocketChannel>() {
         @Override
         public void initChannel(SocketChannel ch) {
@@ -0,0 +1,660 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Second tier of the {@link ResponseCache} in memory mapped segment files. Records are only
+ * appended to the active segment, the oldest segment is deleted when the disk budget is
+ * exceeded. The in memory index holds the position of each record and the values it varies
+ * on, status and headers are read from the mapping when serving.
+ *
+ * <p>A record starts with a fixed header, followed by the header block and the body:
+ * <pre>
+ *   int magic, int recordLength, long storedMillis, long expiresMillis, long initialAgeMillis,
+ *   int headerBlockLength, int bodyLength, long staleWhileRevalidateMillis, long staleIfErrorMillis
+ * </pre>
+ * The magic is written last, so a record that was not written completely ends the scan
+ * when the index is rebuilt at startup. Appends run on a single writer thread, lookups
+ * from the event loops only read the index.
+ *
+ * @author Jens Wilke
+ */
+class DiskCache {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(DiskCache.class);
+  static final int MAGIC = 0x53504331;
+  static final int RECORD_HEADER_LENGTH = 56;
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String[] NO_STRINGS = new String[0];
+  private static final DiskEntry[] NO_ENTRIES = new DiskEntry[0];
+  /** Pending writes are dropped if more bytes are queued for the writer */
+  private static final long MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final int maxEntryBytes;
+  private final ConcurrentMap<String, DiskEntry[]> index = new ConcurrentHashMap<>();
+  private final CacheIndex purgeIndex = new CacheIndex();
+  /** Purge sequence of the {@link ResponseCache}, writes queued before a purge are dropped */
+  private final LongSupplier purgeSequence;
+  /** Segments, oldest first, only accessed by the writer thread after startup */
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "cache-disk-writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final AtomicLong queuedBytes = new AtomicLong();
+  private final AtomicInteger entryCount = new AtomicInteger();
+  private final AtomicLong droppedWrites = new AtomicLong();
+  private volatile long usedBytes;
+  private Segment active;
+  private long nextSequence;
+
+  DiskCache(CacheConfig cfg, LongSupplier purgeSequence) throws IOException {
+    this.purgeSequence = purgeSequence;
+    directory = Path.of(cfg.diskDirectory());
+    segmentBytes = (cfg.diskSegmentMegabytes() > 0 ? cfg.diskSegmentMegabytes() : 64) * 1024 * 1024;
+    long maxBytes = (cfg.diskMaxMegabytes() > 0 ? cfg.diskMaxMegabytes() : 4096) * 1024L * 1024L;
+    maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+    long maxEntry = (cfg.diskMaxEntryKilobytes() > 0 ? cfg.diskMaxEntryKilobytes() : 16 * 1024) * 1024L;
+    maxEntryBytes = (int) Math.min(maxEntry, segmentBytes - RECORD_HEADER_LENGTH - 64 * 1024);
+    Files.createDirectories(directory);
+    recover();
+  }
+
+  int maxEntryBytes() { return maxEntryBytes; }
+
+  int entryCount() { return entryCount.get(); }
+
+  long usedBytes() { return usedBytes; }
+
+  long droppedWrites() { return droppedWrites.get(); }
+
+  CacheIndex purgeIndex() { return purgeIndex; }
+
+  DiskEntry lookup(String key, HttpRequest request) {
+    DiskEntry[] variants = index.get(key);
+    if (variants == null) {
+      return null;
+    }
+    for (DiskEntry entry : variants) {
+      if (CacheEntry.matches(entry.varyNames, entry.varyValues, request)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Queue the entry for writing, if not present on disk already. Takes a retained duplicate
+   * of the content, so the caller may release the entry. The write is dropped, if the cache
+   * is purged before it is published.
+   *
+   * @param purgeSequence purge sequence when the response was requested or the entry evicted
+   */
+  void store(CacheEntry entry, long purgeSequence) {
+    int bodyLength = entry.contentLength;
+    if (bodyLength > maxEntryBytes || isStored(entry)) {
+      return;
+    }
+    if (queuedBytes.addAndGet(bodyLength) > MAX_QUEUED_BYTES) {
+      queuedBytes.addAndGet(-bodyLength);
+      droppedWrites.incrementAndGet();
+      return;
+    }
+    ByteBuf content = entry.retainedContent();
+    if (content == null) {
+      queuedBytes.addAndGet(-bodyLength);
+      return;
+    }
+    writer.execute(() -> {
+      try {
+        append(entry, content, purgeSequence);
+      } catch (Throwable t) {
+        LOG.error("Cannot write cache entry to disk: " + entry.key, t);
+      } finally {
+        content.release();
+        queuedBytes.addAndGet(-bodyLength);
+      }
+    });
+  }
+
+  /**
+   * Wait until the queued writes are done.
+   */
+  void flush() throws InterruptedException, ExecutionException {
+    writer.submit(() -> { }).get();
+  }
+
+  private boolean isStored(CacheEntry entry) {
+    DiskEntry[] variants = index.get(entry.key);
+    if (variants != null) {
+      for (DiskEntry e : variants) {
+        if (e.storedMillis == entry.storedMillis && Arrays.equals(e.varyValues, entry.varyValues)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Status and headers of the entry, read from the mapped segment.
+   */
+  HttpResponse readResponse(DiskEntry entry) {
+    ByteBuf data = entry.segment.data;
+    int index = entry.offset + RECORD_HEADER_LENGTH;
+    int[] pos = { index };
+    readString(data, pos);
+    int code = data.getShort(pos[0]);
+    pos[0] += 2;
+    String reason = readString(data, pos);
+    int varyCount = data.getShort(pos[0]);
+    pos[0] += 2;
+    for (int i = 0; i < varyCount; i++) {
+      readString(data, pos);
+      if (data.getByte(pos[0]++) != 0) {
+        readString(data, pos);
+      }
+    }
+    int headerCount = data.getInt(pos[0]);
+    pos[0] += 4;
+    HttpHeaders headers = new DefaultHttpHeaders();
+    for (int i = 0; i < headerCount; i++) {
+      String name = readString(data, pos);
+      headers.add(name, readString(data, pos));
+    }
+    return new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(code, reason), headers);
+  }
+
+  /**
+   * Body as a region of the segment file for zero copy transfer to a plain connection,
+   * or {@code null} if the segment was deleted concurrently.
+   */
+  FileRegion fileRegion(DiskEntry entry) {
+    try {
+      entry.segment.retain();
+    } catch (IllegalReferenceCountException e) {
+      return null;
+    }
+    return new SegmentRegion(entry.segment, entry.bodyOffset, entry.bodyLength);
+  }
+
+  /**
+   * Body as a buffer backed by the mapping, for TLS connections where the body needs to be
+   * read to encrypt it. The mapping stays valid while the buffer is referenced, even if
+   * the segment file is deleted.
+   */
+  ByteBuf mappedContent(DiskEntry entry) {
+    if (entry.bodyLength == 0) {
+      return Unpooled.EMPTY_BUFFER;
+    }
+    ByteBuffer slice = entry.segment.mapped.slice(entry.bodyOffset, entry.bodyLength).asReadOnlyBuffer();
+    return Unpooled.wrappedBuffer(slice);
+  }
+
+  /**
+   * Update the freshness after upstream confirmed the entry is not modified. The timing
+   * fields of the record are overwritten in the mapping, so the refresh survives a restart.
+   * The stored headers are not changed. A removed entry is not updated, a purged record
+   * must not become valid again.
+   */
+  void refresh(DiskEntry entry, long initialAgeMillis, long storedMillis, long expiresMillis,
+               long staleWhileRevalidateMillis, long staleIfErrorMillis) {
+    DiskEntry[] variants = index.get(entry.key);
+    if (variants == null || !Arrays.asList(variants).contains(entry)) {
+      return;
+    }
+    entry.initialAgeMillis = initialAgeMillis;
+    entry.storedMillis = storedMillis;
+    entry.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+    entry.staleIfErrorMillis = staleIfErrorMillis;
+    entry.expiresMillis = expiresMillis;
+    ByteBuf data = entry.segment.data;
+    int offset = entry.offset;
+    data.setLong(offset + 8, storedMillis);
+    data.setLong(offset + 16, expiresMillis);
+    data.setLong(offset + 24, initialAgeMillis);
+    data.setLong(offset + 40, staleWhileRevalidateMillis);
+    data.setLong(offset + 48, staleIfErrorMillis);
+  }
+
+  private void append(CacheEntry entry, ByteBuf content, long purgeSequence) throws IOException {
+    ByteBuf header = Unpooled.buffer(256);
+    try {
+      writeString(header, entry.key);
+      header.writeShort(entry.status.code());
+      writeString(header, entry.status.reasonPhrase());
+      header.writeShort(entry.varyNames.length);
+      for (int i = 0; i < entry.varyNames.length; i++) {
+        writeString(header, entry.varyNames[i]);
+        if (entry.varyValues[i] == null) {
+          header.writeByte(0);
+        } else {
+          header.writeByte(1);
+          writeString(header, entry.varyValues[i]);
+        }
+      }
+      header.writeInt(entry.headers.size());
+      for (Iterator<Map.Entry<String, String>> it = entry.headers.iteratorAsString(); it.hasNext(); ) {
+        Map.Entry<String, String> h = it.next();
+        writeString(header, h.getKey());
+        writeString(header, h.getValue());
+      }
+      int headerLength = header.readableBytes();
+      int bodyLength = content.readableBytes();
+      long recordLength = (long) RECORD_HEADER_LENGTH + headerLength + bodyLength;
+      int alignedLength = (int) ((recordLength + 7) & ~7L);
+      if (alignedLength > segmentBytes) {
+        return;
+      }
+      if (active == null || active.writeOffset + alignedLength > segmentBytes) {
+        active = newSegment();
+      }
+      Segment segment = active;
+      int offset = segment.writeOffset;
+      ByteBuf data = segment.data;
+      data.setInt(offset + 4, (int) recordLength);
+      data.setLong(offset + 8, entry.storedMillis);
+      data.setLong(offset + 16, entry.expiresMillis);
+      data.setLong(offset + 24, entry.initialAgeMillis);
+      data.setInt(offset + 32, headerLength);
+      data.setInt(offset + 36, bodyLength);
+      data.setLong(offset + 40, entry.staleWhileRevalidateMillis);
+      data.setLong(offset + 48, entry.staleIfErrorMillis);
+      data.setBytes(offset + RECORD_HEADER_LENGTH, header, header.readerIndex(), headerLength);
+      int bodyOffset = offset + RECORD_HEADER_LENGTH + headerLength;
+      data.setBytes(bodyOffset, content, content.readerIndex(), bodyLength);
+      data.setInt(offset, MAGIC);
+      segment.writeOffset = offset + alignedLength;
+      DiskEntry diskEntry = new DiskEntry(entry.key, entry.varyNames, entry.varyValues, entry.tags, segment, offset,
+        bodyOffset, bodyLength, entry.storedMillis, entry.expiresMillis, entry.initialAgeMillis,
+        entry.staleWhileRevalidateMillis, entry.staleIfErrorMillis);
+      if (!publish(diskEntry, purgeSequence)) {
+        expire(diskEntry);
+      }
+    } finally {
+      header.release();
+    }
+  }
+
+  /**
+   * Add the entry to the index, unless the cache was purged after the write was queued.
+   * The sequence is checked within the update of the key, so a purge of the key either
+   * removes the entry or the entry is not added.
+   *
+   * @return {@code false} if the entry was purged
+   */
+  private boolean publish(DiskEntry entry, long purgeSequence) {
+    List<DiskEntry> replaced = new ArrayList<>(1);
+    boolean[] purged = new boolean[1];
+    index.compute(entry.key, (k, variants) -> {
+      if (purgeSequence != this.purgeSequence.getAsLong()) {
+        purged[0] = true;
+        return variants;
+      }
+      List<DiskEntry> list = new ArrayList<>(variants != null ? variants.length + 1 : 1);
+      if (variants != null) {
+        for (DiskEntry e : variants) {
+          if (Arrays.equals(e.varyNames, entry.varyNames) && Arrays.equals(e.varyValues, entry.varyValues)) {
+            replaced.add(e);
+          } else {
+            list.add(e);
+          }
+        }
+      }
+      list.add(entry);
+      DiskEntry[] result = list.toArray(NO_ENTRIES);
+      purgeIndex.update(k, variants, result, e -> e.tags);
+      return result;
+    });
+    if (purged[0]) {
+      return false;
+    }
+    entryCount.addAndGet(1 - replaced.size());
+    entry.segment.entries.add(entry);
+    return true;
+  }
+
+  /**
+   * Remove the entry from the index. The record stays in its segment until the
+   * segment is deleted.
+   */
+  void remove(DiskEntry entry) {
+    boolean[] removed = new boolean[1];
+    index.computeIfPresent(entry.key, (k, variants) -> {
+      List<DiskEntry> list = new ArrayList<>(variants.length);
+      for (DiskEntry e : variants) {
+        if (e != entry) {
+          list.add(e);
+        } else {
+          removed[0] = true;
+        }
+      }
+      DiskEntry[] result = list.isEmpty() ? null : list.toArray(NO_ENTRIES);
+      purgeIndex.update(k, variants, result, e -> e.tags);
+      return result;
+    });
+    if (removed[0]) {
+      entryCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Remove all variants of the key. The records are marked as expired in the mapping,
+   * so they are not recovered after a restart.
+   *
+   * @return number of removed entries
+   */
+  int purge(String key) {
+    DiskEntry[][] removed = new DiskEntry[1][];
+    index.computeIfPresent(key, (k, variants) -> {
+      removed[0] = variants;
+      purgeIndex.update(k, variants, null, e -> e.tags);
+      return null;
+    });
+    if (removed[0] == null) {
+      return 0;
+    }
+    for (DiskEntry e : removed[0]) {
+      expire(e);
+    }
+    entryCount.addAndGet(-removed[0].length);
+    return removed[0].length;
+  }
+
+  /**
+   * Mark the record as expired in the mapping, so it is not recovered after a restart.
+   */
+  private static void expire(DiskEntry e) {
+    ByteBuf data = e.segment.data;
+    data.setLong(e.offset + 16, 0);
+    data.setLong(e.offset + 40, 0);
+    data.setLong(e.offset + 48, 0);
+  }
+
+  private Segment newSegment() throws IOException {
+    while (segments.size() >= maxSegments) {
+      deleteSegment(segments.pollFirst());
+    }
+    long sequence = nextSequence++;
+    Path path = directory.resolve(String.format("%016x", sequence) + SEGMENT_SUFFIX);
+    Segment segment = new Segment(path, segmentBytes);
+    segments.addLast(segment);
+    usedBytes = (long) segments.size() * segmentBytes;
+    return segment;
+  }
+
+  private void deleteSegment(Segment segment) {
+    for (DiskEntry e : segment.entries) {
+      remove(e);
+    }
+    segment.entries.clear();
+    segment.release();
+    usedBytes = (long) segments.size() * segmentBytes;
+  }
+
+  /**
+   * Rebuild the index by scanning the record headers of the existing segments.
+   * Records that expired and may not be served stale are skipped.
+   */
+  private void recover() throws IOException {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files = list.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+    }
+    long now = System.currentTimeMillis();
+    for (Path path : files) {
+      String name = path.getFileName().toString();
+      long sequence;
+      try {
+        sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (Files.size(path) != segmentBytes) {
+        Files.delete(path);
+        continue;
+      }
+      Segment segment = new Segment(path, segmentBytes);
+      ByteBuf data = segment.data;
+      int offset = 0;
+      while (offset + RECORD_HEADER_LENGTH <= segmentBytes && data.getInt(offset) == MAGIC) {
+        long recordLength = data.getInt(offset + 4);
+        int headerLength = data.getInt(offset + 32);
+        int bodyLength = data.getInt(offset + 36);
+        if (headerLength < 0 || bodyLength < 0 ||
+          recordLength != (long) RECORD_HEADER_LENGTH + headerLength + bodyLength ||
+          offset + recordLength > segmentBytes) {
+          break;
+        }
+        DiskEntry entry = readIndexEntry(segment, offset, headerLength, bodyLength);
+        if (entry.isUsable(now)) {
+          publish(entry, purgeSequence.getAsLong());
+        }
+        offset += (int) ((recordLength + 7) & ~7L);
+      }
+      segment.writeOffset = offset;
+      segments.addLast(segment);
+      nextSequence = sequence + 1;
+    }
+    while (segments.size() > maxSegments) {
+      deleteSegment(segments.pollFirst());
+    }
+    active = segments.peekLast();
+    usedBytes = (long) segments.size() * segmentBytes;
+    if (!segments.isEmpty()) {
+      LOG.info("Disk cache recovered " + entryCount.get() + " entries from " + segments.size() + " segments");
+    }
+  }
+
+  private static DiskEntry readIndexEntry(Segment segment, int offset, int headerLength, int bodyLength) {
+    ByteBuf data = segment.data;
+    int[] pos = { offset + RECORD_HEADER_LENGTH };
+    String key = readString(data, pos);
+    pos[0] += 2;
+    readString(data, pos);
+    int varyCount = data.getShort(pos[0]);
+    pos[0] += 2;
+    String[] varyNames = varyCount == 0 ? NO_STRINGS : new String[varyCount];
+    String[] varyValues = varyCount == 0 ? NO_STRINGS : new String[varyCount];
+    for (int i = 0; i < varyCount; i++) {
+      varyNames[i] = readString(data, pos);
+      if (data.getByte(pos[0]++) != 0) {
+        varyValues[i] = readString(data, pos);
+      }
+    }
+    String[] tags = CacheIndex.NO_TAGS;
+    int headerCount = data.getInt(pos[0]);
+    pos[0] += 4;
+    for (int i = 0; i < headerCount; i++) {
+      String name = readString(data, pos);
+      String value = readString(data, pos);
+      if (CacheIndex.SURROGATE_KEY.equalsIgnoreCase(name)) {
+        tags = CacheIndex.tags(value);
+      }
+    }
+    return new DiskEntry(key, varyNames, varyValues, tags, segment, offset,
+      offset + RECORD_HEADER_LENGTH + headerLength, bodyLength,
+      data.getLong(offset + 8), data.getLong(offset + 16), data.getLong(offset + 24),
+      data.getLong(offset + 40), data.getLong(offset + 48));
+  }
+
+  private static void writeString(ByteBuf buf, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    buf.writeInt(bytes.length);
+    buf.writeBytes(bytes);
+  }
+
+  private static String readString(ByteBuf buf, int[] pos) {
+    int length = buf.getInt(pos[0]);
+    String s = buf.toString(pos[0] + 4, length, StandardCharsets.UTF_8);
+    pos[0] += 4 + length;
+    return s;
+  }
+
+  /**
+   * Index entry, the position of a record within its segment
+   */
+  static final class DiskEntry {
+
+    final String key;
+    final String[] varyNames;
+    final String[] varyValues;
+    /** Surrogate key tags, for purging */
+    final String[] tags;
+    final Segment segment;
+    final int offset;
+    final int bodyOffset;
+    final int bodyLength;
+    // updated by refresh
+    volatile long storedMillis;
+    volatile long expiresMillis;
+    volatile long initialAgeMillis;
+    volatile long staleWhileRevalidateMillis;
+    volatile long staleIfErrorMillis;
+
+    DiskEntry(String key, String[] varyNames, String[] varyValues, String[] tags, Segment segment,
+              int offset, int bodyOffset, int bodyLength, long storedMillis, long expiresMillis,
+              long initialAgeMillis, long staleWhileRevalidateMillis, long staleIfErrorMillis) {
+      this.key = key;
+      this.varyNames = varyNames;
+      this.varyValues = varyValues;
+      this.tags = tags;
+      this.segment = segment;
+      this.offset = offset;
+      this.bodyOffset = bodyOffset;
+      this.bodyLength = bodyLength;
+      this.storedMillis = storedMillis;
+      this.expiresMillis = expiresMillis;
+      this.initialAgeMillis = initialAgeMillis;
+      this.staleWhileRevalidateMillis = staleWhileRevalidateMillis;
+      this.staleIfErrorMillis = staleIfErrorMillis;
+    }
+
+    boolean isFresh(long nowMillis) {
+      return nowMillis < expiresMillis;
+    }
+
+    boolean isStaleWhileRevalidate(long nowMillis) {
+      return nowMillis < expiresMillis + staleWhileRevalidateMillis;
+    }
+
+    boolean isStaleIfError(long nowMillis) {
+      return nowMillis < expiresMillis + staleIfErrorMillis;
+    }
+
+    boolean isUsable(long nowMillis) {
+      return nowMillis < expiresMillis + Math.max(staleWhileRevalidateMillis, staleIfErrorMillis);
+    }
+
+    long ageSeconds(long nowMillis) {
+      return (initialAgeMillis + Math.max(0, nowMillis - storedMillis)) / 1000;
+    }
+
+  }
+
+  /**
+   * Segment file with its mapping. The file channel is needed for file regions in flight,
+   * it is closed and the file deleted when the last reference is released.
+   */
+  static final class Segment extends AbstractReferenceCounted {
+
+    final Path path;
+    final FileChannel channel;
+    final MappedByteBuffer mapped;
+    final ByteBuf data;
+    /** Only accessed by the writer thread */
+    final List<DiskEntry> entries = new ArrayList<>();
+    int writeOffset;
+
+    Segment(Path path, int size) throws IOException {
+      this.path = path;
+      channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException e) {
+        channel.close();
+        throw e;
+      }
+      data = Unpooled.wrappedBuffer(mapped);
+    }
+
+    @Override
+    protected void deallocate() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        LOG.error("Cannot delete cache segment " + path, e);
+      }
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+      return this;
+    }
+
+  }
+
+  /**
+   * Region of a segment file, keeps the segment referenced instead of closing the file channel.
+   */
+  static final class SegmentRegion extends DefaultFileRegion {
+
+    private final Segment segment;
+
+    SegmentRegion(Segment segment, long position, long count) {
+      super(segment.channel, position, count);
+      this.segment = segment;
+    }
+
+    @Override
+    protected void deallocate() {
+      segment.release();
+    }
+
+  }
+
+}
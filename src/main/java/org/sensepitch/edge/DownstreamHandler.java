@@ -7,7 +7,6 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -21,7 +20,10 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.quic.QuicStreamChannel;
 import io.netty.handler.ssl.NotSslRecordException;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.Future;
@@ -30,6 +32,7 @@ import io.netty.util.concurrent.FutureListener;
 import javax.net.ssl.SSLHandshakeException;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Jens Wilke
@@ -62,13 +65,13 @@ public class DownstreamHandler extends ChannelDuplexHandler {
       }
       request = (HttpRequest) msg;
       if (DEBUG.isTraceEnabled()) {
-        String clientIP = ((SocketChannel) ctx.channel()).remoteAddress().getAddress().getHostAddress();
+        String clientIP = ProxyUtil.extractRemoteIp(ctx);
         DEBUG.trace(ctx.channel(), msg.getClass().getName() + " " + clientIP + " -> " + request.method() + " " + request.uri());
       }
       requestReceived = true;
       DownstreamProgress.progress(ctx.channel(), "request received, selecting upstream");
       Upstream upstream = upstreamRouter.selectUpstream(request);
-      upstreamChannelFuture = upstream.connect(ctx);
+      upstreamChannelFuture = upstream.connect(ctx, request);
       augmentHeadersAndForwardRequest(ctx, request);
     } else if (msg instanceof LastHttpContent) {
       // upstream might complete the response before the client sent the complete request
@@ -83,11 +86,15 @@ public class DownstreamHandler extends ChannelDuplexHandler {
       }
     } else if (msg instanceof HttpContent) {
       upstreamChannelFuture.addListener((FutureListener<Channel>)
-        future -> forwardContent(future, (LastHttpContent) msg));
+        future -> forwardContent(future, (HttpContent) msg));
     }
   }
 
-  // runs in another tread!
+  /**
+   * Called when the upstream channel is acquired. The upstream channel is registered on the
+   * same event loop as the downstream channel, so this runs in the downstream thread and
+   * writes directly, without a task handoff.
+   */
   void forwardLastContentAndFlush(ChannelHandlerContext ctx, Future<Channel> future, LastHttpContent msg) {
     if (future.isSuccess()) {
       String remoteIp = ProxyUtil.extractRemoteIp(ctx);
@@ -111,6 +118,21 @@ public class DownstreamHandler extends ChannelDuplexHandler {
           return;
         }
       }
+      // admitted user could not get through the waiting room, keep the connection, the page refreshes
+      if (cause instanceof WaitingRoom.WaitingRoomFullException waitingRoomFull) {
+        ctx.writeAndFlush(waitingRoomFull.holdingPageResponse());
+        return;
+      }
+      // upstream is at its adaptive concurrency limit, shed load instead of letting requests pile up
+      if (cause instanceof ConcurrencyLimiter.LimitExceededException) {
+        completeWithError(ctx, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        return;
+      }
+      // acquire timeout of the bounded pool, all connections to upstream are busy
+      if (cause instanceof TimeoutException) {
+        completeWithError(ctx, HttpResponseStatus.valueOf(509, "Bandwidth Limit Exceeded"));
+        return;
+      }
       DEBUG.error(ctx.channel(), "unknown upstream connection problem", future.cause());
       if (cause.getMessage() != null) {
         completeWithError(ctx, HttpResponseStatus.valueOf(502, "Upstream connection problem: " + cause));
@@ -120,7 +142,7 @@ public class DownstreamHandler extends ChannelDuplexHandler {
     }
   }
 
-  // runs in another tread!
+  // runs in the downstream event loop, see forwardLastContentAndFlush
   void forwardContent(Future<Channel> future, HttpContent msg) {
     if (future.isSuccess()) {
       future.resultNow().write(msg);
@@ -173,8 +195,7 @@ public class DownstreamHandler extends ChannelDuplexHandler {
    * @see SniToHostHeader
    */
   private static void addProxyHeaders(ChannelHandlerContext ctx, HttpRequest request) {
-    if (ctx.channel().remoteAddress() instanceof InetSocketAddress) {
-      InetSocketAddress addr = (InetSocketAddress) ctx.channel().remoteAddress();
+    if (ProxyUtil.remoteSocketAddress(ctx.channel()) instanceof InetSocketAddress addr) {
       request.headers().set("X-Forwarded-For", addr.getAddress().getHostAddress());
     }
     request.headers().set("X-Forwarded-Proto", "https");
@@ -264,6 +285,20 @@ public class DownstreamHandler extends ChannelDuplexHandler {
 
 
 
+  /**
+   * Handlers added after protocol negotiation don't see the handshake event. An HTTP/2
+   * or HTTP/3 stream exists only after the TLS handshake of its connection completed.
+   */
+  @Override
+  public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+    SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+    if (ctx.channel() instanceof Http2StreamChannel || ctx.channel() instanceof QuicStreamChannel ||
+      (sslHandler != null && sslHandler.handshakeFuture().isSuccess())) {
+      sslHandshakeComplete = true;
+    }
+    super.handlerAdded(ctx);
+  }
+
   @Override
   public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
     if (event instanceof SslHandshakeCompletionEvent sslEvent) {
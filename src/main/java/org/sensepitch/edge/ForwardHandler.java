@@ -12,6 +12,9 @@ import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.timeout.IdleStateEvent;
+
+import java.nio.channels.ClosedChannelException;
 
 /**
  * Receive response from upstream and pass it on downstream
@@ -23,11 +26,19 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
   static ProxyLogger DEBUG = ProxyLogger.get(ForwardHandler.class);
   private Channel downstream;
   private final ChannelPool pool;
+  private final ResponseObserver observer;
   private boolean closeConnection =  false;
+  private boolean released;
+  private boolean responseComplete;
 
   public ForwardHandler(Channel downstream, ChannelPool pool) {
+    this(downstream, pool, ResponseObserver.NONE);
+  }
+
+  public ForwardHandler(Channel downstream, ChannelPool pool, ResponseObserver observer) {
     this.downstream = downstream;
     this.pool = pool;
+    this.observer = observer;
   }
 
   @Override
@@ -38,6 +49,7 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
     }
     if (msg instanceof HttpResponse) {
       HttpResponse response = (HttpResponse) msg;
+      observer.responseReceived(response);
       String connection = response.headers().get(HttpHeaderNames.CONNECTION);
       closeConnection = connection != null && connection.equalsIgnoreCase("close");
       // if message contains response and content, write below
@@ -51,15 +63,14 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
       // The write of an empty last content will fail regularly, since the client might have closed
       // the connection already. Maybe introduce error handling for non empty last contents and requests only.
       downstream.writeAndFlush(msg, downstream.voidPromise());
+      // disconnect from downstream, if upstream sends us more data we don't expect it
+      downstream = null;
+      responseComplete = true;
       if (closeConnection) {
         ctx.channel().close();
       }
-      if (pool != null) {
-        // disconnect from downstream, if upstream sends us more data we don't expect it
-        downstream = null;
-        // even if closed, we should release it
-        pool.release(ctx.channel(), ctx.voidPromise());
-      }
+      // even if closed, we should release it
+      release(ctx);
     } else if (msg instanceof HttpContent) {
       downstream.write(msg, downstream.voidPromise());
     }
@@ -73,7 +84,10 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
   public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
     DEBUG.trace(ctx.channel(), "channelWritabilityChanged, isWritable=" + ctx.channel().isWritable());
     if (ctx.channel().isWritable()) {
-      downstream.setOption(ChannelOption.AUTO_READ, true);
+      // the window of an HTTP/2 stream may open after the response completed
+      if (downstream != null) {
+        downstream.setOption(ChannelOption.AUTO_READ, true);
+      }
     } else {
       // FIXME: in test we never get the isWritable=true
       // downstream.setOption(ChannelOption.AUTO_READ, false);
@@ -91,6 +105,70 @@ public class ForwardHandler extends ChannelInboundHandlerAdapter {
       downstream = null;
     }
     ctx.close();
+    release(ctx);
+  }
+
+  /**
+   * Close connections that are idle in the pool for longer than the configured
+   * idle timeout, before the upstream server closes it and a request might fail.
+   */
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+    if (evt instanceof IdleStateEvent) {
+      if (downstream == null) {
+        ctx.close();
+      }
+      return;
+    }
+    super.userEventTriggered(ctx, evt);
+  }
+
+  /**
+   * Upstream closed the connection while a response is expected. Report to downstream and
+   * give the connection back to the pool, so it is not counted as in use any more.
+   */
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (downstream != null) {
+      downstream.pipeline().fireExceptionCaught(new UpstreamException(new ClosedChannelException()));
+      downstream = null;
+    }
+    release(ctx);
+    super.channelInactive(ctx);
+  }
+
+  /**
+   * Release to the pool once. The pool discards the channel if it is closed.
+   */
+  private void release(ChannelHandlerContext ctx) {
+    if (released) {
+      return;
+    }
+    released = true;
+    observer.released(responseComplete);
+    if (pool != null) {
+      pool.release(ctx.channel(), ctx.voidPromise());
+    }
+  }
+
+  /**
+   * Gets notified about the upstream response, e.g. to record upstream statistics.
+   * Called within the upstream event loop.
+   */
+  interface ResponseObserver {
+
+    ResponseObserver NONE = response -> { };
+
+    void responseReceived(HttpResponse response);
+
+    /**
+     * Called once, when the upstream connection is not used for the request any more.
+     *
+     * @param responseComplete false, if the upstream connection failed or closed before the
+     *                         response was received completely
+     */
+    default void released(boolean responseComplete) { }
+
   }
 
   static class UpstreamException extends ChannelException {
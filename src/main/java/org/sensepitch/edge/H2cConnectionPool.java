@@ -0,0 +1,302 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2Connection;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/2 cleartext connections of one event loop to an upstream target, with prior
+ * knowledge, so without upgrade. Each request gets its own stream, which is a child
+ * channel converting between the HTTP/1.1 message objects and HTTP/2 frames. So the
+ * stream channel is used by {@link DownstreamHandler} and {@link ForwardHandler} like a
+ * pooled HTTP/1.1 connection.
+ *
+ * <p>A request goes to the connection with the fewest active streams. Another connection
+ * is opened, if all connections are at the stream limit, which is the lower of the
+ * configured limit and the limit announced by the upstream. If the connection limit is
+ * reached, requests wait for a stream to close.
+ *
+ * <p>Flow control: reading of a stream channel is switched off, when the downstream
+ * channel is not writable. The response data stays unconsumed and no window update is
+ * sent, so the upstream stops sending on this stream while other streams continue.
+ *
+ * <p>All state is only accessed from the event loop.
+ *
+ * @author Jens Wilke
+ */
+class H2cConnectionPool {
+
+  static final ProxyLogger LOG = ProxyLogger.get(H2cConnectionPool.class);
+
+  /** Initial window of each stream, the data buffered per response if downstream is slow */
+  static final int STREAM_WINDOW = 256 * 1024;
+  /** Window for all streams of a connection */
+  static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+
+  private final Bootstrap bootstrap;
+  private final EventLoop loop;
+  private final int maxConnections;
+  private final int maxStreams;
+  private final int maxPendingAcquires;
+  private final long acquireTimeoutMillis;
+  private final LongAdder openConnections;
+  private final LongAdder inUseConnections;
+  private final LongAdder activeStreams;
+  private final List<Connection> connections = new ArrayList<>();
+  private final ArrayDeque<Promise<Channel>> waiters = new ArrayDeque<>();
+  private int connecting;
+
+  /**
+   * @param maxConnections maximum connections of this loop, 0 means unlimited
+   * @param acquireTimeoutMillis time a request waits for a stream, 0 or negative means no timeout
+   * @param inUseConnections counts connections with active streams
+   */
+  H2cConnectionPool(Bootstrap bootstrap, EventLoop loop, int maxConnections, int maxStreams,
+                    int maxPendingAcquires, long acquireTimeoutMillis, int idleTimeoutSeconds,
+                    LongAdder openConnections, LongAdder inUseConnections, LongAdder activeStreams) {
+    this.loop = loop;
+    this.maxConnections = maxConnections;
+    this.maxStreams = maxStreams > 0 ? maxStreams : 100;
+    this.maxPendingAcquires = maxPendingAcquires;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.openConnections = openConnections;
+    this.inUseConnections = inUseConnections;
+    this.activeStreams = activeStreams;
+    this.bootstrap = bootstrap.clone(loop).handler(new ChannelInitializer<Channel>() {
+      @Override
+      protected void initChannel(Channel ch) {
+        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient()
+          .initialSettings(Http2Settings.defaultSettings().initialWindowSize(STREAM_WINDOW))
+          .build());
+        // streams initiated by upstream, like push promises, are not accepted
+        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+        if (idleTimeoutSeconds > 0) {
+          ch.pipeline().addLast(new IdleStateHandler(0, 0, idleTimeoutSeconds));
+        }
+        ch.pipeline().addLast(new ConnectionHandler());
+      }
+    });
+  }
+
+  /**
+   * Open a stream on a connection with free capacity. The stream channel has a placeholder
+   * {@code forward} handler that is replaced when it is used for a request.
+   */
+  Future<Channel> acquire(Promise<Channel> promise) {
+    Connection connection = available();
+    if (connection != null) {
+      openStream(connection, promise);
+      return promise;
+    }
+    if (maxPendingAcquires > 0 && waiters.size() >= maxPendingAcquires) {
+      // same message as the fixed channel pool, see DownstreamHandler
+      promise.setFailure(new IllegalStateException("Too many outstanding acquire operations"));
+      return promise;
+    }
+    waiters.add(promise);
+    if (acquireTimeoutMillis > 0) {
+      ScheduledFuture<?> timeout = loop.schedule(() -> {
+        if (waiters.remove(promise)) {
+          promise.tryFailure(new TimeoutException("Acquire timeout, " + acquireTimeoutMillis + "ms"));
+        }
+      }, acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+      promise.addListener(future -> timeout.cancel(false));
+    }
+    if (connecting == 0 && (maxConnections <= 0 || connections.size() < maxConnections)) {
+      connect();
+    }
+    return promise;
+  }
+
+  /**
+   * Open connections in the background, so at least the given number is available.
+   */
+  void ensureConnections(int count) {
+    while (connections.size() + connecting < count) {
+      connect();
+    }
+  }
+
+  private Connection available() {
+    Connection best = null;
+    for (Connection connection : connections) {
+      if (connection.hasCapacity() && (best == null || connection.streams < best.streams)) {
+        best = connection;
+      }
+    }
+    return best;
+  }
+
+  private void connect() {
+    connecting++;
+    ChannelFuture future = bootstrap.connect();
+    future.addListener((ChannelFutureListener) f -> {
+      connecting--;
+      if (!f.isSuccess()) {
+        LOG.trace("h2c connect failed: " + f.cause());
+        if (connecting == 0 && available() == null) {
+          Promise<Channel> waiter;
+          while ((waiter = waiters.poll()) != null) {
+            waiter.tryFailure(f.cause());
+          }
+        }
+        return;
+      }
+      Channel channel = f.channel();
+      Connection connection = new Connection(channel, channel.pipeline().get(Http2FrameCodec.class).connection());
+      connections.add(connection);
+      openConnections.increment();
+      channel.closeFuture().addListener(closed -> {
+        connections.remove(connection);
+        openConnections.decrement();
+        // waiters need another connection
+        if (!waiters.isEmpty() && connecting == 0) {
+          connect();
+        }
+      });
+      serveWaiters();
+    });
+  }
+
+  private void serveWaiters() {
+    Connection connection;
+    while (!waiters.isEmpty() && (connection = available()) != null) {
+      openStream(connection, waiters.poll());
+    }
+    if (!waiters.isEmpty() && connecting == 0 && (maxConnections <= 0 || connections.size() < maxConnections)) {
+      connect();
+    }
+  }
+
+  private void openStream(Connection connection, Promise<Channel> promise) {
+    connection.streamOpened();
+    new Http2StreamChannelBootstrap(connection.channel)
+      .handler(new ChannelInitializer<Http2StreamChannel>() {
+        @Override
+        protected void initChannel(Http2StreamChannel ch) {
+          ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+          ch.pipeline().addLast(Http2Ingress.REMOVE_EXTENSION_HEADERS);
+          ch.pipeline().addLast("forward", new ForwardHandler(null, null));
+        }
+      })
+      .open()
+      .addListener((FutureListener<Http2StreamChannel>) future -> {
+        if (!future.isSuccess()) {
+          connection.streamClosed();
+          promise.tryFailure(future.cause());
+          return;
+        }
+        Http2StreamChannel stream = future.resultNow();
+        stream.closeFuture().addListener(closed -> {
+          connection.streamClosed();
+          serveWaiters();
+        });
+        if (!promise.trySuccess(stream)) {
+          // timed out or cancelled meanwhile
+          stream.close();
+        }
+      });
+  }
+
+  /**
+   * Connection with its stream count. Streams are counted from opening the stream channel,
+   * the HTTP/2 connection counts them only after the headers are sent.
+   */
+  private class Connection {
+
+    final Channel channel;
+    final Http2Connection http2;
+    int streams;
+
+    Connection(Channel channel, Http2Connection http2) {
+      this.channel = channel;
+      this.http2 = http2;
+    }
+
+    boolean hasCapacity() {
+      return channel.isActive() && !http2.goAwayReceived() &&
+        streams < Math.min(maxStreams, http2.local().maxActiveStreams());
+    }
+
+    void streamOpened() {
+      if (streams++ == 0) {
+        inUseConnections.increment();
+      }
+      activeStreams.increment();
+    }
+
+    void streamClosed() {
+      if (--streams == 0) {
+        inUseConnections.decrement();
+      }
+      activeStreams.decrement();
+    }
+
+  }
+
+  /**
+   * Closes the connection when idle without streams. Stream errors close the stream
+   * channels, errors of the connection close it.
+   */
+  private class ConnectionHandler extends ChannelInboundHandlerAdapter {
+
+    /**
+     * Enlarge the connection window. The connect promise completes before the channel is
+     * active, so this is sent here, after the codec sent the connection preface.
+     */
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+      ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(CONNECTION_WINDOW - Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+      super.channelActive(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+      if (evt instanceof IdleStateEvent) {
+        for (Connection connection : connections) {
+          if (connection.channel == ctx.channel() && connection.streams == 0) {
+            ctx.close();
+          }
+        }
+        return;
+      }
+      super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      LOG.upstreamError(ctx.channel(), "h2c connection error", cause);
+      ctx.close();
+    }
+
+  }
+
+}
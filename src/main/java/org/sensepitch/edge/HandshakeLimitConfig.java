@@ -0,0 +1,36 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Limits TLS handshakes in progress, before any TLS processing is done. Handshakes are
+ * the most expensive part of a connection, so a flood of new connections can't use up
+ * the CPU needed for admitted clients.
+ *
+ * @param enable enable the handshake limit
+ * @param maxPerLoop handshakes in progress per event loop, default 64. Further connections
+ *                   wait in the queue
+ * @param maxPerSource handshakes in progress or queued per client address prefix, default 16.
+ *                     Further connections are closed immediately
+ * @param ipv4PrefixLength IPv4 addresses with the same prefix count as one source, default 32
+ * @param ipv6PrefixLength IPv6 addresses with the same prefix count as one source, default 64
+ * @param queueSize connections waiting per event loop when the loop is at its limit, further
+ *                  connections are closed immediately. 0 means no queueing
+ * @param queueTimeoutMillis maximum time a connection waits in the queue before it is closed,
+ *                           default 200
+ * @param handshakeTimeoutMillis maximum time from admission until the handshake is complete,
+ *                               after that the connection is closed and frees its slot,
+ *                               default 10000
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record HandshakeLimitConfig(
+  boolean enable,
+  int maxPerLoop,
+  int maxPerSource,
+  int ipv4PrefixLength,
+  int ipv6PrefixLength,
+  int queueSize,
+  int queueTimeoutMillis,
+  int handshakeTimeoutMillis) { }
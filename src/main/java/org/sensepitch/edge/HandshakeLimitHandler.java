@@ -0,0 +1,121 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Placed before the TLS handler and holds back reading, until {@link HandshakeLimiter}
+ * admits the handshake. The SNI handler replaces itself by the TLS handler when it reads
+ * the client hello, after that the handshake result is known via the handshake future.
+ * The handler removes itself when the handshake is done. A client that is admitted but
+ * does not complete the handshake in time is closed, so it cannot hold its slot.
+ *
+ * @author Jens Wilke
+ */
+public class HandshakeLimitHandler extends ChannelInboundHandlerAdapter {
+
+  private final HandshakeLimiter limiter;
+  private ChannelHandlerContext ctx;
+  private String source;
+  private boolean admitted;
+  private boolean released;
+  private boolean handshakeObserved;
+  private long startNanos;
+  private ScheduledFuture<?> queueTimeout;
+  private ScheduledFuture<?> handshakeTimeout;
+
+  HandshakeLimitHandler(HandshakeLimiter limiter) {
+    this.limiter = limiter;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    this.ctx = ctx;
+    source = limiter.source(ProxyUtil.remoteSocketAddress(ctx.channel()));
+    startNanos = System.nanoTime();
+    switch (limiter.admit(this, source)) {
+      case ADMITTED -> startHandshakeTimeout();
+      case QUEUED -> {
+        // no read happens, since auto read is checked after channel active is processed
+        ctx.channel().config().setAutoRead(false);
+        queueTimeout = ctx.executor().schedule(() -> {
+          if (limiter.removeQueued(this, source, true)) {
+            ctx.close();
+          }
+        }, limiter.queueTimeoutMillis(), TimeUnit.MILLISECONDS);
+      }
+      case SHED -> {
+        released = true;
+        ctx.close();
+      }
+    }
+    super.channelActive(ctx);
+  }
+
+  /**
+   * Called by the limiter, when a queued connection gets its turn
+   */
+  void admitted() {
+    queueTimeout.cancel(false);
+    long now = System.nanoTime();
+    limiter.observeQueueWait(now - startNanos);
+    startNanos = now;
+    startHandshakeTimeout();
+    ctx.channel().config().setAutoRead(true);
+  }
+
+  private void startHandshakeTimeout() {
+    admitted = true;
+    handshakeTimeout = ctx.executor().schedule(() -> {
+      if (!released) {
+        limiter.timeoutCounter.inc();
+        release(false);
+        ctx.close();
+      }
+    }, limiter.handshakeTimeoutMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    super.channelRead(ctx, msg);
+    if (admitted && !handshakeObserved) {
+      SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+      if (sslHandler != null) {
+        handshakeObserved = true;
+        sslHandler.handshakeFuture().addListener(this::handshakeDone);
+      }
+    }
+  }
+
+  private void handshakeDone(Future<?> future) {
+    release(future.isSuccess());
+    if (ctx.pipeline().context(this) != null) {
+      ctx.pipeline().remove(this);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    if (admitted) {
+      release(false);
+    } else if (!released && limiter.removeQueued(this, source, false)) {
+      queueTimeout.cancel(false);
+      released = true;
+    }
+    super.channelInactive(ctx);
+  }
+
+  private void release(boolean success) {
+    if (!released) {
+      released = true;
+      handshakeTimeout.cancel(false);
+      limiter.release(source, System.nanoTime() - startNanos, success);
+    }
+  }
+
+}
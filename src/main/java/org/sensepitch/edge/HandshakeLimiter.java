@@ -0,0 +1,236 @@
+package org.sensepitch.edge;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.model.registry.Collector;
+import io.prometheus.metrics.model.snapshots.Unit;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Limits concurrent TLS handshakes per event loop and per client address prefix. Each
+ * connection gets a {@link HandshakeLimitHandler} in front of the TLS handler, which
+ * holds back reading, until the handshake is admitted. A connection is counted from
+ * admission until the handshake completed or failed.
+ *
+ * <p>If the loop is at its limit, the connection waits in the queue of its loop, as long
+ * as the queue has space. A source above its limit is closed right away, since queueing
+ * doesn't help against a single flooding source. The counts per loop and the queues are
+ * only accessed from their loop, the counts per source are shared by all loops.
+ *
+ * @author Jens Wilke
+ * @see HandshakeLimitConfig
+ */
+public class HandshakeLimiter implements HasMultipleMetrics {
+
+  enum Admission { ADMITTED, QUEUED, SHED }
+
+  private final int maxPerLoop;
+  private final int maxPerSource;
+  private final int ipv4PrefixLength;
+  private final int ipv6PrefixLength;
+  private final int queueSize;
+  private final long queueTimeoutMillis;
+  private final long handshakeTimeoutMillis;
+  private final ConcurrentMap<String, Integer> perSource = new ConcurrentHashMap<>();
+  private final LongAdder inProgress = new LongAdder();
+  private final LongAdder queued = new LongAdder();
+  private final MetricSet metricSet = new MetricSet();
+
+  private final FastThreadLocal<LoopState> loopState = new FastThreadLocal<>() {
+    @Override
+    protected LoopState initialValue() {
+      return new LoopState();
+    }
+  };
+
+  private final Histogram handshakeDuration = metricSet.add(Histogram.builder()
+    .name("tls_handshake_duration_seconds")
+    .help("Time from admission until the TLS handshake completed, by result: success or failure")
+    .unit(Unit.SECONDS)
+    .labelNames("result")
+    .classicExponentialUpperBounds(0.001, 2.0, 14)
+    .build());
+
+  private final Histogram queueWait = metricSet.add(Histogram.builder()
+    .name("tls_handshake_queue_wait_seconds")
+    .help("Time connections waited for admission of the TLS handshake")
+    .unit(Unit.SECONDS)
+    .classicExponentialUpperBounds(0.001, 2.0, 12)
+    .build());
+
+  final Counter shedCounter = metricSet.add(Counter.builder()
+    .name("tls_handshakes_shed")
+    .help("Connections closed before the TLS handshake, by reason: source_limit, queue_full or queue_timeout")
+    .labelNames("reason")
+    .build());
+
+  final Counter timeoutCounter = metricSet.add(Counter.builder()
+    .name("tls_handshake_timeouts")
+    .help("Admitted connections closed, because the TLS handshake did not complete in time")
+    .build());
+
+  {
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_handshakes_in_progress")
+      .help("Admitted TLS handshakes not completed yet")
+      .callback(callback -> callback.call(inProgress.sum()))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_handshakes_queued")
+      .help("Connections waiting for admission of the TLS handshake")
+      .callback(callback -> callback.call(queued.sum()))
+      .build());
+  }
+
+  public HandshakeLimiter(HandshakeLimitConfig cfg) {
+    maxPerLoop = cfg.maxPerLoop() > 0 ? cfg.maxPerLoop() : 64;
+    maxPerSource = cfg.maxPerSource() > 0 ? cfg.maxPerSource() : 16;
+    ipv4PrefixLength = cfg.ipv4PrefixLength() > 0 ? Math.min(32, cfg.ipv4PrefixLength()) : 32;
+    ipv6PrefixLength = cfg.ipv6PrefixLength() > 0 ? Math.min(128, cfg.ipv6PrefixLength()) : 64;
+    queueSize = cfg.queueSize();
+    queueTimeoutMillis = cfg.queueTimeoutMillis() > 0 ? cfg.queueTimeoutMillis() : 200;
+    handshakeTimeoutMillis = cfg.handshakeTimeoutMillis() > 0 ? cfg.handshakeTimeoutMillis() : 10_000;
+  }
+
+  public HandshakeLimitHandler newHandler() {
+    return new HandshakeLimitHandler(this);
+  }
+
+  long queueTimeoutMillis() { return queueTimeoutMillis; }
+
+  long handshakeTimeoutMillis() { return handshakeTimeoutMillis; }
+
+  /**
+   * Admit or queue the handshake of a new connection, called within the loop of the
+   * connection.
+   */
+  Admission admit(HandshakeLimitHandler handler, String source) {
+    if (!acquireSource(source)) {
+      shedCounter.labelValues("source_limit").inc();
+      return Admission.SHED;
+    }
+    LoopState state = loopState.get();
+    if (state.inProgress < maxPerLoop) {
+      state.inProgress++;
+      inProgress.increment();
+      return Admission.ADMITTED;
+    }
+    if (state.queue.size() >= queueSize) {
+      releaseSource(source);
+      shedCounter.labelValues("queue_full").inc();
+      return Admission.SHED;
+    }
+    state.queue.add(handler);
+    queued.increment();
+    return Admission.QUEUED;
+  }
+
+  /**
+   * Handshake completed, failed or the connection closed. The next queued connection of
+   * the loop is admitted.
+   */
+  void release(String source, long durationNanos, boolean success) {
+    handshakeDuration.labelValues(success ? "success" : "failure").observe(Unit.nanosToSeconds(durationNanos));
+    releaseSource(source);
+    LoopState state = loopState.get();
+    state.inProgress--;
+    inProgress.decrement();
+    HandshakeLimitHandler next;
+    while (state.inProgress < maxPerLoop && (next = state.queue.poll()) != null) {
+      queued.decrement();
+      state.inProgress++;
+      inProgress.increment();
+      next.admitted();
+    }
+  }
+
+  /**
+   * Remove a connection from the queue after the queue timeout or when closed.
+   *
+   * @param timeout count the connection as shed
+   * @return true, if the connection was still queued
+   */
+  boolean removeQueued(HandshakeLimitHandler handler, String source, boolean timeout) {
+    if (!loopState.get().queue.remove(handler)) {
+      return false;
+    }
+    queued.decrement();
+    releaseSource(source);
+    if (timeout) {
+      shedCounter.labelValues("queue_timeout").inc();
+    }
+    return true;
+  }
+
+  void observeQueueWait(long nanos) {
+    queueWait.observe(Unit.nanosToSeconds(nanos));
+  }
+
+  private boolean acquireSource(String source) {
+    boolean[] acquired = new boolean[1];
+    perSource.compute(source, (key, count) -> {
+      if (count == null) {
+        acquired[0] = true;
+        return 1;
+      }
+      if (count >= maxPerSource) {
+        return count;
+      }
+      acquired[0] = true;
+      return count + 1;
+    });
+    return acquired[0];
+  }
+
+  private void releaseSource(String source) {
+    perSource.computeIfPresent(source, (key, count) -> count == 1 ? null : count - 1);
+  }
+
+  /**
+   * Address prefix the connection is counted for
+   */
+  String source(SocketAddress address) {
+    if (!(address instanceof InetSocketAddress socketAddress) || socketAddress.getAddress() == null) {
+      return "unknown";
+    }
+    byte[] bytes = socketAddress.getAddress().getAddress();
+    int prefixLength = bytes.length == 4 ? ipv4PrefixLength : ipv6PrefixLength;
+    for (int i = 0; i < bytes.length; i++) {
+      int bits = prefixLength - i * 8;
+      if (bits <= 0) {
+        bytes[i] = 0;
+      } else if (bits < 8) {
+        bytes[i] &= (byte) (0xff << (8 - bits));
+      }
+    }
+    try {
+      return InetAddress.getByAddress(bytes).getHostAddress() + "/" + prefixLength;
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  private static class LoopState {
+
+    int inProgress;
+    final ArrayDeque<HandshakeLimitHandler> queue = new ArrayDeque<>();
+
+  }
+
+}
@@ -0,0 +1,35 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Health checking of upstream targets. Active checks send a {@code GET} request to each target
+ * periodically, passive checks count errors of the forwarded requests. Both can be used
+ * independently.
+ *
+ * @param path request path of the active health check, e.g. {@code /health}. If not set, no
+ *             active checks are done
+ * @param intervalMillis interval between active checks, default 5000
+ * @param timeoutMillis time to connect and receive the response header of an active check,
+ *                      default 2000
+ * @param healthyThreshold consecutive successful checks to admit an unhealthy target again,
+ *                         default 2
+ * @param unhealthyThreshold consecutive failed checks to mark a target unhealthy, default 3
+ * @param consecutiveErrors consecutive connect errors or 5xx responses of forwarded requests
+ *                          that eject the target. 0 disables passive checks
+ * @param ejectionMillis time a target stays ejected after passive errors, default 30000
+ * @param slowStartMillis time a target takes to ramp up to its full weight after it was
+ *                        admitted again. 0 means full traffic immediately
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record HealthCheckConfig(
+  String path,
+  int intervalMillis,
+  int timeoutMillis,
+  int healthyThreshold,
+  int unhealthyThreshold,
+  int consecutiveErrors,
+  int ejectionMillis,
+  int slowStartMillis) { }
@@ -21,7 +21,7 @@ public class HostBasedUpstreamRouter implements UpstreamRouter {
     host2upstream = new HashMap<>();
     for (UpstreamConfig upCfg : cfg) {
       String host = upCfg.host();
-      Upstream upstream = new DefaultUpstream(ctx, upCfg);
+      Upstream upstream = Upstream.create(ctx, upCfg);
       host2upstream.put(host, upstream);
     }
   }
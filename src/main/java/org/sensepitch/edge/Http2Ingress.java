@@ -0,0 +1,98 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.util.function.Consumer;
+
+/**
+ * HTTP/2 on TLS connections, negotiated via ALPN. Each stream is a child channel, which
+ * converts the HTTP/2 frames to the HTTP/1.1 message objects. So a stream runs through
+ * the same request handlers as an HTTP/1.1 connection: logging, timeouts, IP traits,
+ * admission, cache and forwarding upstream. Upstream connections stay HTTP/1.1.
+ *
+ * @author Jens Wilke
+ * @see ProtocolNegotiationHandler
+ */
+final class Http2Ingress {
+
+  static final int MAX_CONCURRENT_STREAMS = 128;
+
+  static final ChannelHandler REMOVE_EXTENSION_HEADERS = new RemoveExtensionHeadersHandler();
+
+  private Http2Ingress() { }
+
+  /**
+   * Offer {@code h2} and {@code http/1.1} in the TLS handshake. Clients without ALPN
+   * get HTTP/1.1.
+   */
+  static ApplicationProtocolConfig alpnConfig() {
+    return new ApplicationProtocolConfig(
+      ApplicationProtocolConfig.Protocol.ALPN,
+      ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+      ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+      ApplicationProtocolNames.HTTP_2, ApplicationProtocolNames.HTTP_1_1);
+  }
+
+  /**
+   * Add the connection handlers after the TLS handler. A connection without any frames
+   * for the read timeout is closed, which sends {@code GOAWAY}.
+   *
+   * @param requestHandlers adds the request handlers to the pipeline of each stream
+   */
+  static void configure(ChannelPipeline pipeline, ConnectionConfig config, ProxyMetrics metrics,
+                        Consumer<ChannelPipeline> requestHandlers) {
+    pipeline.addLast(new IdleStateHandler(0, 0, config.readTimeoutSeconds()) {
+      @Override
+      protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+        ctx.close();
+      }
+    });
+    pipeline.addLast(Http2FrameCodecBuilder.forServer()
+      .initialSettings(Http2Settings.defaultSettings().maxConcurrentStreams(MAX_CONCURRENT_STREAMS))
+      .build());
+    pipeline.addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+      @Override
+      protected void initChannel(Http2StreamChannel ch) {
+        metrics.ingressHttp2StreamsCounter.inc();
+        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+        ch.pipeline().addLast(REMOVE_EXTENSION_HEADERS);
+        requestHandlers.accept(ch.pipeline());
+      }
+    }));
+  }
+
+  /**
+   * The conversion adds the stream id and pseudo headers as extension headers,
+   * which should not be forwarded. Used for ingress and upstream streams.
+   */
+  @ChannelHandler.Sharable
+  static class RemoveExtensionHeadersHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (msg instanceof HttpMessage message) {
+        for (HttpConversionUtil.ExtensionHeaderNames name : HttpConversionUtil.ExtensionHeaderNames.values()) {
+          message.headers().remove(name.text());
+        }
+      }
+      super.channelRead(ctx, msg);
+    }
+
+  }
+
+}
@@ -0,0 +1,175 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpMessage;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http3.Http3;
+import io.netty.handler.codec.http3.Http3FrameToHttpObjectCodec;
+import io.netty.handler.codec.http3.Http3ServerConnectionHandler;
+import io.netty.handler.codec.quic.QuicChannel;
+import io.netty.handler.codec.quic.QuicSslContext;
+import io.netty.handler.codec.quic.QuicSslContextBuilder;
+import io.netty.handler.codec.quic.QuicStreamChannel;
+import io.netty.util.AsciiString;
+import io.netty.util.Mapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * HTTP/3 over QUIC on a UDP socket next to the TCP listener. Like with HTTP/2, each
+ * request stream is a child channel that converts the HTTP/3 frames to the HTTP/1.1
+ * message objects, so it runs through the same request handlers: logging, timeouts,
+ * IP traits, admission, cache and forwarding upstream.
+ *
+ * <p>Clients learn about HTTP/3 via the {@code Alt-Svc} header on HTTP/1.1 and HTTP/2
+ * responses, see {@link #altSvcHandler(int)}.
+ *
+ * <p>TLS 0-RTT is not enabled. Early data can be replayed by an attacker and the QUIC
+ * codec does not tell which request streams arrived as early data, so non idempotent
+ * requests could not be rejected with 425 Too Early.
+ *
+ * @author Jens Wilke
+ * @see Http2Ingress
+ */
+final class Http3Ingress {
+
+  static final AsciiString ALT_SVC = AsciiString.cached("alt-svc");
+  static final long ALT_SVC_MAX_AGE_SECONDS = 24 * 60 * 60;
+  static final int MAX_CONCURRENT_STREAMS = Http2Ingress.MAX_CONCURRENT_STREAMS;
+  /** Flow control window for the request content of each stream */
+  static final long STREAM_WINDOW = 1024 * 1024;
+  /** Flow control window for all streams of a connection */
+  static final long CONNECTION_WINDOW = 16 * 1024 * 1024;
+  static final String EXTENSION_HEADER_PREFIX = "x-http3-";
+
+  static final ChannelHandler REMOVE_EXTENSION_HEADERS = new RemoveExtensionHeadersHandler();
+
+  private Http3Ingress() { }
+
+  /**
+   * TLS context for QUIC, which always uses BoringSSL and TLS 1.3 and negotiates {@code h3}.
+   * With an additional ECDSA certificate both keys are passed via a key manager.
+   */
+  static QuicSslContext sslContext(SslConfig cfg) {
+    QuicSslContextBuilder builder;
+    if (ServerKeys.hasEcdsa(cfg)) {
+      try {
+        builder = QuicSslContextBuilder.forServer(ServerKeys.keyManagerFactory(cfg), null);
+      } catch (IOException | GeneralSecurityException e) {
+        throw new RuntimeException(e);
+      }
+    } else {
+      builder = QuicSslContextBuilder.forServer(new File(cfg.key()), null, new File(cfg.cert()));
+    }
+    return builder
+      .applicationProtocols(Http3.supportedApplicationProtocols())
+      .earlyData(false)
+      .build();
+  }
+
+  /**
+   * TLS context selecting the certificate via SNI
+   */
+  static QuicSslContext sslContext(Mapping<String, QuicSslContext> mapping) {
+    return QuicSslContextBuilder.buildForServerWithSni(mapping);
+  }
+
+  /**
+   * Codec for one UDP channel. A connection without any packets for the read timeout is
+   * closed. Address validation via retry packets is not done, because it costs a round
+   * trip; QUIC limits the data sent to an unvalidated address to three times the
+   * received data, so the listener can't be used for amplification.
+   *
+   * @param migration allow clients to migrate connections to another address. Not
+   *                  possible with multiple sockets with {@code SO_REUSEPORT}, since packets
+   *                  from the new address might arrive at a different socket
+   * @param requestHandlers adds the request handlers to the pipeline of each request stream
+   */
+  static ChannelHandler codec(QuicSslContext sslContext, ConnectionConfig config, boolean migration,
+                              ProxyMetrics metrics, Consumer<ChannelPipeline> requestHandlers) {
+    return Http3.newQuicServerCodecBuilder()
+      .sslContext(sslContext)
+      .maxIdleTimeout(config.readTimeoutSeconds(), TimeUnit.SECONDS)
+      .initialMaxData(CONNECTION_WINDOW)
+      .initialMaxStreamDataBidirectionalLocal(STREAM_WINDOW)
+      .initialMaxStreamDataBidirectionalRemote(STREAM_WINDOW)
+      .initialMaxStreamsBidirectional(MAX_CONCURRENT_STREAMS)
+      .activeMigration(migration)
+      // no token handler, no address validation via retry
+      .tokenHandler(null)
+      .handler(new ChannelInitializer<QuicChannel>() {
+        @Override
+        protected void initChannel(QuicChannel ch) {
+          metrics.ingressProtocolCounter.labelValues("h3").inc();
+          ch.pipeline().addLast(new Http3ServerConnectionHandler(new ChannelInitializer<QuicStreamChannel>() {
+            @Override
+            protected void initChannel(QuicStreamChannel stream) {
+              metrics.ingressHttp3StreamsCounter.inc();
+              stream.pipeline().addLast(new Http3FrameToHttpObjectCodec(true));
+              stream.pipeline().addLast(REMOVE_EXTENSION_HEADERS);
+              requestHandlers.accept(stream.pipeline());
+            }
+          }));
+        }
+      })
+      .build();
+  }
+
+  /**
+   * Advertises HTTP/3 on the given UDP port in responses that don't have an
+   * {@code Alt-Svc} header from upstream already.
+   */
+  static ChannelHandler altSvcHandler(int port) {
+    return new AltSvcHandler("h3=\":" + port + "\"; ma=" + ALT_SVC_MAX_AGE_SECONDS);
+  }
+
+  @ChannelHandler.Sharable
+  static class AltSvcHandler extends ChannelOutboundHandlerAdapter {
+
+    private final String value;
+
+    AltSvcHandler(String value) {
+      this.value = value;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+      if (msg instanceof HttpResponse response && !response.headers().contains(ALT_SVC)) {
+        response.headers().set(ALT_SVC, value);
+      }
+      super.write(ctx, msg, promise);
+    }
+
+  }
+
+  /**
+   * The conversion adds the stream id as extension header, which should not be forwarded.
+   */
+  @ChannelHandler.Sharable
+  static class RemoveExtensionHeadersHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (msg instanceof HttpMessage message) {
+        List<String> names = message.headers().names().stream()
+          .filter(name -> name.regionMatches(true, 0, EXTENSION_HEADER_PREFIX, 0, EXTENSION_HEADER_PREFIX.length()))
+          .toList();
+        names.forEach(message.headers()::remove);
+      }
+      super.channelRead(ctx, msg);
+    }
+
+  }
+
+}
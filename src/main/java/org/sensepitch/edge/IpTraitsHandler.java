@@ -29,8 +29,8 @@ public class IpTraitsHandler extends ChannelInboundHandlerAdapter {
   @Override
   public void channelActive(ChannelHandlerContext ctx) throws Exception {
     // Debug.INSTANCE.trace(ctx.channel(), "IpTraitsHandler channelActive");
-    if (ctx.channel().remoteAddress() instanceof InetSocketAddress) {
-      InetAddress address = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
+    if (ProxyUtil.remoteSocketAddress(ctx.channel()) instanceof InetSocketAddress socketAddress) {
+      InetAddress address = socketAddress.getAddress();
       // Debug.INSTANCE.trace(ctx.channel(), "remoteAddress: " + address.getHostAddress());
       var builder = IpTraits.builder();
       ipTraitsLookup.lookup(builder, address);
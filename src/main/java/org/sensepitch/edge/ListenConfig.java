@@ -5,6 +5,25 @@ import lombok.Builder;
 import java.util.List;
 
 /**
+ * @param transport Netty transport to use: {@code auto}, {@code nio}, {@code epoll} or {@code io_uring}.
+ *                  The default {@code auto} picks epoll if available, otherwise nio.
+ *                  Applies to ingress and upstream connections.
+ * @param reusePort bind one listening socket per worker event loop with SO_REUSEPORT, instead of a
+ *                  single acceptor thread. The kernel distributes new connections over the sockets
+ *                  and a connection is processed on the event loop that accepted it.
+ * @param http2 offer HTTP/2 via ALPN on TLS connections. Clients that don't negotiate
+ *              {@code h2} use HTTP/1.1
+ * @param http3 additionally listen for HTTP/3 over QUIC on the same UDP port and advertise it
+ *              with {@code Alt-Svc} on HTTP/1.1 and HTTP/2 responses. Requires the certificates
+ *              configured via {@code ssl}, {@code sni} or {@code domains}
+ * @param session TLS session cache and session ticket keys, see {@link TlsSessionConfig}
+ * @param certificateCheckSeconds interval for checking the key and certificate files for
+ *                                changes. Changed certificates are used for new connections
+ *                                without restart. Default 60
+ * @param handshakeLimit limit of concurrent TLS handshakes, see {@link HandshakeLimitConfig}
+ * @param privateKeyOffload private key operations of TLS handshakes in a separate thread pool,
+ *                          see {@link PrivateKeyOffloadConfig}
+ *
  * @author Jens Wilke
  */
 @Builder
@@ -15,6 +34,14 @@ public record ListenConfig (
   boolean letsEncrypt,
   List<String> domains,
   List<SniConfig> sni,
-  int port) {
+  int port,
+  String transport,
+  boolean reusePort,
+  boolean http2,
+  boolean http3,
+  TlsSessionConfig session,
+  int certificateCheckSeconds,
+  HandshakeLimitConfig handshakeLimit,
+  PrivateKeyOffloadConfig privateKeyOffload) {
 
 }
@@ -0,0 +1,212 @@
+package org.sensepitch.edge;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selects one of multiple upstream targets for a request. Selection is called concurrently
+ * from all event loops and must not lock. Statistics of the targets are read without
+ * synchronization and may be slightly outdated, which is good enough for balancing.
+ *
+ * @author Jens Wilke
+ */
+public interface LoadBalancer<T extends LoadBalancer.Target> {
+
+  String ROUND_ROBIN = "round_robin";
+  String POWER_OF_TWO_CHOICES = "p2c";
+  String LEAST_LATENCY = "least_latency";
+
+  T select();
+
+  /**
+   * Create the balancer by its configuration name, default is round-robin
+   */
+  static <T extends Target> LoadBalancer<T> create(String policy, List<T> targets) {
+    if (targets.size() == 1) {
+      T single = targets.getFirst();
+      return () -> single;
+    }
+    if (policy == null || policy.isEmpty() || ROUND_ROBIN.equals(policy)) {
+      return new RoundRobin<>(targets);
+    }
+    return switch (policy) {
+      case POWER_OF_TWO_CHOICES -> new PowerOfTwoChoices<>(targets);
+      case LEAST_LATENCY -> new LeastLatency<>(targets);
+      default -> throw new IllegalArgumentException("Unknown balancer: " + policy);
+    };
+  }
+
+  interface Target {
+
+    /** Relative weight of the target, at least 1 */
+    int weight();
+
+    /** Requests waiting for a connection or being processed by the target */
+    long inFlight();
+
+    /** Exponentially weighted moving average of the response time or 0 if not known yet */
+    double latencyEwmaNanos();
+
+    /** False, if the target is unhealthy or ejected and should not receive requests */
+    default boolean isAvailable() { return true; }
+
+    /** Reduces the weight during slow start after the target became available again, 0 < x <= 1 */
+    default double weightFactor() { return 1; }
+
+  }
+
+  /**
+   * Weighted round-robin. The weights are expanded to a sequence of target indices that
+   * interleaves the targets smoothly, so a target with a high weight does not get
+   * bursts of requests.
+   */
+  class RoundRobin<T extends Target> implements LoadBalancer<T> {
+
+    private final List<T> targets;
+    private final int[] sequence;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public RoundRobin(List<T> targets) {
+      this.targets = List.copyOf(targets);
+      int total = 0;
+      for (T target : targets) {
+        total += target.weight();
+      }
+      sequence = new int[total];
+      int[] current = new int[targets.size()];
+      for (int i = 0; i < total; i++) {
+        int best = 0;
+        for (int j = 0; j < current.length; j++) {
+          current[j] += targets.get(j).weight();
+          if (current[j] > current[best]) {
+            best = j;
+          }
+        }
+        current[best] -= total;
+        sequence[i] = best;
+      }
+    }
+
+    /**
+     * Skips targets that are not available. A target in slow start is skipped randomly
+     * according to its weight factor. If no target is available, we still send the request
+     * to the scheduled one.
+     */
+    @Override
+    public T select() {
+      int start = (counter.getAndIncrement() & Integer.MAX_VALUE) % sequence.length;
+      for (int i = 0; i < sequence.length; i++) {
+        T target = targets.get(sequence[(start + i) % sequence.length]);
+        if (target.isAvailable() && acceptDuringSlowStart(target)) {
+          return target;
+        }
+      }
+      return targets.get(sequence[start]);
+    }
+
+    private static boolean acceptDuringSlowStart(Target target) {
+      double factor = target.weightFactor();
+      return factor >= 1 || ThreadLocalRandom.current().nextDouble() < factor;
+    }
+
+  }
+
+  /**
+   * Picks two targets randomly, according to their weights, and selects the one with
+   * lower cost. Avoids the herding effect of always choosing the least loaded target
+   * based on outdated statistics.
+   */
+  abstract class TwoRandomChoices<T extends Target> implements LoadBalancer<T> {
+
+    private final List<T> targets;
+    private final int[] cumulativeWeights;
+
+    TwoRandomChoices(List<T> targets) {
+      this.targets = List.copyOf(targets);
+      cumulativeWeights = new int[targets.size()];
+      int sum = 0;
+      for (int i = 0; i < targets.size(); i++) {
+        sum += targets.get(i).weight();
+        cumulativeWeights[i] = sum;
+      }
+    }
+
+    @Override
+    public T select() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      int first = pick(random);
+      int second = pick(random);
+      if (first == second) {
+        second = (first + 1) % targets.size();
+      }
+      T a = targets.get(first);
+      T b = targets.get(second);
+      if (!a.isAvailable()) {
+        return b.isAvailable() ? b : firstAvailable(a);
+      }
+      if (!b.isAvailable()) {
+        return a;
+      }
+      return cost(b) < cost(a) ? b : a;
+    }
+
+    /**
+     * Both choices are not available, find any available target or use the fallback.
+     */
+    private T firstAvailable(T fallback) {
+      for (T target : targets) {
+        if (target.isAvailable()) {
+          return target;
+        }
+      }
+      return fallback;
+    }
+
+    private int pick(ThreadLocalRandom random) {
+      int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+      int idx = Arrays.binarySearch(cumulativeWeights, value + 1);
+      return idx >= 0 ? idx : -idx - 1;
+    }
+
+    abstract double cost(T target);
+
+  }
+
+  /**
+   * Power of two choices on requests in flight, relative to the target weight. The request
+   * to be sent is counted as well, so idle targets still differ in cost during slow start.
+   */
+  class PowerOfTwoChoices<T extends Target> extends TwoRandomChoices<T> {
+
+    public PowerOfTwoChoices(List<T> targets) {
+      super(targets);
+    }
+
+    @Override
+    double cost(T target) {
+      return (target.inFlight() + 1) / (target.weight() * target.weightFactor());
+    }
+
+  }
+
+  /**
+   * Prefers the target with the lower response time. The latency is multiplied with the requests
+   * in flight, so a fast target that builds up a queue becomes less attractive before its
+   * average latency reacts.
+   */
+  class LeastLatency<T extends Target> extends TwoRandomChoices<T> {
+
+    public LeastLatency(List<T> targets) {
+      super(targets);
+    }
+
+    @Override
+    double cost(T target) {
+      return target.latencyEwmaNanos() * (target.inFlight() + 1) / (target.weight() * target.weightFactor());
+    }
+
+  }
+
+}
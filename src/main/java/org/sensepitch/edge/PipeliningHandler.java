@@ -0,0 +1,174 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.util.ArrayDeque;
+
+/**
+ * HTTP/1.1 pipelining: requests that arrive before the response of the previous request
+ * is sent are queued and passed on one after the other, when the last content of the
+ * previous response is written. The handlers after this one see one request at a time,
+ * so responses are sent in request order.
+ *
+ * <p>The queue is bounded. If it holds more than {@code maxQueuedRequests} requests or
+ * the queued content exceeds {@link #MAX_QUEUED_BYTES}, reading from the connection is
+ * paused until queued requests are processed.
+ *
+ * <p>Must be placed directly after the HTTP codec.
+ *
+ * @author Jens Wilke
+ */
+public class PipeliningHandler extends ChannelDuplexHandler {
+
+  static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+  private final int maxQueuedRequests;
+  private final ProxyMetrics metrics;
+  private final ArrayDeque<Object> queue = new ArrayDeque<>();
+  private int queuedRequests;
+  private long queuedBytes;
+  /** A request was passed on and its response is not written completely yet */
+  private boolean responsePending;
+  /** An interim response is written, its last content does not complete the response */
+  private boolean interimResponse;
+  /** Content of the request that was passed on follows */
+  private boolean forwardingRequest;
+  private boolean dispatching;
+  private boolean readPaused;
+
+  public PipeliningHandler(int maxQueuedRequests, ProxyMetrics metrics) {
+    this.maxQueuedRequests = maxQueuedRequests;
+    this.metrics = metrics;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    if (forwardingRequest || (!responsePending && queue.isEmpty())) {
+      passOn(ctx, msg);
+      return;
+    }
+    if (msg instanceof HttpRequest) {
+      queuedRequests++;
+      metrics.ingressPipelinedRequestsCounter.inc();
+    }
+    if (msg instanceof HttpContent content) {
+      queuedBytes += content.content().readableBytes();
+    }
+    queue.add(msg);
+    if (!readPaused && (queuedRequests > maxQueuedRequests || queuedBytes > MAX_QUEUED_BYTES)) {
+      readPaused = true;
+      ctx.channel().config().setAutoRead(false);
+    }
+  }
+
+  /**
+   * Other handlers switch reading on again, e.g. after the upstream connection is
+   * established, so pause again as long as the queue is full.
+   */
+  @Override
+  public void channelReadComplete(ChannelHandlerContext ctx) {
+    if (readPaused) {
+      ctx.channel().config().setAutoRead(false);
+    }
+    ctx.fireChannelReadComplete();
+  }
+
+  private void passOn(ChannelHandlerContext ctx, Object msg) {
+    if (msg instanceof HttpRequest) {
+      responsePending = true;
+      forwardingRequest = true;
+    }
+    if (msg instanceof LastHttpContent) {
+      forwardingRequest = false;
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (msg instanceof HttpResponse response) {
+      interimResponse = isInterim(response);
+    }
+    if (msg instanceof LastHttpContent && interimResponse) {
+      interimResponse = false;
+    } else if (msg instanceof LastHttpContent && responsePending) {
+      promise = promise.unvoid().addListener((ChannelFutureListener) future -> {
+        if (future.isSuccess()) {
+          responsePending = false;
+          dispatch(ctx);
+        }
+      });
+    }
+    super.write(ctx, msg, promise);
+  }
+
+  /**
+   * A 1xx response, e.g. 100 Continue, is followed by the final response. 101 Switching
+   * Protocols ends HTTP on the connection and counts as final.
+   */
+  private static boolean isInterim(HttpResponse response) {
+    return response.status().codeClass() == HttpStatusClass.INFORMATIONAL &&
+      response.status().code() != HttpResponseStatus.SWITCHING_PROTOCOLS.code();
+  }
+
+  /**
+   * Pass on the next queued request with its content. Writing its response might complete
+   * within the call, so this is reentrant and the loop continues with the next request.
+   */
+  private void dispatch(ChannelHandlerContext ctx) {
+    if (dispatching) {
+      return;
+    }
+    dispatching = true;
+    try {
+      while ((forwardingRequest || !responsePending) && !queue.isEmpty()) {
+        Object msg = queue.poll();
+        if (msg instanceof HttpRequest) {
+          queuedRequests--;
+        }
+        if (msg instanceof HttpContent content) {
+          queuedBytes -= content.content().readableBytes();
+        }
+        passOn(ctx, msg);
+      }
+    } finally {
+      dispatching = false;
+    }
+    if (readPaused && queuedRequests <= maxQueuedRequests && queuedBytes <= MAX_QUEUED_BYTES &&
+      ctx.channel().isActive()) {
+      readPaused = false;
+      ctx.channel().config().setAutoRead(true);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    discardQueue();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    discardQueue();
+  }
+
+  private void discardQueue() {
+    Object msg;
+    while ((msg = queue.poll()) != null) {
+      ReferenceCountUtil.release(msg);
+    }
+    queuedRequests = 0;
+    queuedBytes = 0;
+  }
+
+}
@@ -0,0 +1,213 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.ssl.OpenSslAsyncPrivateKeyMethod;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.Promise;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.model.registry.Collector;
+import io.prometheus.metrics.model.snapshots.Unit;
+
+import javax.crypto.Cipher;
+import javax.net.ssl.SSLEngine;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.EdECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Thread pool for the private key operations of TLS handshakes. With BoringSSL the
+ * handshake is suspended while the operation runs and resumed on the event loop of the
+ * connection, when the result is available. Signing with an RSA key takes about a
+ * millisecond, so a burst of handshakes would otherwise delay the requests of all
+ * established connections on the same loop.
+ *
+ * <p>The queue of the pool is bounded. If it is full, the operation fails, so the
+ * handshake is aborted and the client can retry, instead of letting the wait time for
+ * all handshakes grow. The {@link HandshakeLimiter} limits handshakes before any work
+ * is done, this is the last line of defense.
+ *
+ * @author Jens Wilke
+ * @see PrivateKeyOffloadConfig
+ */
+public class PrivateKeyOffload implements HasMultipleMetrics {
+
+  static final int DEFAULT_QUEUE_SIZE = 1024;
+
+  final ThreadPoolExecutor executor;
+  private final MetricSet metricSet = new MetricSet();
+
+  final Counter operationsCounter = metricSet.add(Counter.builder()
+    .name("tls_private_key_operations")
+    .help("Offloaded private key operations, by operation: sign or decrypt, and result: success, error or rejected")
+    .labelNames("operation", "result")
+    .build());
+
+  private final Histogram duration = metricSet.add(Histogram.builder()
+    .name("tls_private_key_operation_seconds")
+    .help("Time of offloaded private key operations, including the wait in the queue")
+    .unit(Unit.SECONDS)
+    .classicExponentialUpperBounds(0.0001, 2.0, 14)
+    .build());
+
+  public PrivateKeyOffload(PrivateKeyOffloadConfig cfg) {
+    int threads = cfg.threads() > 0 ? cfg.threads() : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int queueSize = cfg.queueSize() > 0 ? cfg.queueSize() : DEFAULT_QUEUE_SIZE;
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(queueSize), new DefaultThreadFactory("tls-key", true));
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_private_key_operations_queued")
+      .help("Private key operations waiting for a thread")
+      .callback(callback -> callback.call(executor.getQueue().size()))
+      .build());
+  }
+
+  /**
+   * Key method for a TLS context. The key for a signature is selected by the algorithm,
+   * so the context may have an RSA and an ECDSA certificate.
+   */
+  public OpenSslAsyncPrivateKeyMethod newKeyMethod(List<PrivateKey> keys) {
+    return new KeyMethod(keys);
+  }
+
+  private Future<byte[]> submit(String operation, Callable<byte[]> task) {
+    Promise<byte[]> promise = ImmediateEventExecutor.INSTANCE.newPromise();
+    long start = System.nanoTime();
+    try {
+      executor.execute(() -> {
+        try {
+          byte[] result = task.call();
+          duration.observe(Unit.nanosToSeconds(System.nanoTime() - start));
+          operationsCounter.labelValues(operation, "success").inc();
+          promise.setSuccess(result);
+        } catch (Exception e) {
+          operationsCounter.labelValues(operation, "error").inc();
+          promise.setFailure(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      operationsCounter.labelValues(operation, "rejected").inc();
+      promise.setFailure(e);
+    }
+    return promise;
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  /**
+   * Implements the interface, which defines the signature algorithm constants
+   */
+  private class KeyMethod implements OpenSslAsyncPrivateKeyMethod {
+
+    private final List<PrivateKey> keys;
+
+    KeyMethod(List<PrivateKey> keys) {
+      this.keys = List.copyOf(keys);
+    }
+
+    @Override
+    public Future<byte[]> sign(SSLEngine engine, int signatureAlgorithm, byte[] input) {
+      return submit("sign", () -> {
+        Signature signature = signature(signatureAlgorithm);
+        signature.initSign(key(signatureAlgorithm));
+        signature.update(input);
+        return signature.sign();
+      });
+    }
+
+    /**
+     * RSA key exchange of TLS 1.2 and before, the padding is checked by BoringSSL
+     */
+    @Override
+    public Future<byte[]> decrypt(SSLEngine engine, byte[] input) {
+      return submit("decrypt", () -> {
+        Cipher cipher = Cipher.getInstance("RSA/ECB/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key(SSL_SIGN_RSA_PKCS1_SHA256));
+        return cipher.doFinal(input);
+      });
+    }
+
+    private PrivateKey key(int algorithm) throws NoSuchAlgorithmException {
+      SignatureAlgorithm signatureAlgorithm = SIGNATURE_ALGORITHMS.get(algorithm);
+      Class<? extends PrivateKey> keyType = signatureAlgorithm != null ? signatureAlgorithm.keyType : RSAPrivateKey.class;
+      for (PrivateKey key : keys) {
+        if (keyType.isInstance(key)) {
+          return key;
+        }
+      }
+      throw new NoSuchAlgorithmException("No key for TLS signature algorithm 0x" + Integer.toHexString(algorithm));
+    }
+
+    /**
+     * JDK signature for the TLS signature algorithm. The input is the message, not its
+     * hash, except for the MD5 and SHA1 combination of TLS 1.1 and before.
+     */
+    static Signature signature(int algorithm) throws GeneralSecurityException {
+      SignatureAlgorithm signatureAlgorithm = SIGNATURE_ALGORITHMS.get(algorithm);
+      if (signatureAlgorithm == null) {
+        throw new NoSuchAlgorithmException("Unsupported TLS signature algorithm 0x" + Integer.toHexString(algorithm));
+      }
+      Signature signature = Signature.getInstance(signatureAlgorithm.jdkName);
+      if (signatureAlgorithm.parameters != null) {
+        signature.setParameter(signatureAlgorithm.parameters);
+      }
+      return signature;
+    }
+
+    /**
+     * The constants are read from the native library, so they can't be used in a switch
+     */
+    private static final Map<Integer, SignatureAlgorithm> SIGNATURE_ALGORITHMS = Map.ofEntries(
+      Map.entry(SSL_SIGN_RSA_PKCS1_SHA1, rsa("SHA1withRSA")),
+      Map.entry(SSL_SIGN_RSA_PKCS1_SHA256, rsa("SHA256withRSA")),
+      Map.entry(SSL_SIGN_RSA_PKCS1_SHA384, rsa("SHA384withRSA")),
+      Map.entry(SSL_SIGN_RSA_PKCS1_SHA512, rsa("SHA512withRSA")),
+      Map.entry(SSL_SIGN_RSA_PKCS1_MD5_SHA1, rsa("NONEwithRSA")),
+      Map.entry(SSL_SIGN_RSA_PSS_RSAE_SHA256, pss("SHA-256", MGF1ParameterSpec.SHA256, 32)),
+      Map.entry(SSL_SIGN_RSA_PSS_RSAE_SHA384, pss("SHA-384", MGF1ParameterSpec.SHA384, 48)),
+      Map.entry(SSL_SIGN_RSA_PSS_RSAE_SHA512, pss("SHA-512", MGF1ParameterSpec.SHA512, 64)),
+      Map.entry(SSL_SIGN_ECDSA_SHA1, ecdsa("SHA1withECDSA")),
+      Map.entry(SSL_SIGN_ECDSA_SECP256R1_SHA256, ecdsa("SHA256withECDSA")),
+      Map.entry(SSL_SIGN_ECDSA_SECP384R1_SHA384, ecdsa("SHA384withECDSA")),
+      Map.entry(SSL_SIGN_ECDSA_SECP521R1_SHA512, ecdsa("SHA512withECDSA")),
+      Map.entry(SSL_SIGN_ED25519, new SignatureAlgorithm("Ed25519", EdECPrivateKey.class, null)));
+
+    private static SignatureAlgorithm rsa(String jdkName) {
+      return new SignatureAlgorithm(jdkName, RSAPrivateKey.class, null);
+    }
+
+    private static SignatureAlgorithm ecdsa(String jdkName) {
+      return new SignatureAlgorithm(jdkName, ECPrivateKey.class, null);
+    }
+
+    private static SignatureAlgorithm pss(String digest, MGF1ParameterSpec mgf, int saltLength) {
+      return new SignatureAlgorithm("RSASSA-PSS", RSAPrivateKey.class,
+        new PSSParameterSpec(digest, "MGF1", mgf, saltLength, 1));
+    }
+
+  }
+
+  private record SignatureAlgorithm(String jdkName, Class<? extends PrivateKey> keyType,
+                                    AlgorithmParameterSpec parameters) { }
+
+}
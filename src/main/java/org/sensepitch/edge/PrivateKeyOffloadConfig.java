@@ -0,0 +1,20 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Runs the private key operations of TLS handshakes, signing and RSA decryption, in a
+ * separate thread pool instead of the event loops. Requires OpenSSL via BoringSSL.
+ *
+ * @param enable enable offloading of private key operations
+ * @param threads threads of the pool, default half of the available processors
+ * @param queueSize operations waiting for a thread, default 1024. If the queue is full,
+ *                  the operation fails and the handshake is aborted
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record PrivateKeyOffloadConfig(
+  boolean enable,
+  int threads,
+  int queueSize) { }
@@ -0,0 +1,76 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+
+import javax.net.ssl.SSLException;
+import java.net.SocketException;
+import java.util.function.Consumer;
+
+/**
+ * Sets up the pipeline for the protocol negotiated via ALPN, after the TLS handshake.
+ * Without ALPN the connection is HTTP/1.1. Since the request handlers are added after the
+ * handshake, handshake errors are counted here.
+ *
+ * @author Jens Wilke
+ * @see Http2Ingress
+ */
+public class ProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+
+  private final ProxyMetrics metrics;
+  private final Consumer<ChannelPipeline> http1Handlers;
+  private final Consumer<ChannelPipeline> http2Handlers;
+  private boolean failed;
+
+  public ProtocolNegotiationHandler(ProxyMetrics metrics,
+                                    Consumer<ChannelPipeline> http1Handlers,
+                                    Consumer<ChannelPipeline> http2Handlers) {
+    super(ApplicationProtocolNames.HTTP_1_1);
+    this.metrics = metrics;
+    this.http1Handlers = http1Handlers;
+    this.http2Handlers = http2Handlers;
+  }
+
+  @Override
+  protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+    metrics.ingressProtocolCounter.labelValues(protocol).inc();
+    switch (protocol) {
+      case ApplicationProtocolNames.HTTP_2 -> http2Handlers.accept(ctx.pipeline());
+      case ApplicationProtocolNames.HTTP_1_1 -> http1Handlers.accept(ctx.pipeline());
+      default -> throw new IllegalStateException("Unexpected protocol: " + protocol);
+    }
+  }
+
+  @Override
+  protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) {
+    if (!failed) {
+      failed = true;
+      if (cause instanceof SSLException) {
+        metrics.ingressConnectionErrorSslHandshake.inc();
+      } else if (isConnectionReset(cause)) {
+        metrics.ingressConnectionResetDuringHandshake.inc();
+      } else {
+        metrics.ingressOtherHandshakeError.inc();
+      }
+    }
+    ctx.close();
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+    if (isConnectionReset(cause)) {
+      handshakeFailure(ctx, cause);
+      return;
+    }
+    super.exceptionCaught(ctx, cause);
+  }
+
+  private static boolean isConnectionReset(Throwable cause) {
+    return cause instanceof SocketException &&
+      cause.getMessage() != null &&
+      cause.getMessage().startsWith("Connection reset");
+  }
+
+}
@@ -1,28 +1,35 @@
 package org.sensepitch.edge;
 
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioIoHandler;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.quic.QuicSslContext;
 import io.netty.handler.ssl.ClientAuth;
 import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslContextOption;
 import io.netty.handler.ssl.SniHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslProvider;
-import io.netty.util.DomainWildcardMappingBuilder;
-import io.netty.util.Mapping;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.util.concurrent.EventExecutor;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.introspector.BeanAccess;
 import org.yaml.snakeyaml.representer.Representer;
 
-import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -34,19 +41,30 @@ public class Proxy implements ProxyContext {
 
   private final TrackIngressConnectionsHandler trackIngressConnectionsHandler;
   private final ProxyMetrics metrics = new ProxyMetrics();
+  private final UpstreamMetrics upstreamMetrics = new UpstreamMetrics();
   private final ProxyConfig config;
   private final ConnectionConfig connectionConfig;
   private final MetricsBridge metricsBridge;
   private final AdmissionHandler admissionHandler;
-  private final SslContext sslContext;
-  private final Mapping<String, SslContext> sniMapping;
+  private final TlsSessions tlsSessions;
+  private final PrivateKeyOffload privateKeyOffload;
+  private final Certificates certificates;
+  private final HandshakeLimiter handshakeLimiter;
   private final SkippingChannelInboundHandlerAdapter redirectHandler;
   // private final DownstreamHandler downstreamHandler;
   private final UpstreamRouter upstreamRouter;
   private final IpTraitsLookup ipTraitsLookup;
+  private final Transport transport;
   private final EventLoopGroup eventLoopGroup;
   private final RequestLogger requestLogger;
   private final SanitizeHostHandler sanitizeHostHandler;
+  private final CollapsedForwarding collapsedForwarding;
+  private final ResponseCache responseCache;
+  private final ResponseCompression compression;
+  private final AdminServer adminServer;
+  private final StaticFiles staticFiles;
+  private final QuicSslContext quicSslContext;
+  private final ChannelHandler altSvcHandler;
 
   public Proxy(ProxyConfig proxyConfig) {
     dumpConfig(proxyConfig);
@@ -55,15 +73,33 @@ public class Proxy implements ProxyContext {
     } else {
       connectionConfig = proxyConfig.listen().connection();
     }
-    eventLoopGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+    transport = Transport.select(proxyConfig.listen().transport());
+    eventLoopGroup = new MultiThreadIoEventLoopGroup(transport.ioHandlerFactory());
     config = proxyConfig;
     metricsBridge = initializeMetrics();
     metricsBridge.expose(metrics);
+    metricsBridge.expose(upstreamMetrics);
     trackIngressConnectionsHandler = metricsBridge.expose(new  TrackIngressConnectionsHandler());
     admissionHandler = new AdmissionHandler(proxyConfig.admission());
     metricsBridge.expose(admissionHandler);
-    sslContext = initializeSslContext();
-    sniMapping = initializeSniMapping();
+    tlsSessions = metricsBridge.expose(new TlsSessions(proxyConfig.listen().session()));
+    privateKeyOffload = initializePrivateKeyOffload();
+    certificates = initializeCertificates();
+    if (certificates != null) {
+      metricsBridge.expose(certificates);
+    }
+    HandshakeLimitConfig handshakeLimit = proxyConfig.listen().handshakeLimit();
+    handshakeLimiter = certificates != null && handshakeLimit != null && handshakeLimit.enable() ?
+      metricsBridge.expose(new HandshakeLimiter(handshakeLimit)) : null;
+    if (proxyConfig.listen().http3()) {
+      if (certificates == null) {
+        throw new IllegalArgumentException("HTTP/3 requires TLS, configure ssl, sni or domains");
+      }
+      quicSslContext = Http3Ingress.sslContext(certificates.quicMapping());
+    } else {
+      quicSslContext = null;
+    }
+    altSvcHandler = quicSslContext != null ? Http3Ingress.altSvcHandler(proxyConfig.listen().port()) : null;
     Set<String> servicedHosts = new HashSet<>();
     redirectHandler = proxyConfig.redirect() != null ? new UnservicedHandler(proxyConfig.redirect()) : null;
     if (proxyConfig.redirect() != null) {
@@ -71,13 +107,34 @@ public class Proxy implements ProxyContext {
     }
     // downstreamHandler = new DownstreamHandler(proxyConfig);
     if (proxyConfig.upstream().size() == 1) {
-      Upstream upstream = new DefaultUpstream(this, proxyConfig.upstream().getFirst());
+      Upstream upstream = Upstream.create(this, proxyConfig.upstream().getFirst());
       upstreamRouter = request -> upstream;
     } else {
       upstreamRouter = new HostBasedUpstreamRouter(this, proxyConfig.upstream());
       servicedHosts.addAll(((HostBasedUpstreamRouter) upstreamRouter).getServicedHosts());
     }
     sanitizeHostHandler = new SanitizeHostHandler(servicedHosts);
+    staticFiles = StaticFiles.create(proxyConfig.upstream());
+    if (staticFiles != null) {
+      metricsBridge.expose(staticFiles);
+    }
+    collapsedForwarding = proxyConfig.collapse() != null && proxyConfig.collapse().enable() ?
+      metricsBridge.expose(new CollapsedForwarding(proxyConfig.collapse())) : null;
+    responseCache = proxyConfig.cache() != null && proxyConfig.cache().enable() ?
+      metricsBridge.expose(new ResponseCache(proxyConfig.cache(),
+        new UpstreamFetcher(upstreamRouter, connectionConfig.responseTimeoutSeconds() * 1000L))) : null;
+    compression = proxyConfig.compression() != null && proxyConfig.compression().enable() ?
+      metricsBridge.expose(new ResponseCompression(proxyConfig.compression())) : null;
+    if (proxyConfig.admin() != null && proxyConfig.admin().enable()) {
+      if (responseCache == null) {
+        LOG.error("Admin server not started, it requires the response cache");
+        adminServer = null;
+      } else {
+        adminServer = new AdminServer(proxyConfig.admin(), responseCache, eventLoopGroup, transport);
+      }
+    } else {
+      adminServer = null;
+    }
     requestLogger = new DistributingRequestLogger(
       new StandardOutRequestLogger(),
       metricsBridge.expose(new ExposeRequestCountPerStatusCodeHandler()));
@@ -118,113 +175,277 @@ public class Proxy implements ProxyContext {
     return new PrometheusMetricsBridge(prometheusConfig);
   }
 
-  SslContext initializeSslContext() {
-    if (config.listen().ssl() == null) {
+  /**
+   * Certificates of the listener, the default is the certificate configured with {@code ssl}
+   * or the first of {@code sni} or {@code domains}
+   *
+   * @return {@code null} if no certificates are configured
+   */
+  Certificates initializeCertificates() {
+    ListenConfig listen = config.listen();
+    Map<String, SslConfig> domains = new LinkedHashMap<>();
+    if (listen.domains() != null) {
+      listen.domains().forEach(domain -> domains.put(domain, letsEncryptConfig(domain)));
+    }
+    if (listen.sni() != null) {
+      listen.sni().forEach(sni -> domains.put(sni.domain(), sni.ssl()));
+    }
+    SslConfig defaultConfig = listen.ssl();
+    if (defaultConfig == null && listen.sni() != null) {
+      defaultConfig = listen.sni().getFirst().ssl();
+    }
+    if (defaultConfig == null && !domains.isEmpty()) {
+      defaultConfig = domains.values().iterator().next();
+    }
+    if (defaultConfig == null) {
       return null;
     }
-    return createSslContext(config.listen().ssl());
+    return new Certificates(defaultConfig, domains, this::createSslContext,
+      listen.http3() ? Http3Ingress::sslContext : null, tlsSessions::unregister);
   }
 
-  Mapping<String, SslContext> initializeSniMapping() {
-    var domains = config.listen().domains();
-    var snis = config.listen().sni();
-    var defaultContext = initializeSslContext();
-    if (defaultContext == null && snis != null) {
-      defaultContext = createSslContext(snis.get(0).ssl());
-    }
-    var builder = new DomainWildcardMappingBuilder<>(defaultContext);
-    if (domains != null) {
-      for (String domain : domains) {
-        String filePrefix = "/etc/letsencrypt/live/";
-        builder.add(domain, createSslContext(new SslConfig(
-          filePrefix + domain + "/privkey.pem",
-          filePrefix + domain + "/fullchain.pem")));
-      }
+  /**
+   * Thread pool for private key operations, if enabled and the OpenSSL implementation
+   * is BoringSSL, which supports asynchronous key operations
+   */
+  PrivateKeyOffload initializePrivateKeyOffload() {
+    PrivateKeyOffloadConfig cfg = config.listen().privateKeyOffload();
+    if (cfg == null || !cfg.enable()) {
+      return null;
     }
-    if (snis != null) {
-      snis.forEach(sni -> builder.add(sni.domain(), createSslContext(sni.ssl())));
+    if (!"BoringSSL".equals(OpenSsl.versionString())) {
+      LOG.error("Private key offload not enabled, it requires BoringSSL, OpenSSL: " + OpenSsl.versionString());
+      return null;
     }
-    return builder.build();
+    return metricsBridge.expose(new PrivateKeyOffload(cfg));
+  }
+
+  static SslConfig letsEncryptConfig(String domain) {
+    String filePrefix = "/etc/letsencrypt/live/";
+    return new SslConfig(
+      filePrefix + domain + "/privkey.pem",
+      filePrefix + domain + "/fullchain.pem");
   }
 
   SslContext createSslContext(SslConfig cfg) {
     try {
-      return SslContextBuilder.forServer(new File(cfg.cert()), new File(cfg.key()))
-        .clientAuth(ClientAuth.NONE)
-        .sslProvider(SslProvider.OPENSSL)
-        .build();
-    } catch (SSLException e) {
+      SslContextBuilder builder;
+      if (ServerKeys.hasEcdsa(cfg)) {
+        builder = SslContextBuilder.forServer(ServerKeys.keyManagerFactory(cfg))
+          .ciphers(ServerKeys.ECDSA_FIRST_CIPHERS, SupportedCipherSuiteFilter.INSTANCE);
+      } else {
+        builder = SslContextBuilder.forServer(new File(cfg.cert()), new File(cfg.key()));
+      }
+      builder.clientAuth(ClientAuth.NONE)
+        .sslProvider(SslProvider.OPENSSL);
+      if (config.listen().http2()) {
+        builder.applicationProtocolConfig(Http2Ingress.alpnConfig());
+      }
+      if (privateKeyOffload != null) {
+        builder.option(OpenSslContextOption.ASYNC_PRIVATE_KEY_METHOD,
+          privateKeyOffload.newKeyMethod(ServerKeys.privateKeys(cfg)));
+      }
+      tlsSessions.configure(builder);
+      return tlsSessions.register(builder.build());
+    } catch (IOException | GeneralSecurityException e) {
       throw new RuntimeException(e);
     }
   }
 
   public void start() throws Exception {
-    EventLoopGroup bossGroup = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
-    EventLoopGroup workerGroup = new MultiThreadIoEventLoopGroup(NioIoHandler.newFactory());
+    boolean reusePort = config.listen().reusePort();
+    EventLoopGroup bossGroup = reusePort ? null : new MultiThreadIoEventLoopGroup(1, transport.ioHandlerFactory());
+    // upstream connections share the worker loops, so a request is processed in one thread
+    EventLoopGroup workerGroup = eventLoopGroup;
+    Map<EventLoop, CounterDataPoint> acceptedPerLoop = new IdentityHashMap<>();
+    ListenConfig listen = config.listen();
+    boolean alpn = listen.http2() && certificates != null;
+    int loopIndex = 0;
+    for (EventExecutor executor : workerGroup) {
+      acceptedPerLoop.put((EventLoop) executor,
+        metrics.ingressAcceptedConnectionsCounter.labelValues(Integer.toString(loopIndex++)));
+    }
     try {
       ServerBootstrap sb = new ServerBootstrap();
-      sb.group(bossGroup, workerGroup)
-        .channel(NioServerSocketChannel.class)
+      sb.channel(transport.serverSocketChannelClass())
         // .option(ChannelOption.SO_SNDBUF, 1 * 1024) // testing
         .childHandler(new ChannelInitializer<SocketChannel>() {
           @Override
           protected void initChannel(SocketChannel ch) {
+            acceptedPerLoop.get(ch.eventLoop()).inc();
             ch.pipeline().addLast(trackIngressConnectionsHandler);
-            if (sniMapping != null) {
-              ch.pipeline().addLast(new SniHandler(sniMapping));
-            } else if (sslContext != null) {
-              ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+            if (handshakeLimiter != null) {
+              ch.pipeline().addLast(handshakeLimiter.newHandler());
+            }
+            if (certificates != null) {
+              ch.pipeline().addLast(new SniHandler(certificates));
             }
-            ch.pipeline().addLast(new HttpServerCodec());
-            ch.pipeline().addLast(sanitizeHostHandler);
-            // logger sits between codec and rest so it sees header modifications
-            // from timeout and keep alive below
-            ch.pipeline().addLast(new RequestLoggingHandler(requestLogger));
-            ch.pipeline().addLast(new ClientTimeoutHandler(connectionConfig, metrics));
-            ch.pipeline().addLast(new HttpServerKeepAliveHandler());
-            // ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO, ByteBufFormat.SIMPLE));
-            ch.pipeline().addLast(new IpTraitsHandler(ipTraitsLookup));
-//            ch.pipeline().addLast(new ReportIoErrorsHandler("downstream"));
-            // TODO: check and sanitize host header
-            ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
-              // strip port from host
-              @Override
-              public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-                if (msg instanceof HttpRequest rq) {
-                  String host = rq.headers().get(HttpHeaderNames.HOST);
-                  if (host != null) {
-                    String []sa =  host.split(":");
-                    host = sa[0];
-                    rq.headers().set(HttpHeaderNames.HOST, host);
-                  }
-                }
-                super.channelRead(ctx, msg);
-              }
-            });
-            if (redirectHandler != null) {
-              ch.pipeline().addLast(redirectHandler);
+            if (alpn) {
+              ch.pipeline().addLast(new ProtocolNegotiationHandler(metrics,
+                Proxy.this::addHttp1Handlers, Proxy.this::addHttp2Handlers));
+            } else {
+              addHttp1Handlers(ch.pipeline());
             }
-            ch.pipeline().addLast(admissionHandler);
-//            ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO));
-            ch.pipeline().addLast(new DownstreamHandler(upstreamRouter, metrics));
           }
         });
       int port = config.listen().port();
-      ChannelFuture f = sb.bind(port).sync();
+      List<Channel> serverChannels = new ArrayList<>();
+      if (reusePort) {
+        // one listening socket per event loop, accepted connections stay on the accepting loop
+        for (EventLoop loop : acceptedPerLoop.keySet()) {
+          serverChannels.add(sb.clone()
+            .group(loop, loop)
+            .option(transport.reusePortOption(), true)
+            .bind(port).sync().channel());
+        }
+      } else {
+        sb.group(bossGroup, workerGroup);
+        serverChannels.add(sb.bind(port).sync().channel());
+      }
+      if (quicSslContext != null) {
+        if (reusePort) {
+          for (EventLoop loop : acceptedPerLoop.keySet()) {
+            serverChannels.add(bindHttp3(loop, port, true));
+          }
+        } else {
+          serverChannels.add(bindHttp3(workerGroup.next(), port, false));
+        }
+        System.out.println("HTTP/3 listening on UDP port " + port);
+      }
+      if (adminServer != null) {
+        adminServer.start();
+      }
+      tlsSessions.scheduleReload(workerGroup);
+      if (certificates != null) {
+        certificates.scheduleReload(config.listen().certificateCheckSeconds());
+      }
       System.out.println("Open SSL: " + OpenSsl.versionString());
-      System.out.println("Proxy listening on port " + port);
+      System.out.println("Transport: " + transport);
+      System.out.println("Proxy listening on port " + port + ", acceptors: " + serverChannels.size());
       LOG.trace("tracing enabled");
-      f.channel().closeFuture().sync();
+      for (Channel ch : serverChannels) {
+        ch.closeFuture().sync();
+      }
     } finally {
-      bossGroup.shutdownGracefully();
+      if (bossGroup != null) {
+        bossGroup.shutdownGracefully();
+      }
       workerGroup.shutdownGracefully();
     }
   }
 
+  /**
+   * UDP socket for HTTP/3. QUIC connections are processed on the event loop of the socket.
+   */
+  private Channel bindHttp3(EventLoop loop, int port, boolean reusePort) throws InterruptedException {
+    Bootstrap bootstrap = new Bootstrap()
+      .group(loop)
+      .channel(transport.datagramChannelClass())
+      .handler(Http3Ingress.codec(quicSslContext, connectionConfig, !reusePort, metrics,
+        stream -> addRequestHandlers(stream, false)));
+    if (reusePort) {
+      bootstrap.option(transport.reusePortOption(), true);
+    }
+    return bootstrap.bind(port).sync().channel();
+  }
+
+  /**
+   * HTTP/1.1 codec followed by the request handlers
+   */
+  void addHttp1Handlers(ChannelPipeline pipeline) {
+    pipeline.addLast(new HttpServerCodec());
+    int maxPipelined = connectionConfig.maxPipelinedRequests() > 0 ?
+      connectionConfig.maxPipelinedRequests() : ConnectionConfig.DEFAULT.maxPipelinedRequests();
+    pipeline.addLast(new PipeliningHandler(maxPipelined, metrics));
+    if (altSvcHandler != null) {
+      pipeline.addLast(altSvcHandler);
+    }
+    addRequestHandlers(pipeline, true);
+  }
+
+  /**
+   * HTTP/2 connection handlers, each stream gets the request handlers
+   */
+  void addHttp2Handlers(ChannelPipeline pipeline) {
+    Http2Ingress.configure(pipeline, connectionConfig, metrics, stream -> {
+      if (altSvcHandler != null) {
+        stream.addLast(altSvcHandler);
+      }
+      addRequestHandlers(stream, false);
+    });
+  }
+
+  /**
+   * Handlers processing requests of an HTTP/1.1 connection or an HTTP/2 stream, after the codec
+   *
+   * @param keepAlive add the HTTP/1.1 keep alive handling
+   */
+  void addRequestHandlers(ChannelPipeline pipeline, boolean keepAlive) {
+    pipeline.addLast(sanitizeHostHandler);
+    // logger sits between codec and rest so it sees header modifications
+    // from timeout and keep alive below
+    pipeline.addLast(new RequestLoggingHandler(requestLogger));
+    pipeline.addLast(new ClientTimeoutHandler(connectionConfig, metrics));
+    if (keepAlive) {
+      pipeline.addLast(new HttpServerKeepAliveHandler());
+    }
+    // pipeline.addLast(new LoggingHandler(LogLevel.INFO, ByteBufFormat.SIMPLE));
+    pipeline.addLast(new IpTraitsHandler(ipTraitsLookup));
+//    pipeline.addLast(new ReportIoErrorsHandler("downstream"));
+    // TODO: check and sanitize host header
+    pipeline.addLast(new ChannelInboundHandlerAdapter() {
+      // strip port from host
+      @Override
+      public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest rq) {
+          String host = rq.headers().get(HttpHeaderNames.HOST);
+          if (host != null) {
+            String []sa =  host.split(":");
+            host = sa[0];
+            rq.headers().set(HttpHeaderNames.HOST, host);
+          }
+        }
+        super.channelRead(ctx, msg);
+      }
+    });
+    if (redirectHandler != null) {
+      pipeline.addLast(redirectHandler);
+    }
+    pipeline.addLast(admissionHandler);
+    if (staticFiles != null) {
+      pipeline.addLast(staticFiles.newHandler());
+    }
+    if (compression != null) {
+      pipeline.addLast(compression.normalizeHandler());
+    }
+    if (responseCache != null) {
+      pipeline.addLast(responseCache.newHandler());
+    }
+    if (collapsedForwarding != null) {
+      pipeline.addLast(collapsedForwarding.newHandler());
+    }
+    if (compression != null) {
+      // compress before responses are stored or shared
+      pipeline.addLast(compression.newHandler());
+    }
+//    pipeline.addLast(new LoggingHandler(LogLevel.INFO));
+    pipeline.addLast(new DownstreamHandler(upstreamRouter, metrics));
+  }
+
   @Override
   public EventLoopGroup eventLoopGroup() {
     return eventLoopGroup;
   }
 
+  @Override
+  public Transport transport() {
+    return transport;
+  }
+
+  @Override
+  public UpstreamMetrics upstreamMetrics() {
+    return upstreamMetrics;
+  }
+
 }
 
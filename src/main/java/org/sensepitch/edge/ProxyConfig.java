@@ -14,6 +14,10 @@ public record ProxyConfig(
   AdmissionConfig admission,
   RedirectConfig redirect,
   IpLookupConfig ipLookup,
+  CollapseConfig collapse,
+  CacheConfig cache,
+  CompressionConfig compression,
+  AdminConfig admin,
   List<UpstreamConfig> upstream
 ) {
 }
@@ -9,4 +9,11 @@ public interface ProxyContext {
 
   EventLoopGroup eventLoopGroup();
 
+  /**
+   * Transport of the event loop group, upstream connections need to use the matching channel type.
+   */
+  Transport transport();
+
+  UpstreamMetrics upstreamMetrics();
+
 }
@@ -76,8 +76,7 @@ public interface ProxyLogger {
     @Override
     public void downstreamError(Channel downstream, String msg, Throwable cause) {
       String remoteHost = "-";
-      if (downstream.remoteAddress() instanceof InetSocketAddress) {
-        InetSocketAddress addr = (InetSocketAddress) downstream.remoteAddress();
+      if (ProxyUtil.remoteSocketAddress(downstream) instanceof InetSocketAddress addr) {
         remoteHost = addr.getAddress().getHostAddress();
       }
       error(downstream, "DOWNSTREAM ERROR " + msg + " "+ remoteHost + " " + cause);
@@ -47,6 +47,43 @@ public class ProxyMetrics implements HasMultipleMetrics {
   public final CounterDataPoint ingressReceiveTimeoutKeepAlive =
     ingressReceiveTimeoutCounter.labelValues("keep_alive");
 
+  /**
+   * Accepted connections per worker event loop. Shows whether the kernel distributes
+   * connections evenly when listening with SO_REUSEPORT.
+   */
+  public final Counter ingressAcceptedConnectionsCounter = metricSet.add(Counter.builder()
+    .name("ingress_accepted_connections")
+    .help("Accepted ingress connections per event loop")
+    .labelNames("loop")
+    .build());
+
+  /**
+   * Protocol negotiated via ALPN, HTTP/2 or HTTP/1.1, or {@code h3} for QUIC connections
+   */
+  public final Counter ingressProtocolCounter = metricSet.add(Counter.builder()
+    .name("ingress_negotiated_protocol")
+    .help("TLS connections by protocol negotiated via ALPN")
+    .labelNames("protocol")
+    .build());
+
+  public final Counter ingressHttp2StreamsCounter = metricSet.add(Counter.builder()
+    .name("ingress_http2_streams")
+    .help("HTTP/2 streams opened by clients")
+    .build());
+
+  public final Counter ingressHttp3StreamsCounter = metricSet.add(Counter.builder()
+    .name("ingress_http3_streams")
+    .help("HTTP/3 request streams opened by clients")
+    .build());
+
+  /**
+   * HTTP/1.1 requests received while a previous request on the connection was not answered
+   */
+  public final Counter ingressPipelinedRequestsCounter = metricSet.add(Counter.builder()
+    .name("ingress_pipelined_requests")
+    .help("Pipelined HTTP/1.1 requests that were queued")
+    .build());
+
   @Override
   public void registerCollectors(Consumer<Collector> consumer) {
     metricSet.forEach(consumer);
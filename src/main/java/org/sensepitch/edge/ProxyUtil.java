@@ -3,7 +3,13 @@ package org.sensepitch.edge;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.embedded.EmbeddedChannel;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.quic.QuicChannel;
+import io.netty.handler.codec.quic.QuicStreamChannel;
+import io.netty.handler.ssl.SslHandler;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 /**
  * @author Jens Wilke
@@ -14,11 +20,44 @@ public final class ProxyUtil {
     return extractRemoteIp(ctx.channel());
   }
 
+  /**
+   * Remote IP of a connection or of the connection of an HTTP/2 or HTTP/3 stream
+   */
   public static String extractRemoteIp(Channel channel) {
     if (channel instanceof EmbeddedChannel) {
       return "embedded";
     }
-    return ((SocketChannel) channel).remoteAddress().getAddress().getHostAddress();
+    if (remoteSocketAddress(channel) instanceof InetSocketAddress address) {
+      return address.getAddress().getHostAddress();
+    }
+    return String.valueOf(channel.remoteAddress());
+  }
+
+  /**
+   * Address of the client. An HTTP/2 stream channel has the address of its connection.
+   * A QUIC stream or connection has a QUIC specific address, the UDP address of the
+   * client is kept by the QUIC connection and changes if the connection migrates.
+   *
+   * @return the address, or {@code null} if not known
+   */
+  public static SocketAddress remoteSocketAddress(Channel channel) {
+    if (channel instanceof QuicStreamChannel stream) {
+      return stream.parent().remoteSocketAddress();
+    }
+    if (channel instanceof QuicChannel quic) {
+      return quic.remoteSocketAddress();
+    }
+    return channel.remoteAddress();
+  }
+
+  /**
+   * True, if a {@link io.netty.channel.FileRegion} can be written to the channel. File
+   * regions are written via {@code sendfile}, which needs plain HTTP/1.1. With TLS,
+   * HTTP/2 or HTTP/3 framing the bytes need to go through the pipeline.
+   */
+  public static boolean isFileRegionSupported(Channel channel) {
+    return !(channel instanceof Http2StreamChannel) && !(channel instanceof QuicStreamChannel) &&
+      channel.pipeline().get(SslHandler.class) == null;
   }
 
 }
@@ -4,6 +4,7 @@ import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
@@ -19,8 +20,8 @@ import io.netty.util.concurrent.Ticker;
  * content is written.
  *
  * <p>Note on concurrency: there is no concurrent activity on this object.
- * The downstream request comes from one thread, after submitting the upstream request,
- * writes come from the upstream reading thread
+ * Upstream connections are registered on the event loop of the downstream channel,
+ * so request reads and response writes come from the same thread.
  *
  * @author Jens Wilke
  */
@@ -97,6 +98,9 @@ public class RequestLoggingHandler extends ChannelDuplexHandler implements Reque
     if (msg instanceof HttpContent httpContent) {
       contentBytes += httpContent.content().readableBytes();
     }
+    if (msg instanceof FileRegion region) {
+      contentBytes += region.count();
+    }
     if (msg instanceof LastHttpContent lastHttpContent) {
       long now = ticker.nanoTime();
       if (responseStartedTimeNanos == 0) {
@@ -0,0 +1,825 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Shared in memory cache of upstream responses, used by all event loops. Lookups only read
+ * from a concurrent map. Each key maps to the variants of a response, that differ in the
+ * request headers named by {@code Vary}. Eviction is done by {@link TinyLfuPolicy} within a
+ * byte budget. With a disk directory configured, evicted entries and entries too large for
+ * memory go to the {@link DiskCache}.
+ *
+ * <p>Entries with {@code stale-while-revalidate} are served after expiry while one
+ * background request per key revalidates them, see {@link UpstreamFetcher}. Revalidation
+ * is conditional if the entry has an {@code ETag} or {@code Last-Modified}, a not modified
+ * response from upstream refreshes the entry in place, without transferring the body.
+ *
+ * <p>Entries are purged by key, key prefix or surrogate key tag via the {@link AdminServer}.
+ *
+ * @author Jens Wilke
+ * @see ResponseCacheHandler
+ */
+public class ResponseCache implements HasMultipleMetrics {
+
+  private static final int MAX_VARIANTS = 8;
+  private static final CacheEntry[] NO_ENTRIES = new CacheEntry[0];
+  private static final CharSequence[] NOT_MODIFIED_HEADERS = {
+    HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.CONTENT_LOCATION, HttpHeaderNames.DATE,
+    HttpHeaderNames.ETAG, HttpHeaderNames.EXPIRES, HttpHeaderNames.LAST_MODIFIED, HttpHeaderNames.VARY };
+
+  private final ConcurrentMap<String, CacheEntry[]> map = new ConcurrentHashMap<>();
+  /** Keys in memory by prefix and tag */
+  private final CacheIndex purgeIndex = new CacheIndex();
+  /** Incremented by each purge, responses requested before a purge are not stored */
+  private final AtomicLong purgeSequence = new AtomicLong();
+  /** Keys with a background revalidation in flight */
+  private final ConcurrentMap<String, Boolean> revalidating = new ConcurrentHashMap<>();
+  /** Sends revalidation requests or {@code null} */
+  private final UpstreamFetcher fetcher;
+  private final TinyLfuPolicy policy;
+  private final DiskCache disk;
+  private final int maxEntryBytes;
+  private final MetricSet metricSet = new MetricSet();
+
+  private final Counter requestsCounter = metricSet.add(Counter.builder()
+    .name("cache_requests")
+    .help("Requests answered from memory (hit), from disk (disk_hit), stale while revalidating (stale), " +
+      "stale because upstream failed (stale_if_error), forwarded upstream (miss) or not cacheable (bypass)")
+    .labelNames("result")
+    .build());
+
+  final CounterDataPoint hitCounter = requestsCounter.labelValues("hit");
+  final CounterDataPoint diskHitCounter = requestsCounter.labelValues("disk_hit");
+  final CounterDataPoint staleCounter = requestsCounter.labelValues("stale");
+  final CounterDataPoint staleIfErrorCounter = requestsCounter.labelValues("stale_if_error");
+  final CounterDataPoint missCounter = requestsCounter.labelValues("miss");
+  final CounterDataPoint bypassCounter = requestsCounter.labelValues("bypass");
+
+  final Counter notModifiedCounter = metricSet.add(Counter.builder()
+    .name("cache_not_modified_responses")
+    .help("Conditional client requests answered with not modified from the cache")
+    .build());
+
+  private final Counter evictionsCounter = metricSet.add(Counter.builder()
+    .name("cache_evictions")
+    .help("Cache entries removed to stay within the memory budget")
+    .build());
+
+  final Counter revalidationsCounter = metricSet.add(Counter.builder()
+    .name("cache_revalidations")
+    .help("Revalidations of stale entries by result: updated, not_modified, not_storable, error or " +
+      "limited, if the upstream was at its concurrency limit")
+    .labelNames("result")
+    .build());
+
+  private final Counter purgedCounter = metricSet.add(Counter.builder()
+    .name("cache_purged_entries")
+    .help("Entries removed by purge requests, memory and disk")
+    .build());
+
+  private final Counter warmUpsCounter = metricSet.add(Counter.builder()
+    .name("cache_warmups")
+    .help("Warm up requests by result: stored, not_storable or error")
+    .labelNames("result")
+    .build());
+
+  public ResponseCache(CacheConfig cfg) {
+    this(cfg, null);
+  }
+
+  /**
+   * @param fetcher sends background revalidations, without stale entries are
+   *                only served if upstream fails
+   */
+  public ResponseCache(CacheConfig cfg, UpstreamFetcher fetcher) {
+    this.fetcher = fetcher;
+    long maxBytes = (cfg.maxMegabytes() > 0 ? cfg.maxMegabytes() : 256) * 1024L * 1024L;
+    maxEntryBytes = (cfg.maxEntryKilobytes() > 0 ? cfg.maxEntryKilobytes() : 1024) * 1024;
+    // assume 16k average entry size for sizing the frequency sketch
+    int expectedEntries = (int) Math.min(1 << 24, maxBytes / (16 * 1024));
+    policy = new TinyLfuPolicy(maxBytes, expectedEntries, this::evicted);
+    metricSet.add(GaugeWithCallback.builder()
+      .name("cache_bytes")
+      .help("Estimated memory used by cached responses")
+      .callback(callback -> callback.call(policy.totalBytes()))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("cache_entries")
+      .help("Number of cached responses")
+      .callback(callback -> callback.call(policy.size()))
+      .build());
+    if (cfg.diskDirectory() != null) {
+      try {
+        disk = new DiskCache(cfg, purgeSequence::get);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      metricSet.add(GaugeWithCallback.builder()
+        .name("cache_disk_bytes")
+        .help("Disk space used by cache segment files")
+        .callback(callback -> callback.call(disk.usedBytes()))
+        .build());
+      metricSet.add(GaugeWithCallback.builder()
+        .name("cache_disk_entries")
+        .help("Number of responses cached on disk")
+        .callback(callback -> callback.call(disk.entryCount()))
+        .build());
+      metricSet.add(CounterWithCallback.builder()
+        .name("cache_disk_dropped_writes")
+        .help("Responses not written to disk, because the writer was behind")
+        .callback(callback -> callback.call(disk.droppedWrites()))
+        .build());
+    } else {
+      disk = null;
+    }
+  }
+
+  public ResponseCacheHandler newHandler() {
+    return new ResponseCacheHandler(this);
+  }
+
+  int maxEntryBytes() { return maxEntryBytes; }
+
+  /**
+   * Largest response that is buffered for storing, in memory or on disk
+   */
+  int maxStoreBytes() {
+    return disk != null ? Math.max(maxEntryBytes, disk.maxEntryBytes()) : maxEntryBytes;
+  }
+
+  /**
+   * Disk tier or {@code null} if not configured
+   */
+  DiskCache disk() { return disk; }
+
+  /**
+   * Cache key for a request, or {@code null} if the request cannot be answered from
+   * the cache.
+   */
+  static String cacheKey(HttpRequest request) {
+    HttpMethod method = request.method();
+    if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+      return null;
+    }
+    HttpHeaders headers = request.headers();
+    if (headers.contains(HttpHeaderNames.AUTHORIZATION) || headers.contains(HttpHeaderNames.RANGE)) {
+      return null;
+    }
+    String host = headers.get(HttpHeaderNames.HOST);
+    if (host == null) {
+      return null;
+    }
+    return host + request.uri();
+  }
+
+  /**
+   * Entry matching the request variant, fresh or not, or {@code null}
+   */
+  CacheEntry lookup(String key, HttpRequest request) {
+    CacheEntry[] variants = map.get(key);
+    if (variants == null) {
+      return null;
+    }
+    for (CacheEntry entry : variants) {
+      if (entry.matches(request)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  void recordHit(CacheEntry entry) {
+    hitCounter.inc();
+    policy.recordAccess(entry);
+  }
+
+  void recordDiskHit() {
+    diskHitCounter.inc();
+  }
+
+  void recordStale(CacheEntry entry) {
+    staleCounter.inc();
+    policy.recordAccess(entry);
+  }
+
+  void recordMiss(String key) {
+    missCounter.inc();
+    policy.recordMiss(key);
+  }
+
+  long purgeSequence() {
+    return purgeSequence.get();
+  }
+
+  /**
+   * Insert or replace the variant, unless the cache was purged after the response was
+   * requested. The cache takes over the content buffer of the entry. Entries too large
+   * for memory are written to disk.
+   *
+   * <p>The sequence is checked within the update of the key, so a purge of the key
+   * either removes the entry or the entry is not inserted.
+   *
+   * @param purgeSequence value of {@link #purgeSequence()} when the request was sent upstream
+   */
+  void put(CacheEntry entry, long purgeSequence) {
+    if (entry.contentLength > maxEntryBytes) {
+      if (disk != null) {
+        disk.store(entry, purgeSequence);
+      }
+      entry.release();
+      return;
+    }
+    List<CacheEntry> replaced = new ArrayList<>(1);
+    boolean[] purged = new boolean[1];
+    map.compute(entry.key, (k, variants) -> {
+      if (purgeSequence != this.purgeSequence.get()) {
+        purged[0] = true;
+        return variants;
+      }
+      List<CacheEntry> list = new ArrayList<>(variants != null ? variants.length + 1 : 1);
+      if (variants != null) {
+        for (CacheEntry e : variants) {
+          if (e.sameVariant(entry)) {
+            replaced.add(e);
+          } else {
+            list.add(e);
+          }
+        }
+      }
+      while (list.size() >= MAX_VARIANTS) {
+        replaced.add(list.removeFirst());
+      }
+      list.add(entry);
+      CacheEntry[] result = list.toArray(NO_ENTRIES);
+      purgeIndex.update(k, variants, result, e -> e.tags);
+      return result;
+    });
+    if (purged[0]) {
+      entry.release();
+      return;
+    }
+    for (CacheEntry e : replaced) {
+      if (policy.remove(e)) {
+        e.release();
+      }
+    }
+    policy.add(entry);
+  }
+
+  /**
+   * Copy an entry from disk into memory after a disk hit. The memory policy decides
+   * whether it stays.
+   *
+   * @param purgeSequence value of {@link #purgeSequence()} before the disk lookup, the
+   *                      entry is not copied if the cache was purged since
+   */
+  void promote(DiskCache.DiskEntry entry, HttpResponse response, long purgeSequence) {
+    if (entry.bodyLength > maxEntryBytes) {
+      return;
+    }
+    ByteBuf mapped = disk.mappedContent(entry);
+    ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(entry.bodyLength);
+    content.writeBytes(mapped, mapped.readerIndex(), entry.bodyLength);
+    mapped.release();
+    put(new CacheEntry(entry.key, response.status(), response.headers().copy(), content,
+      entry.varyNames, entry.varyValues, entry.initialAgeMillis, entry.storedMillis, entry.expiresMillis,
+      entry.staleWhileRevalidateMillis, entry.staleIfErrorMillis), purgeSequence);
+  }
+
+  /**
+   * Remove the entry, e.g. because it is invalid.
+   */
+  void remove(CacheEntry entry) {
+    removeFromMap(entry);
+    if (policy.remove(entry)) {
+      entry.release();
+    }
+  }
+
+  /**
+   * Called by the policy under its lock.
+   */
+  private void evicted(CacheEntry entry) {
+    long sequence = purgeSequence();
+    removeFromMap(entry);
+    if (disk != null && entry.isUsable(System.currentTimeMillis())) {
+      disk.store(entry, sequence);
+    }
+    entry.release();
+    evictionsCounter.inc();
+  }
+
+  private void removeFromMap(CacheEntry entry) {
+    map.computeIfPresent(entry.key, (k, variants) -> {
+      List<CacheEntry> list = new ArrayList<>(variants.length);
+      for (CacheEntry e : variants) {
+        if (e != entry) {
+          list.add(e);
+        }
+      }
+      CacheEntry[] result = list.isEmpty() ? null : list.toArray(NO_ENTRIES);
+      purgeIndex.update(k, variants, result, e -> e.tags);
+      return result;
+    });
+  }
+
+  /**
+   * Remove all variants of the key from memory and disk.
+   *
+   * @return number of removed entries
+   */
+  int purge(String key) {
+    purgeSequence.incrementAndGet();
+    int count = purgeKey(key);
+    purgedCounter.inc(count);
+    return count;
+  }
+
+  /**
+   * Remove all entries with keys starting with the prefix. Only the matching keys are
+   * visited, see {@link CacheIndex}.
+   *
+   * @return number of removed entries
+   */
+  int purgePrefix(String prefix) {
+    purgeSequence.incrementAndGet();
+    Set<String> keys = new HashSet<>(purgeIndex.keysWithPrefix(prefix));
+    if (disk != null) {
+      keys.addAll(disk.purgeIndex().keysWithPrefix(prefix));
+    }
+    return purgeKeys(keys);
+  }
+
+  /**
+   * Remove all entries tagged with the surrogate key.
+   *
+   * @return number of removed entries
+   */
+  int purgeTag(String tag) {
+    purgeSequence.incrementAndGet();
+    Set<String> keys = new HashSet<>(purgeIndex.keysWithTag(tag));
+    if (disk != null) {
+      keys.addAll(disk.purgeIndex().keysWithTag(tag));
+    }
+    return purgeKeys(keys);
+  }
+
+  private int purgeKeys(Set<String> keys) {
+    int count = 0;
+    for (String key : keys) {
+      count += purgeKey(key);
+    }
+    purgedCounter.inc(count);
+    return count;
+  }
+
+  private int purgeKey(String key) {
+    CacheEntry[][] removed = new CacheEntry[1][];
+    map.computeIfPresent(key, (k, variants) -> {
+      removed[0] = variants;
+      purgeIndex.update(k, variants, null, e -> e.tags);
+      return null;
+    });
+    int count = 0;
+    if (removed[0] != null) {
+      for (CacheEntry e : removed[0]) {
+        if (policy.remove(e)) {
+          e.release();
+        }
+      }
+      count += removed[0].length;
+    }
+    if (disk != null) {
+      count += disk.purge(key);
+    }
+    return count;
+  }
+
+  /**
+   * Absolute expiry time, if the response may be stored by a shared cache, or -1.
+   * Only responses with explicit freshness information are stored. The expiry time may be
+   * in the past, if the response is stale already.
+   */
+  static long expiresMillis(HttpResponse response, CacheControl cacheControl, long nowMillis) {
+    switch (response.status().code()) {
+      case 200, 203, 204, 300, 301, 308, 404, 410 -> { }
+      default -> { return -1; }
+    }
+    HttpHeaders headers = response.headers();
+    if (cacheControl.noStore() || cacheControl.isPrivate() || cacheControl.noCache() ||
+      headers.contains(HttpHeaderNames.SET_COOKIE)) {
+      return -1;
+    }
+    String vary = headers.get(HttpHeaderNames.VARY);
+    if (vary != null && vary.contains("*")) {
+      return -1;
+    }
+    long lifetimeMillis;
+    if (cacheControl.sharedMaxAge() >= 0) {
+      lifetimeMillis = cacheControl.sharedMaxAge() * 1000;
+    } else {
+      Date expires = parseDate(headers.get(HttpHeaderNames.EXPIRES));
+      if (expires == null) {
+        return -1;
+      }
+      Date date = parseDate(headers.get(HttpHeaderNames.DATE));
+      long base = date != null ? date.getTime() : nowMillis;
+      lifetimeMillis = expires.getTime() - base;
+    }
+    return nowMillis + lifetimeMillis - ageMillis(response);
+  }
+
+  /**
+   * HTTP date or {@code null} if absent or invalid
+   */
+  static Date parseDate(String value) {
+    return value != null ? DateFormatter.parseHttpDate(value) : null;
+  }
+
+  /**
+   * True, if the response is fresh or may be served stale
+   */
+  static boolean isStorable(long expiresMillis, CacheControl cacheControl, long nowMillis) {
+    return expiresMillis >= 0 &&
+      nowMillis < expiresMillis + Math.max(cacheControl.staleWhileRevalidateMillis(), cacheControl.staleIfErrorMillis());
+  }
+
+  /**
+   * Entry for a response to store. Hop by hop headers are removed, the content length is set.
+   * The entry takes over the content buffer.
+   */
+  static CacheEntry newEntry(String key, HttpRequest request, HttpResponse response, ByteBuf content,
+                             CacheControl cacheControl, long expiresMillis, long nowMillis) {
+    if (content.capacity() > content.readableBytes() * 2) {
+      content.capacity(content.readableBytes());
+    }
+    HttpHeaders headers = response.headers().copy();
+    headers.remove(HttpHeaderNames.CONNECTION);
+    headers.remove(HttpHeaderNames.KEEP_ALIVE);
+    headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+    headers.remove(HttpHeaderNames.AGE);
+    headers.setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+    String[] varyNames = varyNames(response);
+    String[] varyValues = new String[varyNames.length];
+    for (int i = 0; i < varyNames.length; i++) {
+      varyValues[i] = request.headers().get(varyNames[i]);
+    }
+    return new CacheEntry(key, response.status(), headers, content, varyNames, varyValues,
+      ageMillis(response), nowMillis, expiresMillis,
+      cacheControl.staleWhileRevalidateMillis(), cacheControl.staleIfErrorMillis());
+  }
+
+  /**
+   * Start a background revalidation of a memory entry for the key, unless one is running
+   * already or no fetcher is present. The request is the client request the stale entry was
+   * served for. If upstream answers not modified, the entry is refreshed in place.
+   */
+  void revalidate(String key, HttpRequest request, EventLoop loop, CacheEntry entry) {
+    revalidate(key, request, loop, entry.headers, notModified -> {
+      if (!refresh(entry, notModified)) {
+        remove(entry);
+      }
+    });
+  }
+
+  /**
+   * Start a background revalidation of a disk entry, see above.
+   */
+  void revalidate(String key, HttpRequest request, EventLoop loop, DiskCache.DiskEntry entry) {
+    if (fetcher == null || revalidating.containsKey(key)) {
+      return;
+    }
+    revalidate(key, request, loop, disk.readResponse(entry).headers(), notModified -> {
+      if (!refresh(entry, notModified)) {
+        disk.remove(entry);
+      }
+    });
+  }
+
+  private void revalidate(String key, HttpRequest request, EventLoop loop, HttpHeaders stored,
+                          Consumer<HttpResponse> notModified) {
+    if (fetcher == null || revalidating.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+    FullHttpRequest fetchRequest = revalidationRequest(request);
+    addValidators(fetchRequest.headers(), stored);
+    long sequence = purgeSequence();
+    fetcher.fetch(loop, fetchRequest, maxStoreBytes()).addListener((FutureListener<FullHttpResponse>) future -> {
+      revalidating.remove(key);
+      if (!future.isSuccess()) {
+        boolean limited = future.cause() instanceof ConcurrencyLimiter.LimitExceededException;
+        revalidationsCounter.labelValues(limited ? "limited" : "error").inc();
+        return;
+      }
+      FullHttpResponse response = future.resultNow();
+      try {
+        if (response.status().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+          notModified.accept(response);
+          revalidationsCounter.labelValues("not_modified").inc();
+        } else {
+          revalidationsCounter.labelValues(store(key, fetchRequest, response, sequence)).inc();
+        }
+      } finally {
+        response.release();
+      }
+    });
+  }
+
+  /**
+   * Fetch a request upstream and store the response, to warm up the cache.
+   *
+   * @return future with {@code true} if the response was stored
+   */
+  Future<Boolean> warmUp(EventLoop loop, FullHttpRequest request) {
+    Promise<Boolean> promise = loop.newPromise();
+    String key = cacheKey(request);
+    if (fetcher == null || key == null) {
+      request.release();
+      warmUpsCounter.labelValues("error").inc();
+      return promise.setSuccess(false);
+    }
+    long sequence = purgeSequence();
+    fetcher.fetch(loop, request, maxStoreBytes()).addListener((FutureListener<FullHttpResponse>) future -> {
+      if (!future.isSuccess()) {
+        warmUpsCounter.labelValues("error").inc();
+        promise.setSuccess(false);
+        return;
+      }
+      FullHttpResponse response = future.resultNow();
+      try {
+        String result = store(key, request, response, sequence);
+        boolean stored = result.equals("updated");
+        warmUpsCounter.labelValues(stored ? "stored" : result).inc();
+        promise.setSuccess(stored);
+      } finally {
+        response.release();
+      }
+    });
+    return promise;
+  }
+
+  /**
+   * Store a response fetched in the background.
+   *
+   * @return result for the metrics: updated, not_storable or error
+   */
+  private String store(String key, HttpRequest request, FullHttpResponse response, long sequence) {
+    if (response.status().code() >= 500) {
+      return "error";
+    }
+    long now = System.currentTimeMillis();
+    CacheControl cacheControl = CacheControl.parse(response.headers().get(HttpHeaderNames.CACHE_CONTROL));
+    long expiresMillis = expiresMillis(response, cacheControl, now);
+    if (!isStorable(expiresMillis, cacheControl, now)) {
+      return "not_storable";
+    }
+    ByteBuf content = response.content().retain();
+    put(newEntry(key, request, response, content, cacheControl, expiresMillis, now), sequence);
+    return "updated";
+  }
+
+  /**
+   * Update a memory entry with the headers of a not modified response from upstream.
+   *
+   * @return {@code false} if the updated entry may not be stored any more, the caller
+   *         removes it, after it was served if needed
+   */
+  boolean refresh(CacheEntry entry, HttpResponse notModified) {
+    long now = System.currentTimeMillis();
+    HttpHeaders headers = mergeNotModified(entry.headers, notModified.headers());
+    HttpResponse merged = new DefaultHttpResponse(HttpVersion.HTTP_1_1, entry.status, headers);
+    CacheControl cacheControl = CacheControl.parse(headers.get(HttpHeaderNames.CACHE_CONTROL));
+    long ageMillis = ageMillis(notModified);
+    long expiresMillis = expiresMillis(merged, cacheControl, now) - ageMillis;
+    if (!isStorable(expiresMillis, cacheControl, now)) {
+      return false;
+    }
+    entry.refresh(headers, ageMillis, now, expiresMillis,
+      cacheControl.staleWhileRevalidateMillis(), cacheControl.staleIfErrorMillis());
+    return true;
+  }
+
+  /**
+   * Update the freshness of a disk entry after a not modified response from upstream. The
+   * headers stored on disk stay unchanged, only the freshness is taken from the merged headers.
+   *
+   * @return {@code false} if the entry may not be stored any more
+   */
+  boolean refresh(DiskCache.DiskEntry entry, HttpResponse notModified) {
+    long now = System.currentTimeMillis();
+    HttpResponse stored = disk.readResponse(entry);
+    HttpHeaders headers = mergeNotModified(stored.headers(), notModified.headers());
+    HttpResponse merged = new DefaultHttpResponse(HttpVersion.HTTP_1_1, stored.status(), headers);
+    CacheControl cacheControl = CacheControl.parse(headers.get(HttpHeaderNames.CACHE_CONTROL));
+    long ageMillis = ageMillis(notModified);
+    long expiresMillis = expiresMillis(merged, cacheControl, now) - ageMillis;
+    if (!isStorable(expiresMillis, cacheControl, now)) {
+      return false;
+    }
+    disk.refresh(entry, ageMillis, now, expiresMillis,
+      cacheControl.staleWhileRevalidateMillis(), cacheControl.staleIfErrorMillis());
+    return true;
+  }
+
+  /**
+   * Stored headers updated with the headers of a not modified response, RFC 9111 section
+   * 4.3.4. Framing, hop by hop headers and the age are kept from the stored response.
+   */
+  static HttpHeaders mergeNotModified(HttpHeaders stored, HttpHeaders notModified) {
+    HttpHeaders merged = stored.copy();
+    for (String name : notModified.names()) {
+      if (HttpHeaderNames.CONTENT_LENGTH.contentEqualsIgnoreCase(name) ||
+        HttpHeaderNames.CONTENT_ENCODING.contentEqualsIgnoreCase(name) ||
+        HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(name) ||
+        HttpHeaderNames.CONNECTION.contentEqualsIgnoreCase(name) ||
+        HttpHeaderNames.KEEP_ALIVE.contentEqualsIgnoreCase(name) ||
+        HttpHeaderNames.AGE.contentEqualsIgnoreCase(name)) {
+        continue;
+      }
+      merged.set(name, notModified.getAll(name));
+    }
+    return merged;
+  }
+
+  /**
+   * Add conditions for the validators of a stored response to a request to upstream.
+   *
+   * @return {@code true} if the stored response has a validator
+   */
+  static boolean addValidators(HttpHeaders target, HttpHeaders stored) {
+    String etag = stored.get(HttpHeaderNames.ETAG);
+    String lastModified = stored.get(HttpHeaderNames.LAST_MODIFIED);
+    if (etag != null) {
+      target.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+    }
+    if (lastModified != null) {
+      target.set(HttpHeaderNames.IF_MODIFIED_SINCE, lastModified);
+    }
+    return etag != null || lastModified != null;
+  }
+
+  static void removeValidators(HttpHeaders target) {
+    target.remove(HttpHeaderNames.IF_NONE_MATCH);
+    target.remove(HttpHeaderNames.IF_MODIFIED_SINCE);
+  }
+
+  /**
+   * True, if the client request has conditions of its own
+   */
+  static boolean isConditional(HttpRequest request) {
+    HttpHeaders headers = request.headers();
+    return headers.contains(HttpHeaderNames.IF_NONE_MATCH) ||
+      headers.contains(HttpHeaderNames.IF_MODIFIED_SINCE) ||
+      headers.contains(HttpHeaderNames.IF_MATCH) ||
+      headers.contains(HttpHeaderNames.IF_UNMODIFIED_SINCE) ||
+      headers.contains(HttpHeaderNames.IF_RANGE);
+  }
+
+  /**
+   * Evaluate the conditions of a client GET or HEAD request against a stored response,
+   * RFC 9110 section 13.2.2. {@code If-Modified-Since} is only evaluated without
+   * {@code If-None-Match}.
+   *
+   * @return {@code true} if the client should get a not modified response
+   */
+  static boolean isNotModified(HttpRequest request, HttpHeaders stored) {
+    String ifNoneMatch = request.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      String etag = stored.get(HttpHeaderNames.ETAG);
+      if (etag == null) {
+        return false;
+      }
+      for (String candidate : ifNoneMatch.split(",")) {
+        String trimmed = candidate.trim();
+        if (trimmed.equals("*") || weakEtag(trimmed).equals(weakEtag(etag))) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Date ifModifiedSince = parseDate(request.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE));
+    if (ifModifiedSince == null) {
+      return false;
+    }
+    Date lastModified = parseDate(stored.get(HttpHeaderNames.LAST_MODIFIED));
+    return lastModified != null && !lastModified.after(ifModifiedSince);
+  }
+
+  private static String weakEtag(String etag) {
+    String trimmed = etag.trim();
+    return trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+  }
+
+  /**
+   * Not modified response for a client with a matching condition. Carries the headers
+   * RFC 9110 section 15.4.5 asks for, no body.
+   */
+  static FullHttpResponse notModifiedResponse(HttpHeaders stored, long ageSeconds) {
+    HttpHeaders headers = new DefaultHttpHeaders();
+    for (CharSequence name : NOT_MODIFIED_HEADERS) {
+      List<String> values = stored.getAll(name);
+      if (!values.isEmpty()) {
+        headers.set(name, values);
+      }
+    }
+    headers.set(HttpHeaderNames.AGE, ageSeconds);
+    return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED,
+      Unpooled.EMPTY_BUFFER, headers, EmptyHttpHeaders.INSTANCE);
+  }
+
+  /**
+   * Unconditional GET with the headers of the client request, without credentials and
+   * conditions of the client.
+   */
+  static FullHttpRequest revalidationRequest(HttpRequest request) {
+    FullHttpRequest fetchRequest = new DefaultFullHttpRequest(
+      HttpVersion.HTTP_1_1, HttpMethod.GET, request.uri(), Unpooled.EMPTY_BUFFER);
+    HttpHeaders headers = fetchRequest.headers();
+    headers.set(request.headers());
+    headers.remove(HttpHeaderNames.COOKIE);
+    headers.remove(HttpHeaderNames.CONNECTION);
+    headers.remove(HttpHeaderNames.KEEP_ALIVE);
+    headers.remove(HttpHeaderNames.CONTENT_LENGTH);
+    headers.remove(HttpHeaderNames.TRANSFER_ENCODING);
+    headers.remove(HttpHeaderNames.IF_NONE_MATCH);
+    headers.remove(HttpHeaderNames.IF_MODIFIED_SINCE);
+    headers.remove(HttpHeaderNames.IF_MATCH);
+    headers.remove(HttpHeaderNames.IF_UNMODIFIED_SINCE);
+    headers.remove(HttpHeaderNames.IF_RANGE);
+    headers.remove(AdmissionHandler.ADMISSION_TOKEN_HEADER);
+    headers.set("X-Forwarded-Proto", "https");
+    return fetchRequest;
+  }
+
+  static long ageMillis(HttpResponse response) {
+    String age = response.headers().get(HttpHeaderNames.AGE);
+    if (age == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(age.trim())) * 1000;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Request header names from the {@code Vary} response header, lower case
+   */
+  static String[] varyNames(HttpResponse response) {
+    List<String> names = new ArrayList<>();
+    for (String vary : response.headers().getAll(HttpHeaderNames.VARY)) {
+      for (String name : vary.split(",")) {
+        String trimmed = name.trim().toLowerCase(Locale.ROOT);
+        if (!trimmed.isEmpty() && !names.contains(trimmed)) {
+          names.add(trimmed);
+        }
+      }
+    }
+    return names.toArray(new String[0]);
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+}
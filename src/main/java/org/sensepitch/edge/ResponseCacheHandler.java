@@ -0,0 +1,429 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Answers requests from the {@link ResponseCache} and stores cacheable responses written
+ * back to the client. A hit is written directly from the event loop, the body is a retained
+ * duplicate of the cached buffer, so no bytes are copied. When storing, the response body is
+ * copied into a pooled direct buffer while it passes to the client.
+ *
+ * <p>A hit from the disk tier is sent as a file region on plain connections, so the body
+ * goes from the page cache to the socket without copying. Under TLS the body needs to be
+ * encrypted, it is passed as a buffer backed by the mapped segment.
+ *
+ * <p>A stale entry within its {@code stale-while-revalidate} time is served and revalidated
+ * in the background. Within its {@code stale-if-error} time the request is forwarded, but if
+ * the response is a server error, e.g. the 502 or 503 of the {@link DownstreamHandler} when
+ * upstream fails or is at its concurrency limit, the stale entry is sent instead.
+ *
+ * <p>An expired entry with an {@code ETag} or {@code Last-Modified} is revalidated with a
+ * conditional request, if the client did not send conditions of its own. A not modified
+ * response from upstream refreshes the entry and the client gets the cached response.
+ * Conditional client requests are answered with not modified from the cache, if the cached
+ * response matches.
+ *
+ * <p>Sits after the admission handler and before collapsed forwarding, so a miss for a
+ * popular URL still goes upstream only once.
+ *
+ * @author Jens Wilke
+ */
+public class ResponseCacheHandler extends ChannelDuplexHandler {
+
+  private final ResponseCache cache;
+  /** Discard the request content after the request was answered from the cache */
+  private boolean discardRequest;
+  /** Cache key of the current request, if the response may be stored */
+  private String storeKey;
+  private HttpRequest storeRequest;
+  /** Purge sequence when the request was forwarded, the response is not stored after a purge */
+  private long storePurgeSequence;
+  private HttpResponse storeResponse;
+  private ByteBuf storeContent;
+  private long storeExpiresMillis;
+  private CacheControl storeCacheControl;
+  /**
+   * Expired entry, memory or disk, that was not served. Sent if the response is not modified
+   * or a server error within the {@code stale-if-error} time.
+   */
+  private CacheEntry expiredEntry;
+  private DiskCache.DiskEntry expiredDiskEntry;
+  /** Purge sequence before the disk lookup, the entry is not promoted after a purge */
+  private long diskPurgeSequence;
+  private HttpRequest expiredRequest;
+  /** Validators of the expired entry were added to the forwarded request */
+  private boolean validatorsAdded;
+  /** Body of the expired memory entry, retained while it is revalidated */
+  private ByteBuf expiredContent;
+  /** Discard the rest of an error response that was replaced */
+  private boolean discardResponse;
+
+  ResponseCacheHandler(ResponseCache cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (discardRequest) {
+      if (msg instanceof LastHttpContent) {
+        discardRequest = false;
+      }
+      ReferenceCountUtil.release(msg);
+      return;
+    }
+    if (msg instanceof HttpRequest request) {
+      abortStore();
+      storeKey = null;
+      resetExpired();
+      String key = ResponseCache.cacheKey(request);
+      if (key == null) {
+        cache.bypassCounter.inc();
+      } else {
+        if (!isNoCacheRequest(request) && answerFromCache(ctx, key, request)) {
+          answered(msg);
+          return;
+        }
+        cache.recordMiss(key);
+        if (request.method() == HttpMethod.GET) {
+          storeKey = key;
+          storeRequest = request;
+          storePurgeSequence = cache.purgeSequence();
+        }
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  /**
+   * Answer with a fresh entry or a stale entry that is revalidated. Remember an expired
+   * entry that is revalidated by the forwarded request or can be sent if upstream fails.
+   */
+  private boolean answerFromCache(ChannelHandlerContext ctx, String key, HttpRequest request) {
+    long now = System.currentTimeMillis();
+    CacheEntry entry = cache.lookup(key, request);
+    if (entry != null) {
+      if (entry.isFresh(now) && writeCached(ctx, request, entry) != null) {
+        cache.recordHit(entry);
+        return true;
+      }
+      if (entry.isStaleWhileRevalidate(now) && writeCached(ctx, request, entry) != null) {
+        cache.recordStale(entry);
+        cache.revalidate(key, request, ctx.channel().eventLoop(), entry);
+        return true;
+      }
+      expiredEntry = entry;
+      expiredRequest = request;
+      if (!ResponseCache.isConditional(request)) {
+        // keep the body, a not modified response cannot be passed to the client
+        ByteBuf content = entry.retainedContent();
+        if (content != null && ResponseCache.addValidators(request.headers(), entry.headers)) {
+          expiredContent = content;
+          validatorsAdded = true;
+        } else if (content != null) {
+          content.release();
+        }
+      }
+      return false;
+    }
+    DiskCache disk = cache.disk();
+    long sequence = cache.purgeSequence();
+    DiskCache.DiskEntry diskEntry = disk != null ? disk.lookup(key, request) : null;
+    if (diskEntry != null) {
+      if (diskEntry.isFresh(now)) {
+        writeDiskCached(ctx, request, diskEntry, sequence);
+        cache.recordDiskHit();
+        return true;
+      }
+      if (diskEntry.isStaleWhileRevalidate(now)) {
+        writeDiskCached(ctx, request, diskEntry, sequence);
+        cache.staleCounter.inc();
+        cache.revalidate(key, request, ctx.channel().eventLoop(), diskEntry);
+        return true;
+      }
+      expiredDiskEntry = diskEntry;
+      diskPurgeSequence = sequence;
+      expiredRequest = request;
+      validatorsAdded = !ResponseCache.isConditional(request) &&
+        ResponseCache.addValidators(request.headers(), disk.readResponse(diskEntry).headers());
+    }
+    return false;
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    if (discardResponse) {
+      if (msg instanceof LastHttpContent) {
+        discardResponse = false;
+      }
+      ReferenceCountUtil.release(msg);
+      promise.trySuccess();
+      return;
+    }
+    if (msg instanceof HttpResponse response && expiredRequest != null) {
+      boolean notModified = validatorsAdded && response.status().code() == 304;
+      if (validatorsAdded) {
+        // the request was sent, the client did not ask for a conditional response
+        ResponseCache.removeValidators(expiredRequest.headers());
+        validatorsAdded = false;
+      }
+      if ((notModified || response.status().code() >= 500) && replaceWithCached(ctx, msg, promise, notModified)) {
+        return;
+      }
+    }
+    if (msg instanceof HttpResponse response && storeKey != null) {
+      startStore(response);
+    }
+    if (storeContent != null && msg instanceof HttpContent content) {
+      appendContent(content);
+    }
+    if (msg instanceof LastHttpContent) {
+      finishStore();
+      storeKey = null;
+      storeRequest = null;
+      resetExpired();
+    }
+    ctx.write(msg, promise);
+  }
+
+  /**
+   * Send the expired entry instead of the upstream response. After not modified the entry
+   * is refreshed first, after a server error it is sent if still allowed.
+   */
+  private boolean replaceWithCached(ChannelHandlerContext ctx, Object upstreamResponse, ChannelPromise promise,
+                                    boolean notModified) {
+    long now = System.currentTimeMillis();
+    ChannelFuture future = null;
+    CacheEntry entry = expiredEntry;
+    DiskCache.DiskEntry diskEntry = expiredDiskEntry;
+    long sequence = diskPurgeSequence;
+    HttpRequest request = expiredRequest;
+    ByteBuf content = expiredContent;
+    expiredContent = null;
+    resetExpired();
+    if (entry != null) {
+      boolean keep = true;
+      if (notModified) {
+        keep = cache.refresh(entry, (HttpResponse) upstreamResponse);
+      }
+      if (notModified || entry.isStaleIfError(now)) {
+        future = content != null ? writeCached(ctx, request, entry, content) : writeCached(ctx, request, entry);
+      } else if (content != null) {
+        content.release();
+      }
+      if (!keep) {
+        cache.remove(entry);
+      }
+    } else if (diskEntry != null) {
+      boolean keep = true;
+      if (notModified) {
+        keep = cache.refresh(diskEntry, (HttpResponse) upstreamResponse);
+      }
+      if (notModified || diskEntry.isStaleIfError(now)) {
+        future = writeDiskCached(ctx, request, diskEntry, sequence);
+      }
+      if (!keep) {
+        cache.disk().remove(diskEntry);
+      }
+    }
+    if (future == null) {
+      return false;
+    }
+    if (notModified) {
+      cache.revalidationsCounter.labelValues("not_modified").inc();
+    } else {
+      cache.staleIfErrorCounter.inc();
+    }
+    storeKey = null;
+    abortStore();
+    if (!(upstreamResponse instanceof LastHttpContent)) {
+      discardResponse = true;
+    }
+    ReferenceCountUtil.release(upstreamResponse);
+    if (!promise.isVoid()) {
+      future.addListener(f -> {
+        if (f.isSuccess()) {
+          promise.trySuccess();
+        } else {
+          promise.tryFailure(f.cause());
+        }
+      });
+    }
+    return true;
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    abortStore();
+    resetExpired();
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    abortStore();
+    resetExpired();
+  }
+
+  private void resetExpired() {
+    if (expiredContent != null) {
+      expiredContent.release();
+      expiredContent = null;
+    }
+    expiredEntry = null;
+    expiredDiskEntry = null;
+    expiredRequest = null;
+    validatorsAdded = false;
+  }
+
+  private void answered(Object request) {
+    if (!(request instanceof LastHttpContent)) {
+      discardRequest = true;
+    }
+    ReferenceCountUtil.release(request);
+  }
+
+  private static boolean isNoCacheRequest(HttpRequest request) {
+    HttpHeaders headers = request.headers();
+    return CacheControl.parse(headers.get(HttpHeaderNames.CACHE_CONTROL)).noCache() ||
+      headers.containsValue(HttpHeaderNames.PRAGMA, "no-cache", true);
+  }
+
+  /**
+   * @return future of the write, or {@code null} if the entry was evicted concurrently
+   */
+  private ChannelFuture writeCached(ChannelHandlerContext ctx, HttpRequest request, CacheEntry entry) {
+    ByteBuf content = entry.retainedContent();
+    if (content == null) {
+      return null;
+    }
+    return writeCached(ctx, request, entry, content);
+  }
+
+  /**
+   * @param content retained body of the entry, released by this method
+   */
+  private ChannelFuture writeCached(ChannelHandlerContext ctx, HttpRequest request, CacheEntry entry,
+                                    ByteBuf content) {
+    HttpHeaders stored = entry.headers;
+    if (ResponseCache.isNotModified(request, stored)) {
+      content.release();
+      cache.notModifiedCounter.inc();
+      return ctx.writeAndFlush(ResponseCache.notModifiedResponse(stored, entry.ageSeconds(System.currentTimeMillis())));
+    }
+    if (request.method() == HttpMethod.HEAD) {
+      content.release();
+      content = Unpooled.EMPTY_BUFFER;
+    }
+    HttpHeaders headers = stored.copy();
+    headers.set(HttpHeaderNames.AGE, entry.ageSeconds(System.currentTimeMillis()));
+    FullHttpResponse response = new DefaultFullHttpResponse(
+      HttpVersion.HTTP_1_1, entry.status, content, headers, EmptyHttpHeaders.INSTANCE);
+    return ctx.writeAndFlush(response);
+  }
+
+  /**
+   * @return future of the write
+   */
+  private ChannelFuture writeDiskCached(ChannelHandlerContext ctx, HttpRequest request, DiskCache.DiskEntry entry,
+                                        long purgeSequence) {
+    DiskCache disk = cache.disk();
+    HttpResponse response = disk.readResponse(entry);
+    if (ResponseCache.isNotModified(request, response.headers())) {
+      cache.notModifiedCounter.inc();
+      return ctx.writeAndFlush(
+        ResponseCache.notModifiedResponse(response.headers(), entry.ageSeconds(System.currentTimeMillis())));
+    }
+    Object content;
+    if (request.method() == HttpMethod.HEAD || entry.bodyLength == 0) {
+      content = LastHttpContent.EMPTY_LAST_CONTENT;
+    } else if (!ProxyUtil.isFileRegionSupported(ctx.channel())) {
+      content = new DefaultLastHttpContent(disk.mappedContent(entry));
+    } else {
+      content = disk.fileRegion(entry);
+      if (content == null) {
+        // segment deleted concurrently, the mapping stays valid
+        content = new DefaultLastHttpContent(disk.mappedContent(entry));
+      }
+    }
+    cache.promote(entry, response, purgeSequence);
+    response.headers().set(HttpHeaderNames.AGE, entry.ageSeconds(System.currentTimeMillis()));
+    ctx.write(response);
+    if (content instanceof FileRegion) {
+      ctx.write(content);
+      content = LastHttpContent.EMPTY_LAST_CONTENT;
+    }
+    return ctx.writeAndFlush(content);
+  }
+
+  private void startStore(HttpResponse response) {
+    abortStore();
+    long now = System.currentTimeMillis();
+    CacheControl cacheControl = CacheControl.parse(response.headers().get(HttpHeaderNames.CACHE_CONTROL));
+    long expiresMillis = ResponseCache.expiresMillis(response, cacheControl, now);
+    if (!ResponseCache.isStorable(expiresMillis, cacheControl, now)) {
+      storeKey = null;
+      return;
+    }
+    long contentLength = HttpUtil.getContentLength(response, -1L);
+    if (contentLength > cache.maxStoreBytes()) {
+      storeKey = null;
+      return;
+    }
+    int initialCapacity = contentLength >= 0 ? (int) contentLength : Math.min(8192, cache.maxStoreBytes());
+    storeResponse = response;
+    storeExpiresMillis = expiresMillis;
+    storeCacheControl = cacheControl;
+    storeContent = PooledByteBufAllocator.DEFAULT.directBuffer(initialCapacity, cache.maxStoreBytes());
+  }
+
+  private void appendContent(HttpContent content) {
+    ByteBuf buf = content.content();
+    if (storeContent.readableBytes() + buf.readableBytes() > cache.maxStoreBytes()) {
+      abortStore();
+      return;
+    }
+    storeContent.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+  }
+
+  private void finishStore() {
+    if (storeContent == null) {
+      return;
+    }
+    ByteBuf content = storeContent;
+    storeContent = null;
+    HttpResponse response = storeResponse;
+    storeResponse = null;
+    cache.put(ResponseCache.newEntry(storeKey, storeRequest, response, content,
+      storeCacheControl, storeExpiresMillis, System.currentTimeMillis()), storePurgeSequence);
+  }
+
+  private void abortStore() {
+    if (storeContent != null) {
+      storeContent.release();
+      storeContent = null;
+    }
+    storeResponse = null;
+  }
+
+}
@@ -0,0 +1,210 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliMode;
+import io.netty.handler.codec.compression.CompressionOptions;
+import io.netty.handler.codec.compression.StandardCompressionOptions;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Compression of upstream responses, shared by all connections. Each connection gets a
+ * {@link CompressionHandler} after the response cache and collapsed forwarding, so
+ * responses are compressed before they are stored or shared. A hit is served compressed
+ * without compressing again.
+ *
+ * <p>The {@code Accept-Encoding} request header is normalized to the one encoding that is
+ * used, before the response cache sees the request. So the cache stores at most one
+ * variant per encoding, instead of one per distinct header value of the clients.
+ *
+ * @author Jens Wilke
+ */
+public class ResponseCompression implements HasMultipleMetrics {
+
+  static final String BR = "br";
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private static final List<String> DEFAULT_CONTENT_TYPES = List.of(
+    "text/*", "application/javascript", "application/json", "application/xml",
+    "application/rss+xml", "application/atom+xml", "application/manifest+json", "image/svg+xml");
+
+  private final int minBytes;
+  private final List<String> contentTypes;
+  private final CompressionOptions[] options;
+  /** Encodings we produce, in order of preference */
+  private final List<String> encodings = new ArrayList<>();
+  private final NormalizeAcceptEncodingHandler normalizeHandler = new NormalizeAcceptEncodingHandler();
+  private final MetricSet metricSet = new MetricSet();
+  private final LongAdder inputBytes = new LongAdder();
+  private final LongAdder outputBytes = new LongAdder();
+  private final LongAdder cpuNanos = new LongAdder();
+
+  final Counter responsesCounter = metricSet.add(Counter.builder()
+    .name("compression_responses")
+    .help("Responses compressed by the proxy, by encoding")
+    .labelNames("encoding")
+    .build());
+
+  {
+    metricSet.add(CounterWithCallback.builder()
+      .name("compression_input_bytes")
+      .help("Response bytes before compression")
+      .callback(callback -> callback.call(inputBytes.sum()))
+      .build());
+    metricSet.add(CounterWithCallback.builder()
+      .name("compression_output_bytes")
+      .help("Response bytes after compression")
+      .callback(callback -> callback.call(outputBytes.sum()))
+      .build());
+    metricSet.add(CounterWithCallback.builder()
+      .name("compression_cpu_seconds")
+      .help("Time spent compressing responses within the event loops")
+      .callback(callback -> callback.call(cpuNanos.sum() / 1e9))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("compression_savings_ratio")
+      .help("Bytes saved by compression relative to the uncompressed size, since start")
+      .callback(callback -> {
+        long in = inputBytes.sum();
+        callback.call(in > 0 ? 1.0 - (double) outputBytes.sum() / in : 0);
+      })
+      .build());
+  }
+
+  public ResponseCompression(CompressionConfig cfg) {
+    minBytes = cfg.minBytes() > 0 ? cfg.minBytes() : 1024;
+    List<String> types = cfg.contentTypes() != null && !cfg.contentTypes().isEmpty() ?
+      cfg.contentTypes() : DEFAULT_CONTENT_TYPES;
+    contentTypes = types.stream().map(s -> s.trim().toLowerCase(Locale.ROOT)).toList();
+    int level = cfg.level() > 0 ? Math.min(9, cfg.level()) : 6;
+    int brotliQuality = cfg.brotliQuality() > 0 ? Math.min(11, cfg.brotliQuality()) : 4;
+    List<CompressionOptions> list = new ArrayList<>();
+    if (Brotli.isAvailable()) {
+      list.add(StandardCompressionOptions.brotli(brotliQuality, 22, BrotliMode.TEXT));
+      encodings.add(BR);
+    }
+    list.add(StandardCompressionOptions.gzip(level, 15, 8));
+    encodings.add(GZIP);
+    list.add(StandardCompressionOptions.deflate(level, 15, 8));
+    encodings.add(DEFLATE);
+    options = list.toArray(new CompressionOptions[0]);
+  }
+
+  public CompressionHandler newHandler() {
+    return new CompressionHandler(this, options);
+  }
+
+  /**
+   * Sharable handler that normalizes the {@code Accept-Encoding} request header,
+   * placed before the response cache.
+   */
+  public ChannelHandler normalizeHandler() {
+    return normalizeHandler;
+  }
+
+  int minBytes() { return minBytes; }
+
+  /**
+   * True, if the media type of the {@code Content-Type} header is in the allow list
+   */
+  boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    int semicolon = contentType.indexOf(';');
+    String mediaType = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+      .trim().toLowerCase(Locale.ROOT);
+    for (String type : contentTypes) {
+      if (type.endsWith("/*") ? mediaType.startsWith(type.substring(0, type.length() - 1)) : mediaType.equals(type)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The encoding we would use for the {@code Accept-Encoding} header value or {@code null}
+   * for no compression. Codings with {@code q=0} are not acceptable, a {@code *} accepts
+   * every coding.
+   */
+  String selectEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    List<String> accepted = new ArrayList<>(4);
+    boolean wildcard = false;
+    for (String part : acceptEncoding.split(",")) {
+      String[] params = part.split(";");
+      String coding = params[0].trim().toLowerCase(Locale.ROOT);
+      boolean zero = false;
+      for (int i = 1; i < params.length; i++) {
+        String param = params[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            zero = Double.parseDouble(param.substring(2)) <= 0;
+          } catch (NumberFormatException e) {
+            zero = true;
+          }
+        }
+      }
+      if (zero) {
+        continue;
+      }
+      if (coding.equals("*")) {
+        wildcard = true;
+      } else {
+        accepted.add(coding);
+      }
+    }
+    for (String encoding : encodings) {
+      if (wildcard || accepted.contains(encoding)) {
+        return encoding;
+      }
+    }
+    return null;
+  }
+
+  void recordCompression(long inBytes, long outBytes, long nanos) {
+    inputBytes.add(inBytes);
+    outputBytes.add(outBytes);
+    cpuNanos.add(nanos);
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  @ChannelHandler.Sharable
+  class NormalizeAcceptEncodingHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+      if (msg instanceof HttpRequest request) {
+        String encoding = selectEncoding(request.headers().get(HttpHeaderNames.ACCEPT_ENCODING));
+        if (encoding == null) {
+          request.headers().remove(HttpHeaderNames.ACCEPT_ENCODING);
+        } else {
+          request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, encoding);
+        }
+      }
+      super.channelRead(ctx, msg);
+    }
+
+  }
+
+}
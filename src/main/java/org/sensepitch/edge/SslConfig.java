@@ -3,12 +3,27 @@ package org.sensepitch.edge;
 import lombok.Builder;
 
 /**
+ * Key and certificate chain files in PEM format. The key must be unencrypted.
+ *
+ * @param key private key file
+ * @param cert certificate chain file, server certificate first
+ * @param ecdsaKey optional second private key with an ECDSA key. If set, the ECDSA
+ *                 certificate is preferred for clients supporting it, other clients get
+ *                 the certificate configured with {@code key} and {@code cert}
+ * @param ecdsaCert certificate chain file for {@code ecdsaKey}
+ *
  * @author Jens Wilke
  */
 @Builder
 public record SslConfig(
   String key,
-  String cert
+  String cert,
+  String ecdsaKey,
+  String ecdsaCert
 ){
 
+  public SslConfig(String key, String cert) {
+    this(key, cert, null, null);
+  }
+
 }
@@ -23,8 +23,7 @@ public class StandardOutRequestLogger implements RequestLogger {
     HttpRequest request = info.request();
     HttpResponse response = info.response();
     String remoteHost = "-";
-    if (info.channel().remoteAddress() instanceof InetSocketAddress) {
-      InetSocketAddress addr = (InetSocketAddress) info.channel().remoteAddress();
+    if (ProxyUtil.remoteSocketAddress(info.channel()) instanceof InetSocketAddress addr) {
       remoteHost = addr.getAddress().getHostAddress();
     }
     String admissionToken = request.headers().get(AdmissionHandler.ADMISSION_TOKEN_HEADER);
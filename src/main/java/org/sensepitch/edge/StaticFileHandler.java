@@ -0,0 +1,202 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Answers {@code GET} and {@code HEAD} requests for existing files below the static root
+ * of the host, other requests pass to the response cache and upstream. Supports
+ * conditional requests with the generated {@code ETag} or {@code Last-Modified} and a
+ * single byte range.
+ *
+ * <p>On plain connections the body is sent as file region, which uses {@code sendfile}
+ * with the native transports. Under TLS or HTTP/2 the bytes need to go through the pipeline,
+ * so the body is sent in chunks from the mapped file. The next chunk is written when the
+ * channel is writable again and reading is paused until the file is sent.
+ *
+ * @author Jens Wilke
+ * @see StaticFiles
+ */
+public class StaticFileHandler extends ChannelInboundHandlerAdapter {
+
+  static final ProxyLogger LOG = ProxyLogger.get(StaticFileHandler.class);
+
+  private final StaticFiles files;
+  private boolean discardRequest;
+  /** File sent in chunks, or {@code null} */
+  private StaticFiles.StaticFile chunkedFile;
+  private long chunkedPosition;
+  private long chunkedEnd;
+
+  StaticFileHandler(StaticFiles files) {
+    this.files = files;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (discardRequest) {
+      if (msg instanceof LastHttpContent) {
+        discardRequest = false;
+      }
+      ReferenceCountUtil.release(msg);
+      return;
+    }
+    if (msg instanceof HttpRequest request &&
+      (request.method() == HttpMethod.GET || request.method() == HttpMethod.HEAD)) {
+      Path path = files.resolve(request);
+      StaticFiles.StaticFile file = path != null ? files.lookup(path) : null;
+      if (file != null) {
+        try {
+          serve(ctx, request, file);
+        } finally {
+          file.release();
+        }
+        if (!(msg instanceof LastHttpContent)) {
+          discardRequest = true;
+        }
+        ReferenceCountUtil.release(msg);
+        return;
+      }
+    }
+    ctx.fireChannelRead(msg);
+  }
+
+  private void serve(ChannelHandlerContext ctx, HttpRequest request, StaticFiles.StaticFile file) {
+    HttpHeaders validators = validators(file);
+    if (ResponseCache.isNotModified(request, validators)) {
+      FullHttpResponse response = new DefaultFullHttpResponse(
+        HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.EMPTY_BUFFER);
+      response.headers().set(validators);
+      respond(ctx, response);
+      return;
+    }
+    long start = 0;
+    long end = file.size;
+    String ifRange = request.headers().get(HttpHeaderNames.IF_RANGE);
+    long[] range = ifRange == null || ifRange.equals(file.etag) || ifRange.equals(file.lastModified) ?
+      StaticFiles.range(request.headers().get(HttpHeaderNames.RANGE), file.size) : null;
+    if (range == StaticFiles.UNSATISFIABLE) {
+      FullHttpResponse response = new DefaultFullHttpResponse(
+        HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.EMPTY_BUFFER);
+      response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + file.size);
+      HttpUtil.setContentLength(response, 0);
+      respond(ctx, response);
+      return;
+    }
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    HttpHeaders headers = response.headers();
+    if (range != null) {
+      start = range[0];
+      end = range[1];
+      response.setStatus(HttpResponseStatus.PARTIAL_CONTENT);
+      headers.set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + (end - 1) + "/" + file.size);
+    }
+    // set(HttpHeaders) would replace all headers, including the content range
+    headers.add(validators);
+    headers.set(HttpHeaderNames.CONTENT_TYPE, file.contentType);
+    headers.set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+    HttpUtil.setContentLength(response, end - start);
+    files.responsesCounter.labelValues(Integer.toString(response.status().code())).inc();
+    ctx.write(response);
+    if (request.method() == HttpMethod.HEAD || end == start) {
+      ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    } else if (ProxyUtil.isFileRegionSupported(ctx.channel())) {
+      ctx.write(file.region(start, end - start));
+      ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    } else {
+      chunkedFile = file.retain();
+      chunkedPosition = start;
+      chunkedEnd = end;
+      ctx.channel().config().setAutoRead(false);
+      writeChunks(ctx);
+    }
+  }
+
+  private static HttpHeaders validators(StaticFiles.StaticFile file) {
+    HttpHeaders headers = new DefaultHttpHeaders();
+    headers.set(HttpHeaderNames.ETAG, file.etag);
+    headers.set(HttpHeaderNames.LAST_MODIFIED, file.lastModified);
+    return headers;
+  }
+
+  private void respond(ChannelHandlerContext ctx, FullHttpResponse response) {
+    files.responsesCounter.labelValues(Integer.toString(response.status().code())).inc();
+    ctx.writeAndFlush(response);
+  }
+
+  /**
+   * Write chunks until the channel is not writable or the file is sent.
+   */
+  private void writeChunks(ChannelHandlerContext ctx) {
+    while (chunkedFile != null && ctx.channel().isWritable()) {
+      int length = (int) Math.min(StaticFiles.CHUNK_SIZE, chunkedEnd - chunkedPosition);
+      ByteBuf chunk;
+      try {
+        chunk = chunkedFile.read(ctx.alloc(), chunkedPosition, length);
+      } catch (IOException e) {
+        LOG.error("Cannot read static file " + chunkedFile.path, e);
+        finishChunks(ctx);
+        ctx.close();
+        return;
+      }
+      chunkedPosition += length;
+      if (chunkedPosition >= chunkedEnd) {
+        ctx.writeAndFlush(new DefaultLastHttpContent(chunk));
+        finishChunks(ctx);
+        return;
+      }
+      ctx.write(new DefaultHttpContent(chunk));
+    }
+    ctx.flush();
+  }
+
+  private void finishChunks(ChannelHandlerContext ctx) {
+    if (chunkedFile != null) {
+      chunkedFile.release();
+      chunkedFile = null;
+      ctx.channel().config().setAutoRead(true);
+    }
+  }
+
+  @Override
+  public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+    if (chunkedFile != null && ctx.channel().isWritable()) {
+      writeChunks(ctx);
+    }
+    super.channelWritabilityChanged(ctx);
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    finishChunks(ctx);
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) {
+    finishChunks(ctx);
+  }
+
+}
@@ -0,0 +1,525 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ReferenceCounted;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Files served from the local file system, configured per host with
+ * {@link UpstreamConfig#staticRoot()}. A request is answered from the file system, if the
+ * path resolves to a regular file within the root, otherwise it goes upstream. Each
+ * connection gets a {@link StaticFileHandler}, the state here is shared.
+ *
+ * <p>Metadata and open file channels are cached per path, so a hot file is opened once and
+ * checked with one {@code stat} per second at most. Missing files are cached as well, so
+ * requests that go upstream don't hit the file system each time. A file that changed on
+ * disk gets a new channel, the old one is closed when the last response in flight using
+ * it is sent. Files should be replaced atomically, by renaming, since mapped reads of a
+ * file truncated in place fail.
+ *
+ * @author Jens Wilke
+ */
+public class StaticFiles implements HasMultipleMetrics {
+
+  static final ProxyLogger LOG = ProxyLogger.get(StaticFiles.class);
+
+  /** Served for a path ending with a slash */
+  static final String INDEX_FILE = "index.html";
+  /** Time after which cached metadata is checked against the file system */
+  static final long METADATA_MILLIS = 1000;
+  static final int MAX_CACHED_FILES = 4096;
+  /** Size of a chunk when the file is sent via TLS */
+  static final int CHUNK_SIZE = 64 * 1024;
+  static final long[] UNSATISFIABLE = new long[0];
+
+  private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+  private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+  static {
+    String utf8 = "; charset=utf-8";
+    CONTENT_TYPES.put("html", "text/html" + utf8);
+    CONTENT_TYPES.put("htm", "text/html" + utf8);
+    CONTENT_TYPES.put("css", "text/css" + utf8);
+    CONTENT_TYPES.put("js", "text/javascript" + utf8);
+    CONTENT_TYPES.put("mjs", "text/javascript" + utf8);
+    CONTENT_TYPES.put("txt", "text/plain" + utf8);
+    CONTENT_TYPES.put("csv", "text/csv" + utf8);
+    CONTENT_TYPES.put("json", "application/json");
+    CONTENT_TYPES.put("map", "application/json");
+    CONTENT_TYPES.put("webmanifest", "application/manifest+json");
+    CONTENT_TYPES.put("xml", "application/xml");
+    CONTENT_TYPES.put("pdf", "application/pdf");
+    CONTENT_TYPES.put("wasm", "application/wasm");
+    CONTENT_TYPES.put("zip", "application/zip");
+    CONTENT_TYPES.put("gz", "application/gzip");
+    CONTENT_TYPES.put("svg", "image/svg+xml");
+    CONTENT_TYPES.put("png", "image/png");
+    CONTENT_TYPES.put("jpg", "image/jpeg");
+    CONTENT_TYPES.put("jpeg", "image/jpeg");
+    CONTENT_TYPES.put("gif", "image/gif");
+    CONTENT_TYPES.put("webp", "image/webp");
+    CONTENT_TYPES.put("avif", "image/avif");
+    CONTENT_TYPES.put("ico", "image/x-icon");
+    CONTENT_TYPES.put("woff", "font/woff");
+    CONTENT_TYPES.put("woff2", "font/woff2");
+    CONTENT_TYPES.put("ttf", "font/ttf");
+    CONTENT_TYPES.put("otf", "font/otf");
+    CONTENT_TYPES.put("mp4", "video/mp4");
+    CONTENT_TYPES.put("webm", "video/webm");
+    CONTENT_TYPES.put("mp3", "audio/mpeg");
+  }
+
+  private final Map<String, Path> hostRoots;
+  private final Path defaultRoot;
+  /** Root with symbolic links resolved, per configured root */
+  private final Map<Path, Path> realRoots = new HashMap<>();
+  private final ConcurrentMap<Path, StaticFile> files = new ConcurrentHashMap<>();
+  private final LongAdder openFiles = new LongAdder();
+  private final MetricSet metricSet = new MetricSet();
+
+  final Counter responsesCounter = metricSet.add(Counter.builder()
+    .name("static_responses")
+    .help("Responses served from the local file system, by status code")
+    .labelNames("status")
+    .build());
+
+  {
+    metricSet.add(GaugeWithCallback.builder()
+      .name("static_open_files")
+      .help("Open file channels of the static file cache, including files of responses in flight")
+      .callback(callback -> callback.call(openFiles.sum()))
+      .build());
+  }
+
+  /**
+   * @param hostRoots root directory per host
+   * @param defaultRoot root directory for all other hosts or {@code null}
+   */
+  StaticFiles(Map<String, Path> hostRoots, Path defaultRoot) {
+    this.hostRoots = hostRoots;
+    this.defaultRoot = defaultRoot;
+    hostRoots.values().forEach(this::addRealRoot);
+    if (defaultRoot != null) {
+      addRealRoot(defaultRoot);
+    }
+  }
+
+  private void addRealRoot(Path root) {
+    try {
+      realRoots.put(root, root.toRealPath());
+    } catch (IOException e) {
+      // missing root, nothing is served from it
+      LOG.error("Cannot resolve static root " + root + ": " + e);
+    }
+  }
+
+  /**
+   * Roots of the upstream configurations with {@code staticRoot}. An upstream without
+   * host applies to all hosts.
+   *
+   * @return {@code null} if no upstream has a static root
+   */
+  static StaticFiles create(List<UpstreamConfig> upstreams) {
+    Map<String, Path> hostRoots = new HashMap<>();
+    Path defaultRoot = null;
+    for (UpstreamConfig cfg : upstreams) {
+      if (cfg.staticRoot() == null || cfg.staticRoot().isBlank()) {
+        continue;
+      }
+      Path root = Path.of(cfg.staticRoot()).toAbsolutePath().normalize();
+      if (!Files.isDirectory(root)) {
+        LOG.error("Static root is not a directory: " + root);
+      }
+      if (cfg.host() == null) {
+        defaultRoot = root;
+      } else {
+        hostRoots.put(cfg.host(), root);
+      }
+    }
+    if (hostRoots.isEmpty() && defaultRoot == null) {
+      return null;
+    }
+    return new StaticFiles(hostRoots, defaultRoot);
+  }
+
+  public StaticFileHandler newHandler() {
+    return new StaticFileHandler(this);
+  }
+
+  /**
+   * The file for the request path or {@code null}, if the host has no root or the path
+   * leaves the root. Segments starting with a dot are not served, this rejects {@code ..}
+   * as well as hidden files. Symbolic links are checked when the file is opened, see
+   * {@link #lookup(Path)}.
+   */
+  Path resolve(HttpRequest request) {
+    String host = request.headers().get(HttpHeaderNames.HOST);
+    Path root = host != null ? hostRoots.getOrDefault(host, defaultRoot) : defaultRoot;
+    if (root == null) {
+      return null;
+    }
+    String path;
+    try {
+      path = new QueryStringDecoder(request.uri()).path();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    if (!path.startsWith("/") || path.indexOf('\0') >= 0 || path.indexOf('\\') >= 0) {
+      return null;
+    }
+    for (String segment : path.split("/")) {
+      if (segment.startsWith(".")) {
+        return null;
+      }
+    }
+    if (path.endsWith("/")) {
+      path += INDEX_FILE;
+    }
+    try {
+      Path file = root.resolve(path.substring(1)).normalize();
+      return file.startsWith(root) ? file : null;
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Cached file, after checking the metadata if it is older than {@link #METADATA_MILLIS}.
+   * A file whose real path, with symbolic links resolved, is outside the real path of its
+   * root is treated as not existing.
+   *
+   * @return retained file, to be released by the caller, or {@code null} if not existing
+   */
+  StaticFile lookup(Path path) {
+    long now = System.currentTimeMillis();
+    StaticFile file = files.get(path);
+    if (file != null && now - file.checkedMillis < METADATA_MILLIS) {
+      if (!file.exists()) {
+        return null;
+      }
+      try {
+        return file.retain();
+      } catch (IllegalReferenceCountException e) {
+        // replaced concurrently, fall through
+      }
+    }
+    if (file == null && files.size() >= MAX_CACHED_FILES) {
+      evict();
+    }
+    StaticFile[] result = new StaticFile[1];
+    files.compute(path, (p, cached) -> {
+      StaticFile current = cached != null && now - cached.checkedMillis < METADATA_MILLIS ?
+        cached : check(p, cached, now);
+      if (current.exists()) {
+        result[0] = current.retain();
+      }
+      return current;
+    });
+    return result[0];
+  }
+
+  /**
+   * Compare the cached entry with the file system and open the file, if it changed.
+   * Called within the compute function of the map.
+   */
+  private StaticFile check(Path path, StaticFile cached, long now) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      attributes = null;
+    }
+    Path realPath = attributes != null && attributes.isRegularFile() ? realPathWithinRoot(path) : null;
+    if (realPath == null) {
+      if (cached != null && !cached.exists()) {
+        cached.checkedMillis = now;
+        return cached;
+      }
+      return replace(cached, new StaticFile(path, now));
+    }
+    if (cached != null && cached.matches(attributes)) {
+      cached.checkedMillis = now;
+      return cached;
+    }
+    try {
+      // the real path has no links, a link placed there meanwhile is not followed
+      FileChannel channel = FileChannel.open(realPath, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+      openFiles.increment();
+      return replace(cached, new StaticFile(path, channel, attributes, now));
+    } catch (IOException e) {
+      LOG.error("Cannot open static file " + path, e);
+      return replace(cached, new StaticFile(path, now));
+    }
+  }
+
+  /**
+   * Real path of the file, or {@code null} if it is outside the real path of its root
+   * or can't be resolved
+   */
+  private Path realPathWithinRoot(Path path) {
+    Path root = null;
+    for (Path candidate : realRoots.keySet()) {
+      if (path.startsWith(candidate) && (root == null || candidate.getNameCount() > root.getNameCount())) {
+        root = candidate;
+      }
+    }
+    if (root == null) {
+      return null;
+    }
+    try {
+      Path realPath = path.toRealPath();
+      return realPath.startsWith(realRoots.get(root)) ? realPath : null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static StaticFile replace(StaticFile cached, StaticFile file) {
+    if (cached != null) {
+      cached.release();
+    }
+    return file;
+  }
+
+  /**
+   * Drop a quarter of the cached files. Which files are dropped is arbitrary, hot files
+   * are opened again on the next request.
+   */
+  private void evict() {
+    int count = MAX_CACHED_FILES / 4;
+    Iterator<Map.Entry<Path, StaticFile>> it = files.entrySet().iterator();
+    while (it.hasNext() && count-- > 0) {
+      Map.Entry<Path, StaticFile> entry = it.next();
+      if (files.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().release();
+      }
+    }
+  }
+
+  static String contentType(Path path) {
+    String name = path.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) {
+      return DEFAULT_CONTENT_TYPE;
+    }
+    return CONTENT_TYPES.getOrDefault(name.substring(dot + 1).toLowerCase(Locale.ROOT), DEFAULT_CONTENT_TYPE);
+  }
+
+  /**
+   * Parse a {@code Range} header with a single byte range, RFC 9110 section 14.1.
+   * Multiple ranges and invalid values are ignored, which means the whole file is sent.
+   *
+   * @return start and end, exclusive, {@code null} to send the whole file or
+   *         {@link #UNSATISFIABLE}
+   */
+  static long[] range(String value, long size) {
+    if (value == null || !value.startsWith("bytes=")) {
+      return null;
+    }
+    String spec = value.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0 || spec.indexOf(',') >= 0) {
+      return null;
+    }
+    String first = spec.substring(0, dash).trim();
+    String last = spec.substring(dash + 1).trim();
+    try {
+      long start, end;
+      if (first.isEmpty()) {
+        if (last.isEmpty()) {
+          return null;
+        }
+        long suffix = Long.parseLong(last);
+        if (suffix <= 0) {
+          return UNSATISFIABLE;
+        }
+        start = Math.max(0, size - suffix);
+        end = size;
+      } else {
+        start = Long.parseLong(first);
+        if (last.isEmpty()) {
+          end = size;
+        } else {
+          long lastPos = Long.parseLong(last);
+          if (lastPos < start) {
+            return null;
+          }
+          end = Math.min(size, lastPos + 1);
+        }
+      }
+      return start >= size ? UNSATISFIABLE : new long[]{start, end};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  /**
+   * Open file with its metadata, or a missing file if {@link #channel} is {@code null}.
+   * The cache holds one reference and each response in flight another one. The channel
+   * is closed when the last reference is released.
+   */
+  final class StaticFile extends AbstractReferenceCounted {
+
+    final Path path;
+    final FileChannel channel;
+    final long size;
+    final long lastModifiedMillis;
+    final Object fileKey;
+    final String etag;
+    final String lastModified;
+    final String contentType;
+    volatile long checkedMillis;
+    private volatile MappedByteBuffer mapped;
+    private volatile boolean mapFailed;
+
+    StaticFile(Path path, long now) {
+      this(path, null, null, now);
+    }
+
+    StaticFile(Path path, FileChannel channel, BasicFileAttributes attributes, long now) {
+      this.path = path;
+      this.channel = channel;
+      this.checkedMillis = now;
+      if (attributes == null) {
+        size = lastModifiedMillis = 0;
+        fileKey = null;
+        etag = lastModified = contentType = null;
+        return;
+      }
+      size = attributes.size();
+      lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+      fileKey = attributes.fileKey();
+      etag = "\"" + Long.toHexString(lastModifiedMillis) + "-" + Long.toHexString(size) + "\"";
+      lastModified = DateFormatter.format(new Date(lastModifiedMillis));
+      contentType = StaticFiles.contentType(path);
+    }
+
+    boolean exists() {
+      return channel != null;
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return exists() && size == attributes.size() &&
+        lastModifiedMillis == attributes.lastModifiedTime().toMillis() &&
+        Objects.equals(fileKey, attributes.fileKey());
+    }
+
+    /**
+     * Region for sendfile, keeps this file referenced.
+     */
+    DefaultFileRegion region(long position, long count) {
+      retain();
+      return new DefaultFileRegion(channel, position, count) {
+        @Override
+        protected void deallocate() {
+          StaticFile.this.release();
+        }
+      };
+    }
+
+    /**
+     * Read a chunk from the mapping of the whole file, which is created on first use.
+     * Files too large for one mapping are read into a buffer.
+     */
+    ByteBuf read(ByteBufAllocator alloc, long position, int length) throws IOException {
+      MappedByteBuffer map = mapped();
+      if (map != null) {
+        return Unpooled.wrappedBuffer(map.slice((int) position, length));
+      }
+      ByteBuf buf = alloc.directBuffer(length);
+      try {
+        while (buf.writerIndex() < length) {
+          if (buf.writeBytes(channel, position + buf.writerIndex(), length - buf.writerIndex()) < 0) {
+            throw new EOFException("File truncated: " + path);
+          }
+        }
+      } catch (IOException e) {
+        buf.release();
+        throw e;
+      }
+      return buf;
+    }
+
+    private MappedByteBuffer mapped() {
+      MappedByteBuffer map = mapped;
+      if (map != null || mapFailed || size > Integer.MAX_VALUE) {
+        return map;
+      }
+      synchronized (this) {
+        if (mapped == null && !mapFailed) {
+          try {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+          } catch (IOException e) {
+            LOG.error("Cannot map static file " + path, e);
+            mapFailed = true;
+          }
+        }
+        return mapped;
+      }
+    }
+
+    @Override
+    public StaticFile retain() {
+      super.retain();
+      return this;
+    }
+
+    @Override
+    protected void deallocate() {
+      if (channel == null) {
+        return;
+      }
+      openFiles.decrement();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.error("Cannot close static file " + path, e);
+      }
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+      return this;
+    }
+
+  }
+
+}
@@ -0,0 +1,304 @@
+package org.sensepitch.edge;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Size aware W-TinyLFU eviction policy. New entries go to a small LRU window. Entries
+ * leaving the window compete with the LRU victim of the main region, the one with the higher
+ * estimated access frequency stays. So a scan of many URLs that are requested once cannot
+ * flush frequently requested entries. The main region is a segmented LRU with a probation
+ * and a protected part.
+ *
+ * <p>All operations run under a lock. Recording an access only tries the lock and skips the
+ * update if it is contended, so cache hits from different event loops never wait for each
+ * other. Losing some access information only reduces the precision of the eviction.
+ *
+ * @author Jens Wilke
+ */
+class TinyLfuPolicy {
+
+  static final int WINDOW = 0;
+  static final int PROBATION = 1;
+  static final int PROTECTED = 2;
+
+  private static final double WINDOW_PERCENT = 0.01;
+  private static final double PROTECTED_PERCENT = 0.8;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final FrequencySketch sketch;
+  private final Consumer<CacheEntry> evictionListener;
+  private final long maxBytes;
+  private final long windowMaxBytes;
+  private final long protectedMaxBytes;
+  private final LruList[] queues = { new LruList(), new LruList(), new LruList() };
+  private volatile long totalBytes;
+  private volatile int size;
+
+  /**
+   * @param expectedEntries sizes the frequency sketch
+   * @param evictionListener called under the lock for every entry evicted because of the
+   *                         budget, the listener needs to remove it from the cache map
+   */
+  TinyLfuPolicy(long maxBytes, int expectedEntries, Consumer<CacheEntry> evictionListener) {
+    this.maxBytes = maxBytes;
+    this.evictionListener = evictionListener;
+    windowMaxBytes = Math.max(1, (long) (maxBytes * WINDOW_PERCENT));
+    protectedMaxBytes = (long) ((maxBytes - windowMaxBytes) * PROTECTED_PERCENT);
+    sketch = new FrequencySketch(expectedEntries);
+  }
+
+  long totalBytes() { return totalBytes; }
+
+  int size() { return size; }
+
+  /**
+   * Record a cache hit. Skipped if another thread holds the lock.
+   */
+  void recordAccess(CacheEntry entry) {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      sketch.increment(entry.key.hashCode());
+      if (entry.removed) {
+        return;
+      }
+      switch (entry.region) {
+        case WINDOW, PROTECTED -> queues[entry.region].moveToFront(entry);
+        case PROBATION -> {
+          queues[PROBATION].remove(entry);
+          entry.region = PROTECTED;
+          queues[PROTECTED].addFirst(entry);
+          while (queues[PROTECTED].bytes > protectedMaxBytes) {
+            CacheEntry demoted = queues[PROTECTED].removeLast();
+            demoted.region = PROBATION;
+            queues[PROBATION].addFirst(demoted);
+          }
+        }
+        default -> { }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record a miss of a key, so the frequency is known when its response gets inserted.
+   */
+  void recordMiss(String key) {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      sketch.increment(key.hashCode());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void add(CacheEntry entry) {
+    lock.lock();
+    try {
+      if (entry.removed) {
+        return;
+      }
+      entry.region = WINDOW;
+      queues[WINDOW].addFirst(entry);
+      updateTotals();
+      while (queues[WINDOW].bytes > windowMaxBytes && queues[WINDOW].head != queues[WINDOW].tail) {
+        CacheEntry candidate = queues[WINDOW].removeLast();
+        candidate.region = PROBATION;
+        queues[PROBATION].addFirst(candidate);
+        evict(candidate);
+      }
+      evict(null);
+      updateTotals();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove an entry that was replaced or purged. Does not call the eviction listener.
+   * The entry may not be added yet, then it will not be added.
+   *
+   * @return true if removed by this call, the caller releases the entry
+   */
+  boolean remove(CacheEntry entry) {
+    lock.lock();
+    try {
+      if (entry.removed) {
+        return false;
+      }
+      entry.removed = true;
+      if (entry.region >= 0) {
+        queues[entry.region].remove(entry);
+        updateTotals();
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Evict until the budget is met. The candidate, which just entered the main region,
+   * is evicted instead of the victim, if it is not accessed more frequently.
+   */
+  private void evict(CacheEntry candidate) {
+    while (bytes() > maxBytes) {
+      CacheEntry victim = queues[PROBATION].tail;
+      if (victim == null) {
+        victim = queues[PROTECTED].tail;
+      }
+      if (victim == null) {
+        victim = queues[WINDOW].tail;
+      }
+      if (victim == null) {
+        return;
+      }
+      if (candidate != null && !candidate.removed && victim != candidate &&
+        sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+        victim = candidate;
+      }
+      if (victim == candidate) {
+        candidate = null;
+      }
+      victim.removed = true;
+      queues[victim.region].remove(victim);
+      evictionListener.accept(victim);
+    }
+  }
+
+  private long bytes() {
+    return queues[WINDOW].bytes + queues[PROBATION].bytes + queues[PROTECTED].bytes;
+  }
+
+  private void updateTotals() {
+    totalBytes = bytes();
+    size = queues[WINDOW].count + queues[PROBATION].count + queues[PROTECTED].count;
+  }
+
+  /**
+   * Doubly linked LRU list with the most recent entry at the head
+   */
+  private static class LruList {
+
+    CacheEntry head;
+    CacheEntry tail;
+    long bytes;
+    int count;
+
+    void addFirst(CacheEntry e) {
+      e.prev = null;
+      e.next = head;
+      if (head != null) {
+        head.prev = e;
+      } else {
+        tail = e;
+      }
+      head = e;
+      bytes += e.weight;
+      count++;
+    }
+
+    void remove(CacheEntry e) {
+      if (e.prev != null) {
+        e.prev.next = e.next;
+      } else {
+        head = e.next;
+      }
+      if (e.next != null) {
+        e.next.prev = e.prev;
+      } else {
+        tail = e.prev;
+      }
+      e.prev = e.next = null;
+      bytes -= e.weight;
+      count--;
+    }
+
+    CacheEntry removeLast() {
+      CacheEntry e = tail;
+      remove(e);
+      return e;
+    }
+
+    void moveToFront(CacheEntry e) {
+      if (head != e) {
+        remove(e);
+        addFirst(e);
+      }
+    }
+
+  }
+
+  /**
+   * Count-min sketch with 4-bit counters, four counters per key. The counters are halved
+   * after a sample period, so the frequency reflects recent popularity.
+   */
+  static class FrequencySketch {
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+      int size = Integer.highestOneBit(Math.max(16, expectedEntries) - 1) << 1;
+      table = new long[size];
+      tableMask = size - 1;
+      sampleSize = 10 * size;
+    }
+
+    int frequency(int hash) {
+      int h = spread(hash);
+      int min = 15;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(h, i);
+        int offset = counterOffset(h, i);
+        min = Math.min(min, (int) ((table[index] >>> offset) & 0xF));
+      }
+      return min;
+    }
+
+    void increment(int hash) {
+      int h = spread(hash);
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int index = indexOf(h, i);
+        int offset = counterOffset(h, i);
+        if (((table[index] >>> offset) & 0xF) != 0xF) {
+          table[index] += 1L << offset;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        for (int i = 0; i < table.length; i++) {
+          table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+      }
+    }
+
+    private int indexOf(int h, int i) {
+      long hash = (h + (long) i * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+      return (int) (hash >>> 32) & tableMask;
+    }
+
+    private static int counterOffset(int h, int i) {
+      // 16 counters of 4 bits per long
+      return (((h >>> (i * 4)) & 0xF) << 2);
+    }
+
+    private static int spread(int x) {
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      x = ((x >>> 16) ^ x) * 0x45d9f3b;
+      return (x >>> 16) ^ x;
+    }
+
+  }
+
+}
@@ -0,0 +1,32 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * TLS session resumption. A resumed session skips the certificate and key exchange
+ * of a full handshake.
+ *
+ * @param cacheSize maximum number of sessions in the server side session cache of each
+ *                  certificate, default 20480
+ * @param timeoutSeconds lifetime of cached sessions and session tickets, default 3600
+ * @param ticketKeyFile file with session ticket keys, one base64 encoded key of 48 bytes per
+ *                      line, lines starting with {@code #} are ignored. The first key encrypts
+ *                      new tickets, the others are only used to decrypt tickets. If all nodes
+ *                      use the same file, a client can resume its session on any node, also
+ *                      after restarts. To rotate, add a new key as second line, once all nodes
+ *                      have it, move it to the top and remove the oldest key. If not set, each
+ *                      process uses random keys.
+ * @param ticketKeyReloadSeconds interval for checking the ticket key file for changes, default 60
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record TlsSessionConfig(
+  int cacheSize,
+  int timeoutSeconds,
+  String ticketKeyFile,
+  int ticketKeyReloadSeconds) {
+
+  public static final TlsSessionConfig DEFAULT = builder().build();
+
+}
@@ -0,0 +1,227 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionStats;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.model.registry.Collector;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Session cache and session ticket keys of all server TLS contexts, one context per
+ * certificate. The ticket keys are read from a file that is checked periodically, so
+ * keys can be rotated without restart. Session statistics of all contexts are exported,
+ * the resumption rate is the rate of {@code tls_session_resumed} relative to
+ * {@code tls_handshakes_completed}.
+ *
+ * @author Jens Wilke
+ * @see TlsSessionConfig
+ */
+public class TlsSessions implements HasMultipleMetrics {
+
+  static final ProxyLogger LOG = ProxyLogger.get(TlsSessions.class);
+
+  static final int DEFAULT_CACHE_SIZE = 20480;
+  static final int DEFAULT_TIMEOUT_SECONDS = 3600;
+  static final int DEFAULT_RELOAD_SECONDS = 60;
+
+  private final int cacheSize;
+  private final int timeoutSeconds;
+  private final int reloadSeconds;
+  private final Path ticketKeyFile;
+  private final List<OpenSslSessionContext> contexts = new CopyOnWriteArrayList<>();
+  private final List<RetiredStat> retiredStats = new ArrayList<>();
+  private final MetricSet metricSet = new MetricSet();
+  private volatile OpenSslSessionTicketKey[] ticketKeys;
+  private FileTime ticketKeyModified;
+
+  final Counter ticketKeyReloadsCounter = metricSet.add(Counter.builder()
+    .name("tls_ticket_key_reloads")
+    .help("Session ticket key file reloads by result: success or error")
+    .labelNames("result")
+    .build());
+
+  {
+    counter("tls_handshakes_completed", "Completed server TLS handshakes, full or resumed",
+      OpenSslSessionStats::acceptGood);
+    counter("tls_session_resumed", "Handshakes resuming a session, via session cache or ticket",
+      OpenSslSessionStats::hits);
+    counter("tls_session_cache_misses", "Session ids sent by clients not found in the session cache",
+      OpenSslSessionStats::misses);
+    counter("tls_session_ticket_resumptions", "Sessions resumed via a session ticket",
+      OpenSslSessionStats::ticketKeyResume);
+    counter("tls_session_ticket_failures", "Session tickets that could not be decrypted, e.g. with a removed key",
+      OpenSslSessionStats::ticketKeyFail);
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_session_cache_entries")
+      .help("Sessions in the server side session caches")
+      .callback(callback -> callback.call(contexts.stream().mapToLong(ctx -> ctx.stats().number()).sum()))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("tls_ticket_keys")
+      .help("Session ticket keys loaded from the key file")
+      .callback(callback -> {
+        OpenSslSessionTicketKey[] keys = ticketKeys;
+        callback.call(keys == null ? 0 : keys.length);
+      })
+      .build());
+  }
+
+  public TlsSessions(TlsSessionConfig cfg) {
+    if (cfg == null) {
+      cfg = TlsSessionConfig.DEFAULT;
+    }
+    cacheSize = cfg.cacheSize() > 0 ? cfg.cacheSize() : DEFAULT_CACHE_SIZE;
+    timeoutSeconds = cfg.timeoutSeconds() > 0 ? cfg.timeoutSeconds() : DEFAULT_TIMEOUT_SECONDS;
+    reloadSeconds = cfg.ticketKeyReloadSeconds() > 0 ? cfg.ticketKeyReloadSeconds() : DEFAULT_RELOAD_SECONDS;
+    ticketKeyFile = cfg.ticketKeyFile() != null ? Path.of(cfg.ticketKeyFile()) : null;
+    if (ticketKeyFile != null) {
+      try {
+        loadTicketKeys();
+      } catch (IOException e) {
+        throw new RuntimeException("Cannot read TLS session ticket keys from " + ticketKeyFile, e);
+      }
+    }
+  }
+
+  /**
+   * Session cache settings for a new server context
+   */
+  public SslContextBuilder configure(SslContextBuilder builder) {
+    return builder.sessionCacheSize(cacheSize).sessionTimeout(timeoutSeconds);
+  }
+
+  /**
+   * Use the ticket keys in the context and include it in the statistics. Contexts of
+   * other SSL providers than OpenSSL are ignored.
+   */
+  public synchronized SslContext register(SslContext context) {
+    if (context.sessionContext() instanceof OpenSslSessionContext sessionContext) {
+      if (ticketKeys != null) {
+        sessionContext.setTicketKeys(ticketKeys);
+      }
+      contexts.add(sessionContext);
+    }
+    return context;
+  }
+
+  /**
+   * Remove a context that is replaced, e.g. after a certificate reload. Its statistics
+   * are kept in the totals.
+   */
+  public synchronized void unregister(SslContext context) {
+    if (context.sessionContext() instanceof OpenSslSessionContext sessionContext && contexts.remove(sessionContext)) {
+      OpenSslSessionStats stats = sessionContext.stats();
+      for (RetiredStat retired : retiredStats) {
+        retired.total.add(retired.stat.applyAsLong(stats));
+      }
+    }
+  }
+
+  /**
+   * Check the ticket key file for changes in the given interval
+   */
+  public void scheduleReload(ScheduledExecutorService executor) {
+    if (ticketKeyFile != null) {
+      executor.scheduleWithFixedDelay(this::checkTicketKeys, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Reload the keys if the file was modified. If the new file is not readable or contains
+   * invalid keys, the current keys stay in use and the error is reported once.
+   */
+  void checkTicketKeys() {
+    try {
+      if (Files.getLastModifiedTime(ticketKeyFile).equals(ticketKeyModified)) {
+        return;
+      }
+      loadTicketKeys();
+      ticketKeyReloadsCounter.labelValues("success").inc();
+      LOG.info("Reloaded " + ticketKeys.length + " TLS session ticket keys from " + ticketKeyFile);
+    } catch (IOException | IllegalArgumentException e) {
+      ticketKeyReloadsCounter.labelValues("error").inc();
+      LOG.error("Cannot reload TLS session ticket keys from " + ticketKeyFile + ", keeping current keys", e);
+    }
+  }
+
+  private synchronized void loadTicketKeys() throws IOException {
+    // remember the time first, so a broken file is reported once and not on every check
+    ticketKeyModified = Files.getLastModifiedTime(ticketKeyFile);
+    OpenSslSessionTicketKey[] keys = parseTicketKeys(Files.readAllLines(ticketKeyFile));
+    ticketKeys = keys;
+    for (OpenSslSessionContext context : contexts) {
+      context.setTicketKeys(keys);
+    }
+  }
+
+  /**
+   * Parse keys of 48 bytes, the key name, the HMAC secret and the AES key, base64 encoded.
+   *
+   * @throws IllegalArgumentException if a key is invalid or there are no keys
+   */
+  static OpenSslSessionTicketKey[] parseTicketKeys(List<String> lines) {
+    List<OpenSslSessionTicketKey> keys = new ArrayList<>();
+    for (String line : lines) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      byte[] bytes = Base64.getDecoder().decode(line);
+      if (bytes.length != OpenSslSessionTicketKey.TICKET_KEY_SIZE) {
+        throw new IllegalArgumentException("Session ticket key needs " + OpenSslSessionTicketKey.TICKET_KEY_SIZE +
+          " bytes, got " + bytes.length);
+      }
+      int hmacStart = OpenSslSessionTicketKey.NAME_SIZE;
+      int aesStart = hmacStart + OpenSslSessionTicketKey.HMAC_KEY_SIZE;
+      keys.add(new OpenSslSessionTicketKey(
+        Arrays.copyOfRange(bytes, 0, hmacStart),
+        Arrays.copyOfRange(bytes, hmacStart, aesStart),
+        Arrays.copyOfRange(bytes, aesStart, bytes.length)));
+    }
+    if (keys.isEmpty()) {
+      throw new IllegalArgumentException("No session ticket keys");
+    }
+    return keys.toArray(new OpenSslSessionTicketKey[0]);
+  }
+
+  private void counter(String name, String help, ToLongFunction<OpenSslSessionStats> stat) {
+    RetiredStat retired = new RetiredStat(stat, new LongAdder());
+    retiredStats.add(retired);
+    metricSet.add(CounterWithCallback.builder()
+      .name(name)
+      .help(help)
+      .callback(callback -> callback.call(retired.total.sum() +
+        contexts.stream().mapToLong(ctx -> stat.applyAsLong(ctx.stats())).sum()))
+      .build());
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+  /**
+   * Statistics of contexts that were replaced
+   */
+  private record RetiredStat(ToLongFunction<OpenSslSessionStats> stat, LongAdder total) { }
+
+}
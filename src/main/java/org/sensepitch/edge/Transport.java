@@ -0,0 +1,134 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.ChannelOption;
+import io.netty.channel.IoHandlerFactory;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollIoHandler;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioChannelOption;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.uring.IoUring;
+import io.netty.channel.uring.IoUringChannelOption;
+import io.netty.channel.uring.IoUringDatagramChannel;
+import io.netty.channel.uring.IoUringIoHandler;
+import io.netty.channel.uring.IoUringServerSocketChannel;
+import io.netty.channel.uring.IoUringSocketChannel;
+
+import java.net.StandardSocketOptions;
+
+/**
+ * Netty transport used for the event loops, the listening socket and the upstream
+ * connections. The native transports reduce system calls and garbage per read and write,
+ * NIO is available everywhere and used as fallback.
+ *
+ * @author Jens Wilke
+ */
+public enum Transport {
+
+  NIO {
+    @Override
+    public boolean isAvailable() { return true; }
+    @Override
+    public Throwable unavailabilityCause() { return null; }
+    @Override
+    public IoHandlerFactory ioHandlerFactory() { return NioIoHandler.newFactory(); }
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() { return NioServerSocketChannel.class; }
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() { return NioSocketChannel.class; }
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() { return NioDatagramChannel.class; }
+    @Override
+    public ChannelOption<Boolean> reusePortOption() { return NioChannelOption.of(StandardSocketOptions.SO_REUSEPORT); }
+  },
+  EPOLL {
+    @Override
+    public boolean isAvailable() { return Epoll.isAvailable(); }
+    @Override
+    public Throwable unavailabilityCause() { return Epoll.unavailabilityCause(); }
+    @Override
+    public IoHandlerFactory ioHandlerFactory() { return EpollIoHandler.newFactory(); }
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() { return EpollServerSocketChannel.class; }
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() { return EpollSocketChannel.class; }
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() { return EpollDatagramChannel.class; }
+    @Override
+    public ChannelOption<Boolean> reusePortOption() { return EpollChannelOption.SO_REUSEPORT; }
+  },
+  IO_URING {
+    @Override
+    public boolean isAvailable() { return IoUring.isAvailable(); }
+    @Override
+    public Throwable unavailabilityCause() { return IoUring.unavailabilityCause(); }
+    @Override
+    public IoHandlerFactory ioHandlerFactory() { return IoUringIoHandler.newFactory(); }
+    @Override
+    public Class<? extends ServerSocketChannel> serverSocketChannelClass() { return IoUringServerSocketChannel.class; }
+    @Override
+    public Class<? extends SocketChannel> socketChannelClass() { return IoUringSocketChannel.class; }
+    @Override
+    public Class<? extends DatagramChannel> datagramChannelClass() { return IoUringDatagramChannel.class; }
+    @Override
+    public ChannelOption<Boolean> reusePortOption() { return IoUringChannelOption.SO_REUSEPORT; }
+  };
+
+  static ProxyLogger LOG = ProxyLogger.get(Transport.class);
+
+  public abstract boolean isAvailable();
+
+  public abstract Throwable unavailabilityCause();
+
+  public abstract IoHandlerFactory ioHandlerFactory();
+
+  public abstract Class<? extends ServerSocketChannel> serverSocketChannelClass();
+
+  public abstract Class<? extends SocketChannel> socketChannelClass();
+
+  /**
+   * UDP channel for the HTTP/3 listener
+   */
+  public abstract Class<? extends DatagramChannel> datagramChannelClass();
+
+  /**
+   * Option to enable SO_REUSEPORT on the listening socket. NIO uses the JDK socket option,
+   * which is only supported on Linux and some BSDs.
+   */
+  public abstract ChannelOption<Boolean> reusePortOption();
+
+  /**
+   * Select the transport by its configuration name. {@code auto} or no value picks epoll if
+   * available. io_uring is only used when requested explicitly, since it is often restricted
+   * in containers. If the requested transport is not available on this platform, we fall back
+   * to NIO and log the reason.
+   *
+   * @param name {@code auto}, {@code nio}, {@code epoll}, {@code io_uring} or {@code null}
+   */
+  public static Transport select(String name) {
+    if (name == null || name.isEmpty() || "auto".equalsIgnoreCase(name)) {
+      return EPOLL.isAvailable() ? EPOLL : NIO;
+    }
+    Transport transport = switch (name.toLowerCase()) {
+      case "nio" -> NIO;
+      case "epoll" -> EPOLL;
+      case "io_uring", "iouring" -> IO_URING;
+      default -> throw new IllegalArgumentException("Unknown transport: " + name);
+    };
+    if (!transport.isAvailable()) {
+      LOG.error("Transport " + name + " not available, falling back to nio", transport.unavailabilityCause());
+      return NIO;
+    }
+    return transport;
+  }
+
+}
@@ -2,11 +2,58 @@ package org.sensepitch.edge;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.util.concurrent.Future;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Jens Wilke
  */
 public interface Upstream {
+
   Future<Channel> connect(ChannelHandlerContext downstreamContext);
+
+  /**
+   * Connect for the request. The request is used to decide whether it may wait in the
+   * waiting room, when the upstream is at its concurrency limit.
+   */
+  default Future<Channel> connect(ChannelHandlerContext downstreamContext, HttpRequest request) {
+    return connect(downstreamContext);
+  }
+
+  /**
+   * Connect for a request that does not come from a client, e.g. a background revalidation
+   * of the response cache. The connection is taken from the pool of the given event loop and
+   * the response is written to the downstream channel, which does not need to be registered
+   * in that event loop. A background request does not wait for a free concurrency permit.
+   */
+  Future<Channel> connect(EventLoop loop, Channel downstream, HttpRequest request);
+
+  /**
+   * Create a single target upstream or a balancing upstream if multiple targets are configured
+   */
+  static Upstream create(ProxyContext ctx, UpstreamConfig cfg) {
+    WaitingRoom waitingRoom = null;
+    if (cfg.waitingRoom() != null) {
+      if (cfg.concurrencyLimit() == null) {
+        throw new IllegalArgumentException("Waiting room requires a concurrency limit, host: " + cfg.host());
+      }
+      waitingRoom = new WaitingRoom(cfg.host(), cfg.waitingRoom(), ctx.upstreamMetrics());
+    }
+    if (cfg.targets() == null || cfg.targets().isEmpty()) {
+      return new DefaultUpstream(ctx, cfg, cfg.target(), 1, waitingRoom);
+    }
+    if (cfg.target() != null) {
+      throw new IllegalArgumentException("Either target or targets can be specified, host: " + cfg.host());
+    }
+    List<DefaultUpstream> targets = new ArrayList<>();
+    for (UpstreamTargetConfig targetCfg : cfg.targets()) {
+      targets.add(new DefaultUpstream(ctx, cfg, targetCfg.target(), targetCfg.weight(), waitingRoom));
+    }
+    return new BalancingUpstream(targets, cfg.balancer());
+  }
+
 }
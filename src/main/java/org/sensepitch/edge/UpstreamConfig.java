@@ -2,15 +2,60 @@ package org.sensepitch.edge;
 
 import lombok.Builder;
 
+import java.util.List;
+
 /**
  *
  * @param host match for the requested host name
  * @param target target host with optional port number. Names are supported, however the standard
- *  *             Java DNS resolver is used
+ *             Java DNS resolver is used
+ * @param targets multiple targets to spread the requests on, alternatively to {@code target}.
+ *                Connection limits and pool settings apply to each target
+ * @param balancer policy to select a target: {@code round_robin} (default), {@code p2c} for
+ *                 power of two choices on in flight requests or {@code least_latency}, which
+ *                 prefers the target with the lowest average response time
+ * @param maxConnections maximum number of connections to the upstream. The limit is split evenly
+ *                       between the event loop pools. 0 means unlimited
+ * @param maxPendingAcquires maximum number of requests waiting for a connection, when
+ *                           {@code maxConnections} is reached. Further requests are
+ *                           rejected. 0 means unlimited
+ * @param acquireTimeoutMillis time a request waits for a connection before it is rejected.
+ *                             0 means no timeout
+ * @param minIdleConnections number of idle connections kept open per event loop. Connections are
+ *                           opened at startup and refilled in the background
+ * @param idleTimeoutSeconds close connections that are idle in the pool for this time. Should be
+ *                           lower than the keep alive timeout of the upstream server. 0 means
+ *                           idle connections are kept until upstream closes them
+ * @param healthCheck active and passive health checking of the targets, not enabled if missing
+ * @param concurrencyLimit adaptive limit of concurrent requests per target, not enabled if missing
+ * @param waitingRoom queue admitted users when the concurrency limit is reached, not enabled if
+ *                    missing
+ * @param protocol protocol to the upstream: {@code http1} (default) with a pool of HTTP/1.1
+ *                 connections or {@code h2c}, which multiplexes requests as HTTP/2 streams
+ *                 over few cleartext connections, with prior knowledge. {@code maxConnections}
+ *                 then limits the HTTP/2 connections. Active health checks use HTTP/1.1
+ * @param maxConcurrentStreams streams per HTTP/2 connection, default 100. The upstream may
+ *                             announce a lower limit
+ * @param staticRoot directory with files served locally, before the request goes upstream.
+ *                   Requests for paths without a file below the root go upstream. Not enabled
+ *                   if missing
  *
  * @author Jens Wilke
  */
 @Builder
 public record UpstreamConfig (
   String host,
-  String target) { }
+  String target,
+  List<UpstreamTargetConfig> targets,
+  String balancer,
+  int maxConnections,
+  int maxPendingAcquires,
+  int acquireTimeoutMillis,
+  int minIdleConnections,
+  int idleTimeoutSeconds,
+  HealthCheckConfig healthCheck,
+  ConcurrencyLimitConfig concurrencyLimit,
+  WaitingRoomConfig waitingRoom,
+  String protocol,
+  int maxConcurrentStreams,
+  String staticRoot) { }
@@ -0,0 +1,165 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends requests upstream that do not come from a client, e.g. background revalidations of
+ * the response cache. The request uses the normal upstream connection pools, statistics and
+ * health checks. The response is collected by an embedded channel that takes the place of
+ * the downstream channel, so the {@link ForwardHandler} works unchanged.
+ *
+ * @author Jens Wilke
+ */
+public class UpstreamFetcher {
+
+  private final UpstreamRouter router;
+  private final long timeoutMillis;
+
+  public UpstreamFetcher(UpstreamRouter router, long timeoutMillis) {
+    this.router = router;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Send the request upstream and aggregate the response. The content of the response
+   * is a pooled direct buffer.
+   *
+   * @param loop event loop of the upstream connection and the returned future
+   * @param maxContentBytes fail if the response content is larger
+   */
+  public Future<FullHttpResponse> fetch(EventLoop loop, FullHttpRequest request, int maxContentBytes) {
+    Promise<FullHttpResponse> promise = loop.newPromise();
+    if (loop.inEventLoop()) {
+      start(loop, request, maxContentBytes, promise);
+    } else {
+      loop.execute(() -> start(loop, request, maxContentBytes, promise));
+    }
+    return promise;
+  }
+
+  private void start(EventLoop loop, FullHttpRequest request, int maxContentBytes, Promise<FullHttpResponse> promise) {
+    Collector collector = new Collector(maxContentBytes, promise);
+    EmbeddedChannel downstream = new EmbeddedChannel(collector);
+    ScheduledFuture<?> timeout = loop.schedule(
+      () -> collector.fail(new TimeoutException("upstream fetch timeout")), timeoutMillis, TimeUnit.MILLISECONDS);
+    promise.addListener(future -> {
+      timeout.cancel(false);
+      DownstreamProgress.complete(downstream);
+      // the promise may complete within a write to the embedded channel
+      loop.execute(downstream::close);
+    });
+    Future<Channel> upstreamFuture;
+    try {
+      upstreamFuture = router.selectUpstream(request).connect(loop, downstream, request);
+    } catch (RuntimeException e) {
+      request.release();
+      promise.tryFailure(e);
+      return;
+    }
+    upstreamFuture.addListener((FutureListener<Channel>) future -> {
+      if (!future.isSuccess()) {
+        request.release();
+        promise.tryFailure(future.cause());
+        return;
+      }
+      Channel upstream = future.resultNow();
+      if (promise.isDone()) {
+        // timed out while connecting, the forward handler gives the closed connection back to the pool
+        request.release();
+        DownstreamProgress.complete(downstream);
+        upstream.close();
+        return;
+      }
+      upstream.writeAndFlush(request).addListener(writeFuture -> {
+        if (!writeFuture.isSuccess()) {
+          collector.fail(writeFuture.cause());
+        }
+      });
+    });
+  }
+
+  /**
+   * Takes the place of the downstream channel and aggregates the response written to it.
+   */
+  private static class Collector extends ChannelDuplexHandler {
+
+    private final int maxContentBytes;
+    private final Promise<FullHttpResponse> promise;
+    private HttpResponse response;
+    private ByteBuf content;
+
+    Collector(int maxContentBytes, Promise<FullHttpResponse> promise) {
+      this.maxContentBytes = maxContentBytes;
+      this.promise = promise;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise writePromise) {
+      try {
+        if (promise.isDone()) {
+          return;
+        }
+        if (msg instanceof HttpResponse r) {
+          response = r;
+          content = PooledByteBufAllocator.DEFAULT.directBuffer(Math.min(8192, maxContentBytes), maxContentBytes);
+        }
+        if (msg instanceof HttpContent httpContent && content != null) {
+          ByteBuf buf = httpContent.content();
+          if (content.readableBytes() + buf.readableBytes() > maxContentBytes) {
+            fail(new TooLongFrameException("upstream response larger than " + maxContentBytes));
+            return;
+          }
+          content.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+        }
+        if (msg instanceof LastHttpContent last && content != null) {
+          FullHttpResponse full = new DefaultFullHttpResponse(response.protocolVersion(), response.status(),
+            content, response.headers(), last.trailingHeaders().copy());
+          content = null;
+          if (!promise.trySuccess(full)) {
+            full.release();
+          }
+        }
+      } finally {
+        ReferenceCountUtil.release(msg);
+        writePromise.trySuccess();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      fail(cause);
+    }
+
+    void fail(Throwable cause) {
+      if (content != null) {
+        content.release();
+        content = null;
+      }
+      promise.tryFailure(cause);
+    }
+
+  }
+
+}
@@ -0,0 +1,227 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Health state of one upstream target. Active checks run on a single event loop, so their
+ * counters need no synchronization. Passive errors are reported from all event loops.
+ * The load balancer reads the state via {@link #isAvailable()} and {@link #weightFactor()}
+ * on every request, so both only read volatile fields.
+ *
+ * @author Jens Wilke
+ */
+class UpstreamHealth {
+
+  private static final ProxyLogger LOG = ProxyLogger.get(UpstreamHealth.class);
+  /** Minimal share of traffic a target gets at the beginning of the slow start */
+  private static final double MIN_WEIGHT_FACTOR = 0.05;
+
+  private final String host;
+  private final String name;
+  private final String hostHeader;
+  private final UpstreamMetrics metrics;
+  private final String path;
+  private final int intervalMillis;
+  private final int timeoutMillis;
+  private final int healthyThreshold;
+  private final int unhealthyThreshold;
+  private final int consecutiveErrorsThreshold;
+  private final long ejectionNanos;
+  private final long slowStartNanos;
+  private final AtomicInteger consecutiveErrors = new AtomicInteger();
+
+  /** Result of the active checks, only updated within the check event loop */
+  private volatile boolean healthy = true;
+  private volatile long ejectedUntilNanos;
+  private volatile long admittedNanos;
+
+  private int probeSuccesses;
+  private int probeFailures;
+  private boolean probeInProgress;
+
+  UpstreamHealth(String host, String name, String hostHeader, HealthCheckConfig cfg, UpstreamMetrics metrics) {
+    this.host = host;
+    this.name = name;
+    this.hostHeader = hostHeader;
+    this.metrics = metrics;
+    path = cfg.path();
+    intervalMillis = cfg.intervalMillis() > 0 ? cfg.intervalMillis() : 5000;
+    timeoutMillis = cfg.timeoutMillis() > 0 ? cfg.timeoutMillis() : 2000;
+    healthyThreshold = cfg.healthyThreshold() > 0 ? cfg.healthyThreshold() : 2;
+    unhealthyThreshold = cfg.unhealthyThreshold() > 0 ? cfg.unhealthyThreshold() : 3;
+    consecutiveErrorsThreshold = cfg.consecutiveErrors();
+    ejectionNanos = TimeUnit.MILLISECONDS.toNanos(cfg.ejectionMillis() > 0 ? cfg.ejectionMillis() : 30000);
+    slowStartNanos = TimeUnit.MILLISECONDS.toNanos(cfg.slowStartMillis());
+    long now = System.nanoTime();
+    // full weight at startup, no slow start
+    admittedNanos = now - slowStartNanos;
+    ejectedUntilNanos = now;
+  }
+
+  /**
+   * Schedule the active checks, if a check path is configured.
+   */
+  void start(Bootstrap bootstrap, EventLoop loop) {
+    if (path == null) {
+      return;
+    }
+    Bootstrap probeBootstrap = bootstrap.clone(loop)
+      .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis);
+    loop.scheduleWithFixedDelay(() -> probe(probeBootstrap, loop),
+      0, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  boolean isAvailable() {
+    return healthy && System.nanoTime() - ejectedUntilNanos >= 0;
+  }
+
+  /**
+   * Ramps up linearly from {@value #MIN_WEIGHT_FACTOR} to 1 within the slow start time after
+   * a target was admitted again.
+   */
+  double weightFactor() {
+    if (slowStartNanos == 0) {
+      return 1;
+    }
+    long elapsed = System.nanoTime() - admittedNanos;
+    if (elapsed >= slowStartNanos) {
+      return 1;
+    }
+    return Math.max(MIN_WEIGHT_FACTOR, (double) elapsed / slowStartNanos);
+  }
+
+  /**
+   * Connect error or 5xx response of a forwarded request.
+   */
+  void recordError() {
+    if (consecutiveErrorsThreshold <= 0) {
+      return;
+    }
+    if (consecutiveErrors.incrementAndGet() >= consecutiveErrorsThreshold) {
+      consecutiveErrors.set(0);
+      long now = System.nanoTime();
+      if (now - ejectedUntilNanos < 0) {
+        return;
+      }
+      ejectedUntilNanos = now + ejectionNanos;
+      admittedNanos = ejectedUntilNanos;
+      metrics.observeEjection(host, name, "passive");
+      LOG.info("upstream " + name + " ejected after " + consecutiveErrorsThreshold + " consecutive errors");
+    }
+  }
+
+  void recordSuccess() {
+    // avoid a write to the shared counter in the common case
+    if (consecutiveErrorsThreshold > 0 && consecutiveErrors.get() != 0) {
+      consecutiveErrors.set(0);
+    }
+  }
+
+  private void probe(Bootstrap bootstrap, EventLoop loop) {
+    if (probeInProgress) {
+      return;
+    }
+    probeInProgress = true;
+    Promise<Boolean> result = loop.newPromise();
+    ChannelFuture connectFuture = bootstrap
+      .handler(new ChannelInitializer<SocketChannel>() {
+        @Override
+        protected void initChannel(SocketChannel ch) {
+          ch.pipeline().addLast(new HttpClientCodec());
+          ch.pipeline().addLast(new ProbeResponseHandler(result));
+        }
+      })
+      .connect();
+    connectFuture.addListener((ChannelFutureListener) future -> {
+      if (!future.isSuccess()) {
+        result.trySuccess(false);
+        return;
+      }
+      FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+      request.headers().set(HttpHeaderNames.HOST, hostHeader);
+      request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+      future.channel().writeAndFlush(request);
+    });
+    ScheduledFuture<?> timeout = loop.schedule(() -> result.trySuccess(false), timeoutMillis, TimeUnit.MILLISECONDS);
+    result.addListener(future -> {
+      timeout.cancel(false);
+      connectFuture.channel().close();
+      probeInProgress = false;
+      probeComplete(result.getNow());
+    });
+  }
+
+  private void probeComplete(boolean success) {
+    if (success) {
+      probeFailures = 0;
+      if (++probeSuccesses >= healthyThreshold && !healthy) {
+        admittedNanos = System.nanoTime();
+        healthy = true;
+        LOG.info("upstream " + name + " healthy again");
+      }
+    } else {
+      probeSuccesses = 0;
+      if (++probeFailures >= unhealthyThreshold && healthy) {
+        healthy = false;
+        metrics.observeEjection(host, name, "active");
+        LOG.info("upstream " + name + " unhealthy after " + probeFailures + " failed health checks");
+      }
+    }
+  }
+
+  /**
+   * Succeeds on a 2xx or 3xx status, everything else is a failure.
+   */
+  private static class ProbeResponseHandler extends ChannelInboundHandlerAdapter {
+
+    private final Promise<Boolean> result;
+
+    ProbeResponseHandler(Promise<Boolean> result) {
+      this.result = result;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      if (msg instanceof HttpResponse response) {
+        int code = response.status().code();
+        result.trySuccess(code >= 200 && code < 400);
+      }
+      ReferenceCountUtil.release(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+      result.trySuccess(false);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+      result.trySuccess(false);
+      ctx.close();
+    }
+
+  }
+
+}
@@ -0,0 +1,173 @@
+package org.sensepitch.edge;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.model.registry.Collector;
+import io.prometheus.metrics.model.snapshots.Unit;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Connection pool metrics of all upstreams, labeled by the configured host and the
+ * upstream target.
+ *
+ * @author Jens Wilke
+ */
+public class UpstreamMetrics implements HasMultipleMetrics {
+
+  private final List<DefaultUpstream> upstreams = new CopyOnWriteArrayList<>();
+  private final List<WaitingRoom> waitingRooms = new CopyOnWriteArrayList<>();
+  private final MetricSet metricSet = new MetricSet();
+
+  private final Histogram acquireDuration = metricSet.add(Histogram.builder()
+    .name("upstream_pool_acquire_duration_seconds")
+    .help("Time waiting for an upstream connection from the pool, including connect")
+    .unit(Unit.SECONDS)
+    .labelNames("host", "upstream")
+    .classicExponentialUpperBounds(0.0001, 2.0, 16)
+    .build());
+
+  private final Histogram waitingRoomWait = metricSet.add(Histogram.builder()
+    .name("upstream_waiting_room_wait_seconds")
+    .help("Time admitted requests waited in the waiting room, until admitted or timed out")
+    .unit(Unit.SECONDS)
+    .labelNames("host", "outcome")
+    .classicExponentialUpperBounds(0.001, 2.0, 14)
+    .build());
+
+  private final Counter waitingRoomRejected = metricSet.add(Counter.builder()
+    .name("upstream_waiting_room_rejected")
+    .help("Requests that got the holding page, because the waiting room was full or the wait timed out")
+    .labelNames("host", "reason")
+    .build());
+
+  private final Counter ejections = metricSet.add(Counter.builder()
+    .name("upstream_ejections")
+    .help("Upstream targets taken out of the balancing by failed health checks or errors")
+    .labelNames("host", "upstream", "reason")
+    .build());
+
+  {
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_available")
+      .help("1 if the upstream target receives requests, 0 if it is ejected or unhealthy")
+      .labelNames("host", "upstream")
+      .callback(callback -> upstreams.forEach(upstream ->
+        callback.call(upstream.isAvailable() ? 1 : 0, upstream.host(), upstream.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_pool_idle_connections")
+      .help("Open upstream connections that are idle in the pool")
+      .labelNames("host", "upstream")
+      .callback(callback -> upstreams.forEach(upstream ->
+        callback.call(upstream.idleConnections(), upstream.host(), upstream.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_pool_in_use_connections")
+      .help("Upstream connections acquired for a request")
+      .labelNames("host", "upstream")
+      .callback(callback -> upstreams.forEach(upstream ->
+        callback.call(upstream.inUseConnections(), upstream.host(), upstream.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_h2c_active_streams")
+      .help("Requests in flight on multiplexed HTTP/2 upstream connections")
+      .labelNames("host", "upstream")
+      .callback(callback -> upstreams.forEach(upstream ->
+        callback.call(upstream.activeStreams(), upstream.host(), upstream.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_pool_pending_acquires")
+      .help("Requests waiting for an upstream connection")
+      .labelNames("host", "upstream")
+      .callback(callback -> upstreams.forEach(upstream ->
+        callback.call(upstream.pendingAcquires(), upstream.host(), upstream.name())))
+      .build());
+  }
+
+  {
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_concurrency_limit")
+      .help("Current adaptive limit of concurrent requests to the upstream target")
+      .labelNames("host", "upstream")
+      .callback(callback -> forEachLimiter((upstream, limiter) ->
+        callback.call(limiter.limit(), upstream.host(), limiter.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_concurrency_in_flight")
+      .help("Requests holding a permit of the concurrency limit")
+      .labelNames("host", "upstream")
+      .callback(callback -> forEachLimiter((upstream, limiter) ->
+        callback.call(limiter.inFlight(), upstream.host(), limiter.name())))
+      .build());
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_concurrency_queued")
+      .help("Requests waiting for a permit of the concurrency limit")
+      .labelNames("host", "upstream")
+      .callback(callback -> forEachLimiter((upstream, limiter) ->
+        callback.call(limiter.queued(), upstream.host(), limiter.name())))
+      .build());
+    metricSet.add(CounterWithCallback.builder()
+      .name("upstream_concurrency_rejected")
+      .help("Requests rejected by the concurrency limit, because the queue was full or the wait timed out")
+      .labelNames("host", "upstream", "reason")
+      .callback(callback -> forEachLimiter((upstream, limiter) -> {
+        callback.call(limiter.rejectedQueueFull(), upstream.host(), limiter.name(), "queue_full");
+        callback.call(limiter.rejectedTimeout(), upstream.host(), limiter.name(), "timeout");
+      }))
+      .build());
+  }
+
+  {
+    metricSet.add(GaugeWithCallback.builder()
+      .name("upstream_waiting_room_length")
+      .help("Requests waiting in the waiting room")
+      .labelNames("host")
+      .callback(callback -> waitingRooms.forEach(room ->
+        callback.call(room.length(), room.host())))
+      .build());
+  }
+
+  private void forEachLimiter(BiConsumer<DefaultUpstream, ConcurrencyLimiter> consumer) {
+    for (DefaultUpstream upstream : upstreams) {
+      if (upstream.limiter() != null) {
+        consumer.accept(upstream, upstream.limiter());
+      }
+    }
+  }
+
+  void register(DefaultUpstream upstream) {
+    upstreams.add(upstream);
+  }
+
+  void observeAcquire(DefaultUpstream upstream, long nanos) {
+    acquireDuration.labelValues(upstream.host(), upstream.name()).observe(Unit.nanosToSeconds(nanos));
+  }
+
+  void register(WaitingRoom waitingRoom) {
+    waitingRooms.add(waitingRoom);
+  }
+
+  void observeWaitingRoom(WaitingRoom waitingRoom, String outcome, long nanos) {
+    waitingRoomWait.labelValues(waitingRoom.host(), outcome).observe(Unit.nanosToSeconds(nanos));
+  }
+
+  void rejectWaitingRoom(WaitingRoom waitingRoom, String reason) {
+    waitingRoomRejected.labelValues(waitingRoom.host(), reason).inc();
+  }
+
+  void observeEjection(String host, String upstream, String reason) {
+    ejections.labelValues(host, upstream, reason).inc();
+  }
+
+  @Override
+  public void registerCollectors(Consumer<Collector> consumer) {
+    metricSet.forEach(consumer);
+  }
+
+}
@@ -0,0 +1,17 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * One server of an upstream with multiple targets.
+ *
+ * @param target target host with optional port number
+ * @param weight relative share of requests this target receives compared to the other
+ *               targets. 0 means the default weight of 1
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record UpstreamTargetConfig(
+  String target,
+  int weight) { }
@@ -0,0 +1,134 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FIFO queue of admitted requests of one host, waiting for a permit of the concurrency
+ * limit of any of the upstream targets. When a target releases a permit, the permit is
+ * handed over to the oldest waiting request, which then continues on its own event loop.
+ * Requests that cannot wait get a precomputed holding page, that refreshes automatically.
+ *
+ * @author Jens Wilke
+ */
+class WaitingRoom {
+
+  static final String HTML_TEMPLATE = ResourceLoader.loadTextFile("waiting-room.html");
+
+  private final String host;
+  private final UpstreamMetrics metrics;
+  private final int queueSize;
+  private final long queueTimeoutMillis;
+  private final String retryAfter;
+  private final ByteBuf holdingPage;
+  private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger length = new AtomicInteger();
+
+  WaitingRoom(String host, WaitingRoomConfig cfg, UpstreamMetrics metrics) {
+    this.host = host != null ? host : "default";
+    this.metrics = metrics;
+    queueSize = cfg.queueSize() > 0 ? cfg.queueSize() : 1000;
+    queueTimeoutMillis = cfg.queueTimeoutMillis() > 0 ? cfg.queueTimeoutMillis() : 5000;
+    retryAfter = Integer.toString(cfg.retryAfterSeconds() > 0 ? cfg.retryAfterSeconds() : 5);
+    String html = HTML_TEMPLATE.replace("{{RETRY_AFTER}}", retryAfter);
+    holdingPage = Unpooled.unreleasableBuffer(
+      Unpooled.directBuffer().writeBytes(html.getBytes(CharsetUtil.UTF_8)));
+    metrics.register(this);
+  }
+
+  String host() { return host; }
+
+  int length() { return length.get(); }
+
+  /**
+   * Wait for a permit of any target of this host. The future completes with the target,
+   * whose permit was taken for the request, or fails with {@link WaitingRoomFullException}.
+   */
+  Future<DefaultUpstream> enter(EventExecutor executor, DefaultUpstream selected) {
+    if (length.incrementAndGet() > queueSize) {
+      length.decrementAndGet();
+      metrics.rejectWaitingRoom(this, "queue_full");
+      return executor.newFailedFuture(new WaitingRoomFullException(this));
+    }
+    Waiter waiter = new Waiter(executor.newPromise(), System.nanoTime());
+    waiters.add(waiter);
+    // a permit might have been released between the failed acquire and adding to the queue
+    dispatch(selected);
+    if (!waiter.promise.isDone()) {
+      executor.schedule(() -> {
+        if (waiter.promise.tryFailure(new WaitingRoomFullException(this))) {
+          length.decrementAndGet();
+          metrics.observeWaitingRoom(this, "timeout", System.nanoTime() - waiter.startNanos);
+          metrics.rejectWaitingRoom(this, "timeout");
+        }
+      }, queueTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    return waiter.promise;
+  }
+
+  /**
+   * Called when the target might have a free permit. Takes permits as long as there are
+   * waiting requests.
+   */
+  void dispatch(DefaultUpstream target) {
+    ConcurrencyLimiter limiter = target.limiter();
+    while (!waiters.isEmpty() && limiter.tryAcquire()) {
+      Waiter waiter;
+      do {
+        waiter = waiters.poll();
+      } while (waiter != null && waiter.promise.isDone());
+      if (waiter == null || !waiter.promise.trySuccess(target)) {
+        limiter.returnPermit();
+        continue;
+      }
+      length.decrementAndGet();
+      metrics.observeWaitingRoom(this, "admitted", System.nanoTime() - waiter.startNanos);
+    }
+  }
+
+  /**
+   * Holding page with 503 status. Content is shared and not copied.
+   */
+  FullHttpResponse holdingPageResponse() {
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+      HttpResponseStatus.SERVICE_UNAVAILABLE, holdingPage.duplicate());
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/html; charset=UTF-8");
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, holdingPage.readableBytes());
+    response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+    return response;
+  }
+
+  private record Waiter(Promise<DefaultUpstream> promise, long startNanos) { }
+
+  static class WaitingRoomFullException extends Exception {
+
+    private final WaitingRoom waitingRoom;
+
+    WaitingRoomFullException(WaitingRoom waitingRoom) {
+      super("Waiting room of " + waitingRoom.host + " full or wait timed out", null, false, false);
+      this.waitingRoom = waitingRoom;
+    }
+
+    FullHttpResponse holdingPageResponse() {
+      return waitingRoom.holdingPageResponse();
+    }
+
+  }
+
+}
@@ -0,0 +1,20 @@
+package org.sensepitch.edge;
+
+import lombok.Builder;
+
+/**
+ * Waiting room for admitted users, when the concurrency limit of the upstream is reached.
+ * Requires {@link UpstreamConfig#concurrencyLimit()}.
+ *
+ * @param queueSize maximum number of requests waiting per host, default 1000
+ * @param queueTimeoutMillis maximum time a request waits, default 5000
+ * @param retryAfterSeconds value of the Retry-After header and refresh time of the holding
+ *                          page, default 5
+ *
+ * @author Jens Wilke
+ */
+@Builder
+public record WaitingRoomConfig(
+  int queueSize,
+  int queueTimeoutMillis,
+  int retryAfterSeconds) { }
@@ -0,0 +1,87 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class AdminHandlerTest {
+
+  /** Requests in this test don't reach the cache or the upstream */
+  EmbeddedChannel channel = new EmbeddedChannel(new AdminHandler(null, null, 1));
+
+  @Test
+  public void cacheKey() {
+    assertThat(AdminHandler.cacheKey("https://example.com/index.html")).isEqualTo("example.com/index.html");
+    assertThat(AdminHandler.cacheKey("https://example.com")).isEqualTo("example.com/");
+    assertThat(AdminHandler.cacheKey("http://example.com/a?b=1")).isEqualTo("example.com/a?b=1");
+    assertThat(AdminHandler.cacheKey("example.com/index.html")).isEqualTo("example.com/index.html");
+  }
+
+  @Test
+  public void warmUpRequest() {
+    FullHttpRequest request = AdminHandler.warmUpRequest(URI.create("https://example.com/a?b=1"));
+    assertThat(request.method()).isEqualTo(HttpMethod.GET);
+    assertThat(request.uri()).isEqualTo("/a?b=1");
+    assertThat(request.headers().get(HttpHeaderNames.HOST)).isEqualTo("example.com");
+    assertThat(request.headers().get("X-Forwarded-Proto")).isEqualTo("https");
+  }
+
+  @Test
+  public void onlyPostAllowed() {
+    FullHttpResponse response = send(HttpMethod.GET, "/purge?url=example.com/", "");
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.METHOD_NOT_ALLOWED);
+    response.release();
+  }
+
+  @Test
+  public void warmUpSkipsCommentsAndBlankLines() {
+    FullHttpResponse response = send(HttpMethod.POST, "/warmup", "# nothing to fetch\n\n  \n");
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("requested 0, stored 0\n");
+    response.release();
+  }
+
+  @Test
+  public void warmUpRejectsListWithInvalidUrl() {
+    FullHttpResponse response = send(HttpMethod.POST, "/warmup", "https://example.com/\nhttps:///nohost\n");
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.BAD_REQUEST);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).startsWith("host missing");
+    response.release();
+  }
+
+  @Test
+  public void purgeWithoutParameter() {
+    FullHttpResponse response = send(HttpMethod.POST, "/purge", "");
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.BAD_REQUEST);
+    response.release();
+  }
+
+  @Test
+  public void unknownEndpoint() {
+    FullHttpResponse response = send(HttpMethod.POST, "/other", "");
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.NOT_FOUND);
+    response.release();
+  }
+
+  private FullHttpResponse send(HttpMethod method, String uri, String body) {
+    channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, uri,
+      Unpooled.copiedBuffer(body, CharsetUtil.UTF_8)));
+    return channel.readOutbound();
+  }
+
+}
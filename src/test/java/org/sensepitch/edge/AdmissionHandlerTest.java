@@ -28,6 +28,7 @@ public class AdmissionHandlerTest {
   private AdmissionHandler handler;
   private Channel channel;
   private boolean passed;
+  private HttpRequest passedRequest;
   private Object messageWritten;
 
   @Test
@@ -60,6 +61,27 @@ public class AdmissionHandlerTest {
     assertThat(passed).isTrue();
   }
 
+  @Test
+  public void forgedAdmissionTokenIsRemoved() {
+    init(AdmissionConfig.builder()
+      .serverIpv4Address("127.0.0.1")
+      .bypass(BypassConfig.builder()
+        .uriPrefixes(List.of("/bypass"))
+        .build())
+      .tokenGenerator(List.of(
+        AdmissionTokenGeneratorConfig.builder()
+          .secret("asdf")
+          .prefix("X")
+          .build()
+      ))
+      .build());
+    DefaultHttpRequest req = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/bypass");
+    req.headers().set(AdmissionHandler.ADMISSION_TOKEN_HEADER, "Xforged");
+    request(req);
+    assertThat(passed).isTrue();
+    assertThat(passedRequest.headers().contains(AdmissionHandler.ADMISSION_TOKEN_HEADER)).isFalse();
+  }
+
   private void expectResponseIsChallenge() {
     assertThat(messageWritten).isNotNull()
       .isInstanceOfSatisfying(HttpResponse.class,
@@ -82,6 +104,9 @@ public class AdmissionHandlerTest {
       @Override
       public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         passed = true;
+        if (msg instanceof HttpRequest) {
+          passedRequest = (HttpRequest) msg;
+        }
         // System.out.println("AdmissionHandler read " + msg);
         super.channelRead(ctx, msg);
       }
@@ -0,0 +1,99 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class CertificatesTest {
+
+  @TempDir
+  Path dir;
+  List<SslContext> retired = new ArrayList<>();
+
+  @Test
+  public void changedCertificateIsSwappedIn() throws Exception {
+    Instant firstExpiry = Instant.now().plus(10, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+    SslConfig cfg = write("example.com", firstExpiry, 0);
+    Certificates certificates = new Certificates(cfg, Map.of("example.com", cfg), CertificatesTest::context, null,
+      retired::add);
+    SslContext first = certificates.map("example.com");
+    assertThat(certificates.map("other.example")).isSameAs(first);
+    certificates.check();
+    assertThat(certificates.map("example.com")).isSameAs(first);
+    Instant secondExpiry = firstExpiry.plus(80, ChronoUnit.DAYS);
+    write("example.com", secondExpiry, 2000);
+    certificates.check();
+    SslContext second = certificates.map("example.com");
+    assertThat(second).isNotSameAs(first);
+    assertThat(retired).containsExactly(first);
+    assertThat(Certificates.notAfter(Path.of(cfg.cert()))).isEqualTo(secondExpiry);
+    assertThat(certificates.reloadsCounter.labelValues("success").get()).isEqualTo(1.0);
+  }
+
+  @Test
+  public void brokenCertificateKeepsCurrent() throws Exception {
+    SslConfig cfg = write("example.com", Instant.now().plus(10, ChronoUnit.DAYS), 0);
+    Certificates certificates = new Certificates(cfg, Map.of(), CertificatesTest::context, null, retired::add);
+    SslContext first = certificates.map("example.com");
+    Files.writeString(Path.of(cfg.cert()), "-----BEGIN CERTIFICATE-----\n");
+    touch(Path.of(cfg.cert()), 2000);
+    certificates.check();
+    assertThat(certificates.map("example.com")).isSameAs(first);
+    assertThat(retired).isEmpty();
+    assertThat(certificates.reloadsCounter.labelValues("error").get()).isEqualTo(1.0);
+  }
+
+  private SslConfig write(String domain, Instant notAfter, long touchMillis) throws Exception {
+    X509Bundle bundle = new CertificateBuilder()
+      .subject("CN=" + domain)
+      .notAfter(notAfter)
+      .setIsCertificateAuthority(true)
+      .buildSelfSigned();
+    Path key = dir.resolve(domain + "-privkey.pem");
+    Path cert = dir.resolve(domain + "-fullchain.pem");
+    Files.copy(bundle.toTempPrivateKeyPem().toPath(), key, StandardCopyOption.REPLACE_EXISTING);
+    Files.copy(bundle.toTempCertChainPem().toPath(), cert, StandardCopyOption.REPLACE_EXISTING);
+    touch(key, touchMillis);
+    touch(cert, touchMillis);
+    return new SslConfig(key.toString(), cert.toString());
+  }
+
+  /**
+   * Move the modification time, since the file system might not resolve milliseconds
+   */
+  private static void touch(Path file, long millis) throws Exception {
+    Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + millis));
+  }
+
+  private static SslContext context(SslConfig cfg) {
+    try {
+      return SslContextBuilder.forServer(new File(cfg.cert()), new File(cfg.key()))
+        .sslProvider(SslProvider.JDK)
+        .build();
+    } catch (SSLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+}
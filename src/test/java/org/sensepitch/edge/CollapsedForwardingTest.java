@@ -0,0 +1,111 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class CollapsedForwardingTest {
+
+  CollapsedForwarding registry = new CollapsedForwarding(CollapseConfig.builder().enable(true).build());
+  EmbeddedChannel leader = new EmbeddedChannel(registry.newHandler());
+  EmbeddedChannel follower = new EmbeddedChannel(registry.newHandler());
+
+  @Test
+  public void followerGetsResponseOfLeader() {
+    assertThat((Object) leader.readInbound()).isNull();
+    leader.writeInbound(request());
+    assertThat((Object) leader.readInbound()).isInstanceOf(HttpRequest.class);
+    follower.writeInbound(request(), LastHttpContent.EMPTY_LAST_CONTENT);
+    assertThat((Object) follower.readInbound()).isNull();
+    leader.writeOutbound(new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    leader.writeOutbound(new DefaultLastHttpContent(Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8)));
+    follower.runPendingTasks();
+    HttpResponse response = follower.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    LastHttpContent content = follower.readOutbound();
+    assertThat(content.content().toString(CharsetUtil.UTF_8)).isEqualTo("hello");
+    content.release();
+    leader.<HttpResponse>readOutbound();
+    leader.<LastHttpContent>readOutbound().release();
+    assertThat(registry.inFlight()).isEmpty();
+  }
+
+  @Test
+  public void followerForwardsOwnRequestIfNotShareable() {
+    leader.writeInbound(request());
+    follower.writeInbound(request(), LastHttpContent.EMPTY_LAST_CONTENT);
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.SET_COOKIE, "session=123");
+    leader.writeOutbound(response);
+    follower.runPendingTasks();
+    assertThat((Object) follower.readInbound()).isInstanceOf(HttpRequest.class);
+    assertThat((Object) follower.readInbound()).isInstanceOf(LastHttpContent.class);
+    assertThat((Object) follower.readOutbound()).isNull();
+  }
+
+  @Test
+  public void fullRequestOfFollowerIsReleased() {
+    leader.writeInbound(request());
+    FullHttpRequest full = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a",
+      Unpooled.copiedBuffer("ignored", CharsetUtil.UTF_8));
+    full.headers().set(HttpHeaderNames.HOST, "example.com");
+    follower.writeInbound(full);
+    assertThat(full.refCnt()).isZero();
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.SET_COOKIE, "session=123");
+    leader.writeOutbound(response);
+    follower.runPendingTasks();
+    HttpRequest forwarded = follower.readInbound();
+    assertThat(forwarded.uri()).isEqualTo("/a");
+    assertThat(forwarded.headers().get(HttpHeaderNames.HOST)).isEqualTo("example.com");
+    assertThat((Object) follower.readInbound()).isInstanceOf(LastHttpContent.class);
+  }
+
+  @Test
+  public void requestsWithUserCookiesAreNotCollapsed() {
+    HttpRequest first = request();
+    first.headers().set(HttpHeaderNames.COOKIE, "session=alice");
+    HttpRequest second = request();
+    second.headers().set(HttpHeaderNames.COOKIE, "session=bob");
+    leader.writeInbound(first);
+    follower.writeInbound(second);
+    assertThat((Object) leader.readInbound()).isSameAs(first);
+    assertThat((Object) follower.readInbound()).isSameAs(second);
+    assertThat(registry.inFlight()).isEmpty();
+    HttpRequest admitted = request();
+    admitted.headers().set(HttpHeaderNames.COOKIE, AdmissionHandler.cookieName + "=X123");
+    assertThat(registry.requestKey(admitted)).isNotNull();
+  }
+
+  @Test
+  public void postIsNotCollapsed() {
+    HttpRequest post = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, "/a");
+    post.headers().set(HttpHeaderNames.HOST, "example.com");
+    assertThat(registry.requestKey(post)).isNull();
+  }
+
+  private static HttpRequest request() {
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a");
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    return request;
+  }
+
+}
@@ -0,0 +1,103 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class CompressionTest {
+
+  ResponseCompression compression = new ResponseCompression(CompressionConfig.builder().enable(true).build());
+  EmbeddedChannel channel = new EmbeddedChannel(compression.normalizeHandler(), compression.newHandler());
+
+  @Test
+  public void acceptEncodingIsNormalized() {
+    assertThat(compression.selectEncoding("gzip;q=0, deflate")).isEqualTo("deflate");
+    assertThat(compression.selectEncoding("identity")).isNull();
+    channel.writeInbound(request("gzip, deflate;q=0.5"));
+    HttpRequest forwarded = channel.readInbound();
+    assertThat(forwarded.headers().get(HttpHeaderNames.ACCEPT_ENCODING)).isEqualTo("gzip");
+    ReferenceCountUtil.release(forwarded);
+  }
+
+  @Test
+  public void htmlIsCompressed() {
+    channel.writeInbound(request("gzip"));
+    ReferenceCountUtil.release(channel.readInbound());
+    String body = "<html>" + "hello ".repeat(1000) + "</html>";
+    HttpResponse response = response("text/html; charset=utf-8", body.length());
+    response.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    channel.writeOutbound(response, new DefaultLastHttpContent(Unpooled.copiedBuffer(body, CharsetUtil.UTF_8)));
+    HttpResponse compressed = channel.readOutbound();
+    assertThat(compressed.headers().get(HttpHeaderNames.CONTENT_ENCODING)).isEqualTo("gzip");
+    assertThat(compressed.headers().get(HttpHeaderNames.VARY)).isEqualToIgnoringCase("accept-encoding");
+    assertThat(compressed.headers().get(HttpHeaderNames.ETAG)).isEqualTo("W/\"v1\"");
+    EmbeddedChannel decoder = new EmbeddedChannel(ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP));
+    int compressedBytes = 0;
+    HttpContent content;
+    while ((content = channel.readOutbound()) != null) {
+      compressedBytes += content.content().readableBytes();
+      decoder.writeInbound(content.content());
+    }
+    assertThat(compressedBytes).isLessThan(body.length());
+    StringBuilder sb = new StringBuilder();
+    ByteBuf buf;
+    while ((buf = decoder.readInbound()) != null) {
+      sb.append(buf.toString(CharsetUtil.UTF_8));
+      buf.release();
+    }
+    assertThat(sb.toString()).isEqualTo(body);
+  }
+
+  @Test
+  public void smallOrBinaryResponseIsNotCompressed() {
+    channel.writeInbound(request("gzip"));
+    ReferenceCountUtil.release(channel.readInbound());
+    channel.writeOutbound(response("text/html", 100), new DefaultLastHttpContent(Unpooled.buffer(100).writeZero(100)));
+    HttpResponse small = channel.readOutbound();
+    assertThat(small.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    assertThat(small.headers().get(HttpHeaderNames.VARY)).isEqualToIgnoringCase("accept-encoding");
+    channel.<HttpContent>readOutbound().release();
+    channel.writeInbound(request("gzip"));
+    ReferenceCountUtil.release(channel.readInbound());
+    channel.writeOutbound(response("image/png", 5000), new DefaultLastHttpContent(Unpooled.buffer(5000).writeZero(5000)));
+    HttpResponse binary = channel.readOutbound();
+    assertThat(binary.headers().contains(HttpHeaderNames.CONTENT_ENCODING)).isFalse();
+    assertThat(binary.headers().contains(HttpHeaderNames.VARY)).isFalse();
+    channel.<HttpContent>readOutbound().release();
+  }
+
+  private static HttpResponse response(String contentType, int length) {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, length);
+    return response;
+  }
+
+  private static HttpRequest request(String acceptEncoding) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, acceptEncoding);
+    return request;
+  }
+
+}
@@ -0,0 +1,65 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class ConcurrencyLimiterTest {
+
+  EventLoop loop = new EmbeddedChannel().eventLoop();
+
+  @Test
+  public void queueAndHandOverPermit() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", ConcurrencyLimitConfig.builder()
+      .initialLimit(2)
+      .queueSize(1)
+      .build());
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isFalse();
+    Future<Void> waiting = limiter.enqueue(loop);
+    assertThat(waiting.isDone()).isFalse();
+    Future<Void> rejected = limiter.enqueue(loop);
+    assertThat(rejected.cause()).isInstanceOf(ConcurrencyLimiter.LimitExceededException.class);
+    assertThat(limiter.rejectedQueueFull()).isEqualTo(1);
+    limiter.releaseWithoutSample();
+    assertThat(waiting.isSuccess()).isTrue();
+    assertThat(limiter.queued()).isEqualTo(0);
+    assertThat(limiter.inFlight()).isEqualTo(2);
+  }
+
+  @Test
+  public void noQueueRejectsImmediately() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", ConcurrencyLimitConfig.builder()
+      .initialLimit(1)
+      .build());
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.enqueue(loop).isSuccess()).isFalse();
+  }
+
+  @Test
+  public void limitGrowsWithStableLatencyAndShrinksWhenUpstreamQueues() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", ConcurrencyLimitConfig.builder()
+      .initialLimit(10)
+      .build());
+    for (int i = 0; i < 10; i++) {
+      assertThat(limiter.tryAcquire()).isTrue();
+    }
+    limiter.release(MILLISECONDS.toNanos(1), true);
+    assertThat(limiter.limit()).isGreaterThan(10);
+    int limit = limiter.limit();
+    limiter.release(MILLISECONDS.toNanos(100), true);
+    assertThat(limiter.limit()).isLessThan(limit);
+    limit = limiter.limit();
+    limiter.release(0, false);
+    assertThat(limiter.limit()).isLessThan(limit);
+  }
+
+}
@@ -0,0 +1,89 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.GaugeSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshots;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class DefaultUpstreamTest {
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, Transport.NIO.ioHandlerFactory());
+  UpstreamMetrics metrics = new UpstreamMetrics();
+  ProxyContext ctx = new ProxyContext() {
+    @Override
+    public EventLoopGroup eventLoopGroup() { return group; }
+    @Override
+    public Transport transport() { return Transport.NIO; }
+    @Override
+    public UpstreamMetrics upstreamMetrics() { return metrics; }
+  };
+
+  @AfterEach
+  public void tearDown() {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void warmUpOpensMissingConnections() throws Exception {
+    List<Channel> accepted = new CopyOnWriteArrayList<>();
+    Channel server = new ServerBootstrap().group(group).channel(Transport.NIO.serverSocketChannelClass())
+      .childHandler(new ChannelInitializer<>() {
+        @Override
+        protected void initChannel(Channel ch) {
+          accepted.add(ch);
+        }
+      }).bind("127.0.0.1", 0).sync().channel();
+    String target = "127.0.0.1:" + ((InetSocketAddress) server.localAddress()).getPort();
+    DefaultUpstream upstream = new DefaultUpstream(ctx,
+      UpstreamConfig.builder().target(target).minIdleConnections(2).build());
+    await(() -> upstream.idleConnections() == 2 && accepted.size() == 2);
+    accepted.get(0).close().sync();
+    // the next warm up replaces the closed connection and leaves the idle one
+    await(() -> accepted.size() == 3 && upstream.idleConnections() == 2);
+    Thread.sleep(1500);
+    assertThat(accepted).hasSize(3);
+    assertThat(upstream.inUseConnections()).isZero();
+    server.close().sync();
+  }
+
+  @Test
+  public void hostsWithSameTargetHaveDistinctLabels() {
+    new DefaultUpstream(ctx, UpstreamConfig.builder().host("a.example").target("127.0.0.1:8080").build());
+    new DefaultUpstream(ctx, UpstreamConfig.builder().host("b.example").target("127.0.0.1:8080").build());
+    PrometheusRegistry registry = new PrometheusRegistry();
+    metrics.registerCollectors(registry::register);
+    MetricSnapshots snapshots = registry.scrape();
+    GaugeSnapshot idle = (GaugeSnapshot) snapshots.stream()
+      .filter(snapshot -> snapshot.getMetadata().getName().equals("upstream_pool_idle_connections"))
+      .findFirst().orElseThrow();
+    assertThat(idle.getDataPoints())
+      .extracting(point -> point.getLabels().get("host"))
+      .containsExactlyInAnyOrder("a.example", "b.example");
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadline);
+      Thread.sleep(10);
+    }
+  }
+
+}
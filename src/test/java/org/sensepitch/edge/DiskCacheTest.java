@@ -0,0 +1,86 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class DiskCacheTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void indexIsRecoveredFromSegments() throws Exception {
+    CacheConfig cfg = CacheConfig.builder()
+      .enable(true)
+      .diskDirectory(directory.toString())
+      .diskSegmentMegabytes(1)
+      .build();
+    DiskCache disk = new DiskCache(cfg, () -> 0);
+    HttpHeaders headers = new DefaultHttpHeaders();
+    headers.set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+    headers.set(HttpHeaderNames.VARY, "accept-encoding");
+    long now = System.currentTimeMillis();
+    disk.store(new CacheEntry("example.com/a", HttpResponseStatus.OK, headers,
+      Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8),
+      new String[] { "accept-encoding" }, new String[] { "gzip" }, 0, now, now + 60_000, 0, 0), 0);
+    disk.flush();
+    assertThat(disk.entryCount()).isEqualTo(1);
+    DiskCache recovered = new DiskCache(cfg, () -> 0);
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a");
+    assertThat(recovered.lookup("example.com/a", request)).isNull();
+    request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+    DiskCache.DiskEntry entry = recovered.lookup("example.com/a", request);
+    assertThat(entry).isNotNull();
+    assertThat(entry.isFresh(now)).isTrue();
+    HttpResponse response = recovered.readResponse(entry);
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_TYPE)).isEqualTo("text/plain");
+    ByteBuf content = recovered.mappedContent(entry);
+    assertThat(content.toString(CharsetUtil.UTF_8)).isEqualTo("hello");
+    content.release();
+  }
+
+  @Test
+  public void writeQueuedBeforePurgeIsDropped() throws Exception {
+    CacheConfig cfg = CacheConfig.builder()
+      .enable(true)
+      .diskDirectory(directory.toString())
+      .diskSegmentMegabytes(1)
+      .build();
+    AtomicLong purgeSequence = new AtomicLong();
+    DiskCache disk = new DiskCache(cfg, purgeSequence::get);
+    long now = System.currentTimeMillis();
+    CacheEntry entry = new CacheEntry("example.com/a", HttpResponseStatus.OK, new DefaultHttpHeaders(),
+      Unpooled.copiedBuffer("hello", CharsetUtil.UTF_8), new String[0], new String[0], 0, now, now + 60_000, 0, 0);
+    // queued with the sequence before the purge
+    purgeSequence.incrementAndGet();
+    disk.store(entry, 0);
+    disk.flush();
+    HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/a");
+    assertThat(disk.lookup("example.com/a", request)).isNull();
+    assertThat(disk.entryCount()).isZero();
+    DiskCache recovered = new DiskCache(cfg, purgeSequence::get);
+    assertThat(recovered.lookup("example.com/a", request)).isNull();
+  }
+
+}
@@ -0,0 +1,123 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalIoHandler;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class H2cConnectionPoolTest {
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, LocalIoHandler.newFactory());
+  EventLoop loop = group.next();
+  LongAdder openConnections = new LongAdder();
+  LongAdder inUseConnections = new LongAdder();
+  LongAdder activeStreams = new LongAdder();
+
+  @AfterEach
+  public void tearDown() {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void streamsAreLimitedPerConnection() throws Exception {
+    LocalAddress address = new LocalAddress("h2c-" + System.nanoTime());
+    new ServerBootstrap().group(group).channel(LocalServerChannel.class)
+      .childHandler(new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+          Http2Ingress.configure(ch.pipeline(), ConnectionConfig.DEFAULT, new ProxyMetrics(),
+            pipeline -> pipeline.addLast(new Responder()));
+        }
+      }).bind(address).sync();
+    Bootstrap bootstrap = new Bootstrap().group(group).channel(LocalChannel.class).remoteAddress(address);
+    H2cConnectionPool pool = new H2cConnectionPool(bootstrap, loop, 1, 2, 0, 0, 0,
+      openConnections, inUseConnections, activeStreams);
+    Channel first = acquire(pool).get(5, TimeUnit.SECONDS);
+    Channel second = acquire(pool).get(5, TimeUnit.SECONDS);
+    Future<Channel> third = acquire(pool);
+    assertThat(openConnections.sum()).isEqualTo(1);
+    assertThat(activeStreams.sum()).isEqualTo(2);
+    assertThat(third.isDone()).isFalse();
+    HttpResponse response = send(first, "/one").get(5, TimeUnit.SECONDS);
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.headers().names()).noneMatch(name -> name.startsWith("x-http2"));
+    // the stream of the first request closes after the response, so the third gets a stream
+    Channel thirdStream = third.get(5, TimeUnit.SECONDS);
+    assertThat(send(thirdStream, "/three").get(5, TimeUnit.SECONDS).status()).isEqualTo(HttpResponseStatus.OK);
+    loop.submit(() -> second.close()).sync();
+    assertThat(openConnections.sum()).isEqualTo(1);
+  }
+
+  private Future<Channel> acquire(H2cConnectionPool pool) throws Exception {
+    return loop.submit(() -> pool.acquire(loop.newPromise())).get();
+  }
+
+  private CompletableFuture<HttpResponse> send(Channel stream, String uri) {
+    CompletableFuture<HttpResponse> result = new CompletableFuture<>();
+    loop.execute(() -> {
+      stream.pipeline().replace("forward", "forward", new ChannelInboundHandlerAdapter() {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+          if (msg instanceof HttpResponse response) {
+            result.complete(response);
+          }
+          ReferenceCountUtil.release(msg);
+        }
+      });
+      FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+      request.headers().set(HttpHeaderNames.HOST, "example.com");
+      stream.writeAndFlush(request);
+    });
+    return result;
+  }
+
+  static class Responder extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+      if (msg instanceof LastHttpContent) {
+        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+          HttpResponseStatus.OK, Unpooled.copiedBuffer("ok", CharsetUtil.UTF_8));
+        HttpUtil.setContentLength(response, 2);
+        ctx.writeAndFlush(response);
+      }
+      ReferenceCountUtil.release(msg);
+    }
+
+  }
+
+}
@@ -0,0 +1,88 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class HandshakeLimitTest {
+
+  @Test
+  public void queuedUntilHandshakeSlotIsFree() {
+    HandshakeLimiter limiter = new HandshakeLimiter(HandshakeLimitConfig.builder()
+      .enable(true).maxPerLoop(1).queueSize(1).build());
+    EmbeddedChannel first = new EmbeddedChannel(limiter.newHandler());
+    assertThat(first.config().isAutoRead()).isTrue();
+    EmbeddedChannel second = new EmbeddedChannel(limiter.newHandler());
+    assertThat(second.config().isAutoRead()).isFalse();
+    EmbeddedChannel third = new EmbeddedChannel(limiter.newHandler());
+    assertThat(third.isOpen()).isFalse();
+    assertThat(limiter.shedCounter.labelValues("queue_full").get()).isEqualTo(1.0);
+    first.close();
+    assertThat(second.config().isAutoRead()).isTrue();
+    assertThat(second.isOpen()).isTrue();
+    second.close();
+  }
+
+  @Test
+  public void queueTimeoutClosesConnection() {
+    HandshakeLimiter limiter = new HandshakeLimiter(HandshakeLimitConfig.builder()
+      .enable(true).maxPerLoop(1).queueSize(1).queueTimeoutMillis(100).build());
+    EmbeddedChannel first = new EmbeddedChannel(limiter.newHandler());
+    EmbeddedChannel second = new EmbeddedChannel(limiter.newHandler());
+    second.advanceTimeBy(150, TimeUnit.MILLISECONDS);
+    second.runScheduledPendingTasks();
+    assertThat(second.isOpen()).isFalse();
+    assertThat(limiter.shedCounter.labelValues("queue_timeout").get()).isEqualTo(1.0);
+    first.close();
+    // the next connection is admitted right away
+    assertThat(new EmbeddedChannel(limiter.newHandler()).config().isAutoRead()).isTrue();
+  }
+
+  @Test
+  public void handshakeTimeoutFreesSlot() {
+    HandshakeLimiter limiter = new HandshakeLimiter(HandshakeLimitConfig.builder()
+      .enable(true).maxPerLoop(1).queueSize(1).queueTimeoutMillis(60_000).handshakeTimeoutMillis(100).build());
+    EmbeddedChannel first = new EmbeddedChannel(limiter.newHandler());
+    EmbeddedChannel second = new EmbeddedChannel(limiter.newHandler());
+    assertThat(second.config().isAutoRead()).isFalse();
+    first.advanceTimeBy(150, TimeUnit.MILLISECONDS);
+    first.runScheduledPendingTasks();
+    assertThat(first.isOpen()).isFalse();
+    assertThat(limiter.timeoutCounter.get()).isEqualTo(1.0);
+    // the slot goes to the queued connection, which gets its own deadline
+    assertThat(second.config().isAutoRead()).isTrue();
+    second.advanceTimeBy(150, TimeUnit.MILLISECONDS);
+    second.runScheduledPendingTasks();
+    assertThat(second.isOpen()).isFalse();
+    assertThat(new EmbeddedChannel(limiter.newHandler()).config().isAutoRead()).isTrue();
+  }
+
+  @Test
+  public void sourceLimitClosesConnection() {
+    HandshakeLimiter limiter = new HandshakeLimiter(HandshakeLimitConfig.builder()
+      .enable(true).maxPerSource(1).build());
+    EmbeddedChannel first = new EmbeddedChannel(limiter.newHandler());
+    EmbeddedChannel second = new EmbeddedChannel(limiter.newHandler());
+    assertThat(second.isOpen()).isFalse();
+    assertThat(limiter.shedCounter.labelValues("source_limit").get()).isEqualTo(1.0);
+    first.close();
+    assertThat(new EmbeddedChannel(limiter.newHandler()).isOpen()).isTrue();
+  }
+
+  @Test
+  public void sourcePrefix() {
+    HandshakeLimiter limiter = new HandshakeLimiter(HandshakeLimitConfig.builder()
+      .ipv4PrefixLength(24).build());
+    assertThat(limiter.source(new InetSocketAddress("192.168.10.77", 443))).isEqualTo("192.168.10.0/24");
+    assertThat(limiter.source(new InetSocketAddress("2001:db8:1:2:3:4:5:6", 443)))
+      .isEqualTo("2001:db8:1:2:0:0:0:0/64");
+  }
+
+}
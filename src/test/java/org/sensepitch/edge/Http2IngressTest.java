@@ -0,0 +1,123 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class Http2IngressTest {
+
+  ProxyMetrics metrics = new ProxyMetrics();
+  List<HttpRequest> serverRequests = new ArrayList<>();
+  EmbeddedChannel server = new EmbeddedChannel();
+  EmbeddedChannel client = new EmbeddedChannel(
+    Http2FrameCodecBuilder.forClient().build(), new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+
+  @Test
+  public void streamRunsThroughRequestHandlers() {
+    Http2Ingress.configure(server.pipeline(), ConnectionConfig.DEFAULT, metrics,
+      pipeline -> pipeline.addLast(new ChannelInboundHandlerAdapter() {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+          if (msg instanceof HttpRequest request) {
+            serverRequests.add(request);
+          }
+          if (msg instanceof LastHttpContent) {
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+              HttpResponseStatus.OK, Unpooled.copiedBuffer("ok", CharsetUtil.UTF_8));
+            HttpUtil.setContentLength(response, 2);
+            ctx.writeAndFlush(response);
+          }
+          if (!(msg instanceof HttpRequest)) {
+            ReferenceCountUtil.release(msg);
+          }
+        }
+      }));
+    List<Object> received = new ArrayList<>();
+    Http2StreamChannel stream = new Http2StreamChannelBootstrap(client)
+      .handler(new ChannelInitializer<Http2StreamChannel>() {
+        @Override
+        protected void initChannel(Http2StreamChannel ch) {
+          ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+          ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+              received.add(msg);
+            }
+          });
+        }
+      }).open().syncUninterruptibly().getNow();
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    stream.writeAndFlush(request);
+    exchange();
+    assertThat(serverRequests).hasSize(1);
+    HttpRequest forwarded = serverRequests.getFirst();
+    assertThat(forwarded.uri()).isEqualTo("/index.html");
+    assertThat(forwarded.headers().get(HttpHeaderNames.HOST)).isEqualTo("example.com");
+    assertThat(forwarded.headers().names()).noneMatch(name -> name.startsWith("x-http2"));
+    ReferenceCountUtil.release(forwarded);
+    assertThat(received).isNotEmpty();
+    assertThat(((HttpResponse) received.getFirst()).status()).isEqualTo(HttpResponseStatus.OK);
+    StringBuilder body = new StringBuilder();
+    for (Object msg : received) {
+      if (msg instanceof HttpContent content) {
+        body.append(content.content().toString(CharsetUtil.UTF_8));
+      }
+      ReferenceCountUtil.release(msg);
+    }
+    assertThat(body.toString()).isEqualTo("ok");
+    assertThat(received.getLast()).isInstanceOf(LastHttpContent.class);
+    assertThat(metrics.ingressHttp2StreamsCounter.get()).isEqualTo(1.0);
+  }
+
+  /**
+   * Move the bytes between client and server until both are quiet.
+   */
+  private void exchange() {
+    boolean moved;
+    do {
+      moved = false;
+      ByteBuf buf;
+      while ((buf = client.readOutbound()) != null) {
+        server.writeInbound(buf);
+        moved = true;
+      }
+      while ((buf = server.readOutbound()) != null) {
+        client.writeInbound(buf);
+        moved = true;
+      }
+    } while (moved);
+  }
+
+}
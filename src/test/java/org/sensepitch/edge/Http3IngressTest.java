@@ -0,0 +1,153 @@
+package org.sensepitch.edge;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioIoHandler;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http3.Http3;
+import io.netty.handler.codec.http3.Http3ClientConnectionHandler;
+import io.netty.handler.codec.http3.Http3FrameToHttpObjectCodec;
+import io.netty.handler.codec.quic.Quic;
+import io.netty.handler.codec.quic.QuicChannel;
+import io.netty.handler.codec.quic.QuicSslContextBuilder;
+import io.netty.handler.codec.quic.QuicStreamChannel;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+import io.netty.util.CharsetUtil;
+import io.netty.util.NetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author Jens Wilke
+ */
+public class Http3IngressTest {
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, NioIoHandler.newFactory());
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @AfterEach
+  public void tearDown() {
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void requestOverLoopback() throws Exception {
+    assumeTrue(Quic.isAvailable(), "QUIC native library not available");
+    X509Bundle certificate = new CertificateBuilder()
+      .subject("CN=localhost")
+      .setIsCertificateAuthority(true)
+      .buildSelfSigned();
+    SslConfig ssl = new SslConfig(
+      certificate.toTempPrivateKeyPem().getAbsolutePath(),
+      certificate.toTempCertChainPem().getAbsolutePath());
+    CompletableFuture<String> remoteIp = new CompletableFuture<>();
+    Channel server = new Bootstrap().group(group).channel(NioDatagramChannel.class)
+      .handler(Http3Ingress.codec(Http3Ingress.sslContext(ssl), ConnectionConfig.DEFAULT, true, metrics,
+        pipeline -> pipeline.addLast(new ChannelInboundHandlerAdapter() {
+          @Override
+          public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof HttpRequest request) {
+              assertThat(request.headers().names()).noneMatch(name -> name.startsWith("x-http3"));
+              remoteIp.complete(ProxyUtil.extractRemoteIp(ctx.channel()));
+            }
+            if (msg instanceof LastHttpContent) {
+              DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                HttpResponseStatus.OK, Unpooled.copiedBuffer("ok", CharsetUtil.UTF_8));
+              HttpUtil.setContentLength(response, 2);
+              ctx.writeAndFlush(response);
+            }
+            ReferenceCountUtil.release(msg);
+          }
+        })))
+      .bind(new InetSocketAddress(NetUtil.LOCALHOST4, 0)).sync().channel();
+    Channel client = new Bootstrap().group(group).channel(NioDatagramChannel.class)
+      .handler(Http3.newQuicClientCodecBuilder()
+        .sslContext(QuicSslContextBuilder.forClient()
+          .trustManager(InsecureTrustManagerFactory.INSTANCE)
+          .applicationProtocols(Http3.supportedApplicationProtocols())
+          .build())
+        .maxIdleTimeout(5, TimeUnit.SECONDS)
+        .initialMaxData(Http3Ingress.CONNECTION_WINDOW)
+        .initialMaxStreamDataBidirectionalLocal(Http3Ingress.STREAM_WINDOW)
+        .build())
+      .bind(new InetSocketAddress(NetUtil.LOCALHOST4, 0)).sync().channel();
+    QuicChannel connection = QuicChannel.newBootstrap(client)
+      .handler(new Http3ClientConnectionHandler())
+      .remoteAddress(server.localAddress())
+      .connect().get(5, TimeUnit.SECONDS);
+    CompletableFuture<String> body = new CompletableFuture<>();
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    QuicStreamChannel stream = Http3.newRequestStream(connection, new ChannelInitializer<QuicStreamChannel>() {
+      @Override
+      protected void initChannel(QuicStreamChannel ch) {
+        ch.pipeline().addLast(new Http3FrameToHttpObjectCodec(false));
+        ch.pipeline().addLast(new HttpObjectAggregator(1024));
+        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+          @Override
+          public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            response.complete((HttpResponse) msg);
+            body.complete(((HttpContent) msg).content().toString(CharsetUtil.UTF_8));
+            ReferenceCountUtil.release(msg);
+          }
+        });
+      }
+    }).get(5, TimeUnit.SECONDS);
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+      "https://localhost/index.html");
+    request.headers().set(HttpHeaderNames.HOST, "localhost");
+    stream.writeAndFlush(request).sync();
+    assertThat(response.get(5, TimeUnit.SECONDS).status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(body.get(5, TimeUnit.SECONDS)).isEqualTo("ok");
+    assertThat(remoteIp.get(5, TimeUnit.SECONDS)).isEqualTo("127.0.0.1");
+    assertThat(metrics.ingressHttp3StreamsCounter.get()).isEqualTo(1.0);
+    connection.close().sync();
+    client.close().sync();
+    server.close().sync();
+  }
+
+  @Test
+  public void altSvcIsAddedToResponses() {
+    EmbeddedChannel channel = new EmbeddedChannel(Http3Ingress.altSvcHandler(443));
+    channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK));
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.headers().get(Http3Ingress.ALT_SVC)).isEqualTo("h3=\":443\"; ma=86400");
+    ReferenceCountUtil.release(response);
+    DefaultFullHttpResponse fromUpstream = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    fromUpstream.headers().set(Http3Ingress.ALT_SVC, "clear");
+    channel.writeOutbound(fromUpstream);
+    response = channel.readOutbound();
+    assertThat(response.headers().get(Http3Ingress.ALT_SVC)).isEqualTo("clear");
+    ReferenceCountUtil.release(response);
+  }
+
+}
@@ -0,0 +1,127 @@
+package org.sensepitch.edge;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Jens Wilke
+ */
+public class LoadBalancerTest {
+
+  @Test
+  public void roundRobinRespectsWeights() {
+    TestTarget a = new TestTarget("a", 3);
+    TestTarget b = new TestTarget("b", 1);
+    LoadBalancer<TestTarget> balancer = LoadBalancer.create(LoadBalancer.ROUND_ROBIN, List.of(a, b));
+    Map<String, Integer> counts = count(balancer, 400);
+    assertThat(counts.get("a")).isEqualTo(300);
+    assertThat(counts.get("b")).isEqualTo(100);
+  }
+
+  @Test
+  public void roundRobinInterleaves() {
+    TestTarget a = new TestTarget("a", 2);
+    TestTarget b = new TestTarget("b", 2);
+    LoadBalancer<TestTarget> balancer = LoadBalancer.create(null, List.of(a, b));
+    assertThat(balancer.select()).isNotSameAs(balancer.select());
+  }
+
+  @Test
+  public void powerOfTwoPrefersLessInFlight() {
+    TestTarget a = new TestTarget("a", 1);
+    TestTarget b = new TestTarget("b", 1);
+    a.inFlight = 10;
+    LoadBalancer<TestTarget> balancer =
+      LoadBalancer.create(LoadBalancer.POWER_OF_TWO_CHOICES, List.of(a, b));
+    assertThat(count(balancer, 100).get("b")).isEqualTo(100);
+  }
+
+  @Test
+  public void leastLatencyPrefersFastTarget() {
+    TestTarget a = new TestTarget("a", 1);
+    TestTarget b = new TestTarget("b", 1);
+    TestTarget c = new TestTarget("c", 1);
+    a.latency = 1_000_000;
+    b.latency = 50_000_000;
+    c.latency = 50_000_000;
+    LoadBalancer<TestTarget> balancer =
+      LoadBalancer.create(LoadBalancer.LEAST_LATENCY, List.of(a, b, c));
+    Map<String, Integer> counts = count(balancer, 1000);
+    // a is always selected when it is one of the two choices
+    assertThat(counts.get("a")).isGreaterThan(500);
+  }
+
+  @Test
+  public void skipUnavailableTarget() {
+    TestTarget a = new TestTarget("a", 1);
+    TestTarget b = new TestTarget("b", 5);
+    TestTarget c = new TestTarget("c", 1);
+    b.available = false;
+    for (String policy : List.of(LoadBalancer.ROUND_ROBIN, LoadBalancer.POWER_OF_TWO_CHOICES)) {
+      LoadBalancer<TestTarget> balancer = LoadBalancer.create(policy, List.of(a, b, c));
+      assertThat(count(balancer, 100)).doesNotContainKey("b");
+    }
+  }
+
+  @Test
+  public void slowStartReducesShare() {
+    TestTarget a = new TestTarget("a", 1);
+    TestTarget b = new TestTarget("b", 1);
+    b.weightFactor = 0.1;
+    LoadBalancer<TestTarget> balancer = LoadBalancer.create(LoadBalancer.ROUND_ROBIN, List.of(a, b));
+    assertThat(count(balancer, 1000).get("b")).isLessThan(300);
+  }
+
+  @Test
+  public void unknownPolicy() {
+    List<TestTarget> targets = List.of(new TestTarget("a", 1), new TestTarget("b", 1));
+    assertThatThrownBy(() -> LoadBalancer.create("random", targets))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static Map<String, Integer> count(LoadBalancer<TestTarget> balancer, int requests) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < requests; i++) {
+      counts.merge(balancer.select().name, 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  static class TestTarget implements LoadBalancer.Target {
+
+    final String name;
+    final int weight;
+    long inFlight;
+    double latency;
+    boolean available = true;
+    double weightFactor = 1;
+
+    TestTarget(String name, int weight) {
+      this.name = name;
+      this.weight = weight;
+    }
+
+    @Override
+    public int weight() { return weight; }
+
+    @Override
+    public long inFlight() { return inFlight; }
+
+    @Override
+    public double latencyEwmaNanos() { return latency; }
+
+    @Override
+    public boolean isAvailable() { return available; }
+
+    @Override
+    public double weightFactor() { return weightFactor; }
+
+  }
+
+}
@@ -0,0 +1,90 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class PipeliningTest {
+
+  ProxyMetrics metrics = new ProxyMetrics();
+
+  @Test
+  public void requestsArePassedOnAfterPreviousResponse() {
+    EmbeddedChannel channel = new EmbeddedChannel(new PipeliningHandler(16, metrics));
+    channel.writeInbound(request("/one"), request("/two"), request("/three"));
+    FullHttpRequest first = channel.readInbound();
+    assertThat(first.uri()).isEqualTo("/one");
+    first.release();
+    assertThat((Object) channel.readInbound()).isNull();
+    assertThat(metrics.ingressPipelinedRequestsCounter.get()).isEqualTo(2.0);
+    channel.writeOutbound(response());
+    FullHttpRequest second = channel.readInbound();
+    assertThat(second.uri()).isEqualTo("/two");
+    second.release();
+    assertThat((Object) channel.readInbound()).isNull();
+    channel.writeOutbound(response());
+    FullHttpRequest third = channel.readInbound();
+    assertThat(third.uri()).isEqualTo("/three");
+    third.release();
+    releaseOutbound(channel);
+  }
+
+  @Test
+  public void interimResponseDoesNotCompleteTheResponse() {
+    EmbeddedChannel channel = new EmbeddedChannel(new PipeliningHandler(16, metrics));
+    channel.writeInbound(request("/one"), request("/two"));
+    ReferenceCountUtil.release(channel.readInbound());
+    channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+    assertThat((Object) channel.readInbound()).isNull();
+    channel.writeOutbound(response());
+    FullHttpRequest second = channel.readInbound();
+    assertThat(second.uri()).isEqualTo("/two");
+    second.release();
+    releaseOutbound(channel);
+  }
+
+  @Test
+  public void readingPausesWhenQueueIsFull() {
+    EmbeddedChannel channel = new EmbeddedChannel(new PipeliningHandler(1, metrics));
+    channel.writeInbound(request("/one"), request("/two"));
+    assertThat(channel.config().isAutoRead()).isTrue();
+    channel.writeInbound(request("/three"));
+    assertThat(channel.config().isAutoRead()).isFalse();
+    ReferenceCountUtil.release(channel.readInbound());
+    channel.writeOutbound(response());
+    assertThat(channel.config().isAutoRead()).isTrue();
+    ReferenceCountUtil.release(channel.readInbound());
+    channel.close();
+    releaseOutbound(channel);
+  }
+
+  private static FullHttpRequest request(String uri) {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    return request;
+  }
+
+  private static DefaultFullHttpResponse response() {
+    return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+  }
+
+  private static void releaseOutbound(EmbeddedChannel channel) {
+    Object msg;
+    while ((msg = channel.readOutbound()) != null) {
+      ReferenceCountUtil.release(msg);
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.OpenSslAsyncPrivateKeyMethod;
+import io.netty.pkitesting.CertificateBuilder;
+import io.netty.pkitesting.X509Bundle;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * @author Jens Wilke
+ */
+public class PrivateKeyOffloadTest {
+
+  /**
+   * The signature algorithm constants are read from the native library
+   */
+  @BeforeAll
+  static void requireOpenSsl() {
+    assumeTrue(OpenSsl.isAvailable(), "OpenSSL native library not available");
+  }
+
+  static final byte[] MESSAGE = "client and server random".getBytes(StandardCharsets.US_ASCII);
+
+  @Test
+  public void signatureIsSelectedByKeyType() throws Exception {
+    KeyPair rsa = generate("RSA");
+    KeyPair ec = generate("EC");
+    PrivateKeyOffload offload = new PrivateKeyOffload(PrivateKeyOffloadConfig.builder().threads(1).build());
+    OpenSslAsyncPrivateKeyMethod method = offload.newKeyMethod(List.of(rsa.getPrivate(), ec.getPrivate()));
+    byte[] rsaSignature = result(method.sign(null, OpenSslAsyncPrivateKeyMethod.SSL_SIGN_RSA_PKCS1_SHA256, MESSAGE));
+    assertThat(verify("SHA256withRSA", rsa, rsaSignature)).isTrue();
+    byte[] ecSignature = result(method.sign(null, OpenSslAsyncPrivateKeyMethod.SSL_SIGN_ECDSA_SECP256R1_SHA256, MESSAGE));
+    assertThat(verify("SHA256withECDSA", ec, ecSignature)).isTrue();
+    assertThat(offload.operationsCounter.labelValues("sign", "success").get()).isEqualTo(2.0);
+    offload.executor.shutdown();
+  }
+
+  @Test
+  public void fullQueueRejects() throws Exception {
+    KeyPair rsa = generate("RSA");
+    PrivateKeyOffload offload = new PrivateKeyOffload(PrivateKeyOffloadConfig.builder()
+      .threads(1).queueSize(1).build());
+    CountDownLatch latch = new CountDownLatch(1);
+    // one blocks the thread, one waits in the queue
+    offload.executor.execute(() -> awaitUninterruptibly(latch));
+    offload.executor.execute(() -> awaitUninterruptibly(latch));
+    OpenSslAsyncPrivateKeyMethod method = offload.newKeyMethod(List.of(rsa.getPrivate()));
+    Future<byte[]> future = method.sign(null, OpenSslAsyncPrivateKeyMethod.SSL_SIGN_RSA_PSS_RSAE_SHA256, MESSAGE);
+    assertThat(future.isDone()).isTrue();
+    assertThat(future.cause()).isInstanceOf(RejectedExecutionException.class);
+    assertThat(offload.operationsCounter.labelValues("sign", "rejected").get()).isEqualTo(1.0);
+    latch.countDown();
+    offload.executor.shutdown();
+  }
+
+  @Test
+  public void readPemKey() throws Exception {
+    X509Bundle bundle = new CertificateBuilder()
+      .subject("CN=example.com")
+      .algorithm(CertificateBuilder.Algorithm.ecp256)
+      .setIsCertificateAuthority(true)
+      .buildSelfSigned();
+    Path key = bundle.toTempPrivateKeyPem().toPath();
+    assertThat(ServerKeys.readPrivateKey(key).getEncoded())
+      .isEqualTo(bundle.getKeyPair().getPrivate().getEncoded());
+    assertThat(ServerKeys.readCertificates(bundle.toTempCertChainPem().toPath())).hasSize(1);
+  }
+
+  /**
+   * Wait via listener, since the promise doesn't allow blocking
+   */
+  private static byte[] result(Future<byte[]> future) throws Exception {
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    future.addListener(f -> {
+      if (f.isSuccess()) {
+        result.complete(future.getNow());
+      } else {
+        result.completeExceptionally(f.cause());
+      }
+    });
+    return result.get(5, TimeUnit.SECONDS);
+  }
+
+  private static KeyPair generate(String algorithm) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+    generator.initialize(algorithm.equals("RSA") ? 2048 : 256);
+    return generator.generateKeyPair();
+  }
+
+  private static boolean verify(String algorithm, KeyPair keyPair, byte[] signature) throws Exception {
+    Signature verifier = Signature.getInstance(algorithm);
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(MESSAGE);
+    return verifier.verify(signature);
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,237 @@
+package org.sensepitch.edge;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.CharsetUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class ResponseCacheTest {
+
+  ResponseCache cache = new ResponseCache(CacheConfig.builder().enable(true).build());
+  EmbeddedChannel channel = new EmbeddedChannel(cache.newHandler());
+
+  @Test
+  public void freshResponseIsServedFromCache() {
+    forward(request("/a"), "public, max-age=60", "hello");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("hello");
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_LENGTH)).isEqualTo("5");
+    assertThat(response.headers().get(HttpHeaderNames.AGE)).isEqualTo("0");
+    response.release();
+  }
+
+  @Test
+  public void headIsServedFromCachedGet() {
+    forward(request("/a"), "max-age=60", "hello");
+    HttpRequest head = request("/a");
+    head.setMethod(HttpMethod.HEAD);
+    channel.writeInbound(head);
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.content().readableBytes()).isZero();
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_LENGTH)).isEqualTo("5");
+    response.release();
+  }
+
+  @Test
+  public void privateResponseIsNotStored() {
+    forward(request("/a"), "private, max-age=60", "hello");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isInstanceOf(HttpRequest.class);
+  }
+
+  @Test
+  public void staleWhileRevalidateIsServed() {
+    forward(request("/a"), "max-age=0, stale-while-revalidate=60", "old");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("old");
+    response.release();
+  }
+
+  @Test
+  public void staleIfErrorReplacesServerError() {
+    forward(request("/a"), "max-age=0, stale-if-error=60", "old");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isInstanceOf(HttpRequest.class);
+    channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY));
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("old");
+    response.release();
+    assertThat((Object) channel.readOutbound()).isNull();
+  }
+
+  @Test
+  public void conditionalRequestIsAnsweredNotModified() {
+    HttpResponse stored = response("max-age=60");
+    stored.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    forward(request("/a"), stored, "hello");
+    HttpRequest conditional = request("/a");
+    conditional.headers().set(HttpHeaderNames.IF_NONE_MATCH, "\"v0\", W/\"v1\"");
+    channel.writeInbound(conditional);
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.NOT_MODIFIED);
+    assertThat(response.headers().get(HttpHeaderNames.ETAG)).isEqualTo("\"v1\"");
+    assertThat(response.content().readableBytes()).isZero();
+    response.release();
+  }
+
+  @Test
+  public void hitWithValidatorsWithoutConditionalRequest() {
+    HttpResponse stored = response("max-age=60");
+    stored.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    stored.headers().set(HttpHeaderNames.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+    forward(request("/a"), stored, "hello");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isNull();
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("hello");
+    response.release();
+  }
+
+  @Test
+  public void notModifiedFromUpstreamRefreshesEntry() {
+    HttpResponse stored = response("max-age=0, stale-if-error=60");
+    stored.headers().set(HttpHeaderNames.ETAG, "\"v1\"");
+    forward(request("/a"), stored, "old");
+    channel.writeInbound(request("/a"));
+    HttpRequest forwarded = channel.readInbound();
+    assertThat(forwarded.headers().get(HttpHeaderNames.IF_NONE_MATCH)).isEqualTo("\"v1\"");
+    FullHttpResponse notModified =
+      new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+    notModified.headers().set(HttpHeaderNames.CACHE_CONTROL, "max-age=60");
+    channel.writeOutbound(notModified);
+    FullHttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.content().toString(CharsetUtil.UTF_8)).isEqualTo("old");
+    assertThat(response.headers().get(HttpHeaderNames.CACHE_CONTROL)).isEqualTo("max-age=60");
+    response.release();
+    assertThat((Object) channel.readOutbound()).isNull();
+    assertThat(forwarded.headers().contains(HttpHeaderNames.IF_NONE_MATCH)).isFalse();
+    ((LastHttpContent) forwarded).release();
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isNull();
+    channel.<FullHttpResponse>readOutbound().release();
+  }
+
+  @Test
+  public void varyOnAcceptEncoding() {
+    HttpRequest gzip = request("/a");
+    gzip.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+    HttpResponse response = response("max-age=60");
+    response.headers().set(HttpHeaderNames.VARY, "Accept-Encoding");
+    forward(gzip, response, "compressed");
+    channel.writeInbound(request("/a"));
+    assertThat((Object) channel.readInbound()).isInstanceOf(HttpRequest.class);
+    channel.releaseInbound();
+    HttpRequest again = request("/a");
+    again.headers().set(HttpHeaderNames.ACCEPT_ENCODING, "gzip");
+    channel.writeInbound(again);
+    FullHttpResponse hit = channel.readOutbound();
+    assertThat(hit.content().toString(CharsetUtil.UTF_8)).isEqualTo("compressed");
+    hit.release();
+  }
+
+  @Test
+  public void purgeByTagAndPrefix() {
+    HttpResponse tagged = response("max-age=60");
+    tagged.headers().set("Surrogate-Key", "news front");
+    forward(request("/a/1"), tagged, "one");
+    forward(request("/a/2"), "max-age=60", "two");
+    forward(request("/b"), "max-age=60", "three");
+    assertThat(cache.purgeTag("news")).isEqualTo(1);
+    assertThat(cache.purgeTag("news")).isZero();
+    assertThat(cache.purgePrefix(AdminHandler.cacheKey("https://example.com/a/"))).isEqualTo(1);
+    channel.writeInbound(request("/a/2"));
+    assertThat((Object) channel.readInbound()).isInstanceOf(HttpRequest.class);
+    channel.releaseInbound();
+    channel.writeInbound(request("/b"));
+    assertThat((Object) channel.readInbound()).isNull();
+    channel.<FullHttpResponse>readOutbound().release();
+  }
+
+  @Test
+  public void frequentEntrySurvivesScan() {
+    TinyLfuPolicy policy = new TinyLfuPolicy(10_000, 100, e -> { });
+    CacheEntry popular = entry("popular");
+    for (int i = 0; i < 5; i++) {
+      policy.recordMiss(popular.key);
+    }
+    policy.add(popular);
+    for (int i = 0; i < 100; i++) {
+      policy.add(entry("scan" + i));
+    }
+    assertThat(popular.removed).isFalse();
+    assertThat(policy.totalBytes()).isLessThanOrEqualTo(10_000);
+  }
+
+  @Test
+  public void releasedEntryHasNoContent() {
+    CacheEntry entry = entry("a");
+    ByteBuf reader = entry.retainedContent();
+    entry.release();
+    // a reader keeps the body, but the entry can't be retained anymore
+    assertThat(entry.content.refCnt()).isEqualTo(1);
+    assertThat(entry.tryRetain()).isFalse();
+    assertThat(entry.retainedContent()).isNull();
+    reader.release();
+    assertThat(entry.content.refCnt()).isZero();
+  }
+
+  private static CacheEntry entry(String key) {
+    return new CacheEntry(key, HttpResponseStatus.OK, new DefaultHttpHeaders(), Unpooled.buffer(1000),
+      new String[0], new String[0], 0, 0, Long.MAX_VALUE, 0, 0);
+  }
+
+  private void forward(HttpRequest request, String cacheControl, String body) {
+    forward(request, response(cacheControl), body);
+  }
+
+  private void forward(HttpRequest request, HttpResponse response, String body) {
+    channel.writeInbound(request);
+    HttpRequest forwarded = channel.readInbound();
+    assertThat(forwarded).isNotNull();
+    ((LastHttpContent) forwarded).release();
+    response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, body.length());
+    channel.writeOutbound(response, new DefaultLastHttpContent(Unpooled.copiedBuffer(body, CharsetUtil.UTF_8)));
+    channel.<HttpResponse>readOutbound();
+    channel.<LastHttpContent>readOutbound().release();
+  }
+
+  private static HttpResponse response(String cacheControl) {
+    HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+    return response;
+  }
+
+  private static HttpRequest request(String uri) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    return request;
+  }
+
+}
@@ -0,0 +1,132 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class StaticFileTest {
+
+  @TempDir
+  Path root;
+
+  @Test
+  public void fileIsSentAsRegion() throws IOException {
+    Files.writeString(root.resolve("style.css"), "body { color: red; }");
+    EmbeddedChannel channel = channel();
+    channel.writeInbound(request("/style.css"));
+    assertThat((Object) channel.readInbound()).isNull();
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    assertThat(response.headers().get(HttpHeaderNames.CONTENT_TYPE)).isEqualTo("text/css; charset=utf-8");
+    assertThat(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH)).isEqualTo(20);
+    assertThat(response.headers().get(HttpHeaderNames.ETAG)).startsWith("\"");
+    FileRegion region = channel.readOutbound();
+    assertThat(region.count()).isEqualTo(20);
+    region.release();
+    assertThat((Object) channel.readOutbound()).isInstanceOf(LastHttpContent.class);
+  }
+
+  @Test
+  public void rangeAndConditionalRequest() throws IOException {
+    Files.writeString(root.resolve("data.txt"), "0123456789");
+    EmbeddedChannel channel = channel();
+    HttpRequest request = request("/data.txt");
+    request.headers().set(HttpHeaderNames.RANGE, "bytes=2-4");
+    channel.writeInbound(request);
+    HttpResponse partial = channel.readOutbound();
+    assertThat(partial.status()).isEqualTo(HttpResponseStatus.PARTIAL_CONTENT);
+    assertThat(partial.headers().get(HttpHeaderNames.CONTENT_RANGE)).isEqualTo("bytes 2-4/10");
+    FileRegion region = channel.readOutbound();
+    assertThat(region.position()).isEqualTo(2);
+    assertThat(region.count()).isEqualTo(3);
+    region.release();
+    ReferenceCountUtil.release(channel.readOutbound());
+    request = request("/data.txt");
+    request.headers().set(HttpHeaderNames.RANGE, "bytes=20-");
+    channel.writeInbound(request);
+    FullHttpResponse unsatisfiable = channel.readOutbound();
+    assertThat(unsatisfiable.status()).isEqualTo(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+    request = request("/data.txt");
+    request.headers().set(HttpHeaderNames.IF_NONE_MATCH, partial.headers().get(HttpHeaderNames.ETAG));
+    channel.writeInbound(request);
+    FullHttpResponse notModified = channel.readOutbound();
+    assertThat(notModified.status()).isEqualTo(HttpResponseStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void missingOrOutsideGoesUpstream() throws IOException {
+    Files.writeString(root.resolve(".secret"), "x");
+    EmbeddedChannel channel = channel();
+    for (String uri : new String[]{"/missing.png", "/.secret", "/../etc/passwd", "/%2e%2e/etc/passwd"}) {
+      channel.writeInbound(request(uri));
+      HttpRequest forwarded = channel.readInbound();
+      assertThat(forwarded.uri()).isEqualTo(uri);
+      ReferenceCountUtil.release(forwarded);
+    }
+    assertThat((Object) channel.readOutbound()).isNull();
+  }
+
+  @Test
+  public void symbolicLinkOutsideRootGoesUpstream(@TempDir Path outside) throws IOException {
+    Files.writeString(outside.resolve("secret.txt"), "secret");
+    Files.createSymbolicLink(root.resolve("secret.txt"), outside.resolve("secret.txt"));
+    Files.createSymbolicLink(root.resolve("linked"), outside);
+    Files.writeString(root.resolve("data.txt"), "0123456789");
+    Files.createSymbolicLink(root.resolve("alias.txt"), root.resolve("data.txt"));
+    EmbeddedChannel channel = channel();
+    for (String uri : new String[]{"/secret.txt", "/linked/secret.txt"}) {
+      channel.writeInbound(request(uri));
+      HttpRequest forwarded = channel.readInbound();
+      assertThat(forwarded.uri()).isEqualTo(uri);
+      ReferenceCountUtil.release(forwarded);
+    }
+    assertThat((Object) channel.readOutbound()).isNull();
+    channel.writeInbound(request("/alias.txt"));
+    HttpResponse response = channel.readOutbound();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.OK);
+    ReferenceCountUtil.release(channel.readOutbound());
+    ReferenceCountUtil.release(channel.readOutbound());
+  }
+
+  @Test
+  public void parseRange() {
+    assertThat(StaticFiles.range("bytes=0-", 10)).containsExactly(0, 10);
+    assertThat(StaticFiles.range("bytes=-3", 10)).containsExactly(7, 10);
+    assertThat(StaticFiles.range("bytes=5-100", 10)).containsExactly(5, 10);
+    assertThat(StaticFiles.range("bytes=0-1,4-5", 10)).isNull();
+    assertThat(StaticFiles.range("bytes=5-2", 10)).isNull();
+    assertThat(StaticFiles.range("bytes=10-", 10)).isSameAs(StaticFiles.UNSATISFIABLE);
+  }
+
+  private EmbeddedChannel channel() {
+    return new EmbeddedChannel(new StaticFiles(Map.of(), root.toAbsolutePath().normalize()).newHandler());
+  }
+
+  private static HttpRequest request(String uri) {
+    HttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    request.headers().set(HttpHeaderNames.HOST, "example.com");
+    return request;
+  }
+
+}
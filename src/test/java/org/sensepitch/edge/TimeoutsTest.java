@@ -5,6 +5,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpRequest;
@@ -186,6 +187,13 @@ public class TimeoutsTest {
       return promise;
     }
 
+    @Override
+    public Future<Channel> connect(EventLoop loop, Channel downstream, HttpRequest request) {
+      Promise<Channel> promise = loop.newPromise();
+      promise.setSuccess(upstreamChannel(downstream));
+      return promise;
+    }
+
   }
 
 }
@@ -0,0 +1,60 @@
+package org.sensepitch.edge;
+
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author Jens Wilke
+ */
+public class TlsSessionsTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  public void parseKeys() {
+    OpenSslSessionTicketKey[] keys = TlsSessions.parseTicketKeys(List.of("# current first", key(1), "", key(2)));
+    assertThat(keys).hasSize(2);
+    assertThat(keys[0].name()).containsOnly(1);
+    assertThat(keys[1].aesKey()).containsOnly(2);
+    assertThatThrownBy(() -> TlsSessions.parseTicketKeys(List.of("AAAA")))
+      .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> TlsSessions.parseTicketKeys(List.of("# nothing")))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void invalidKeyFileKeepsCurrentKeys() throws IOException {
+    Path file = dir.resolve("ticket.keys");
+    Files.write(file, List.of(key(1)));
+    TlsSessions sessions = new TlsSessions(TlsSessionConfig.builder().ticketKeyFile(file.toString()).build());
+    Files.write(file, List.of("broken"));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 1000));
+    sessions.checkTicketKeys();
+    Files.write(file, List.of(key(2), key(1)));
+    Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+    sessions.checkTicketKeys();
+    sessions.checkTicketKeys();
+    assertThat(sessions.ticketKeyReloadsCounter.labelValues("error").get()).isEqualTo(1.0);
+    assertThat(sessions.ticketKeyReloadsCounter.labelValues("success").get()).isEqualTo(1.0);
+  }
+
+  private static String key(int fill) {
+    byte[] bytes = new byte[OpenSslSessionTicketKey.TICKET_KEY_SIZE];
+    Arrays.fill(bytes, (byte) fill);
+    return Base64.getEncoder().encodeToString(bytes);
+  }
+
+}
@@ -0,0 +1,102 @@
+package org.sensepitch.edge;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.MultiThreadIoEventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.concurrent.Future;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author Jens Wilke
+ */
+public class WaitingRoomTest {
+
+  EventLoopGroup group = new MultiThreadIoEventLoopGroup(1, Transport.NIO.ioHandlerFactory());
+  UpstreamMetrics metrics = new UpstreamMetrics();
+  ProxyContext ctx = new ProxyContext() {
+    @Override
+    public EventLoopGroup eventLoopGroup() { return group; }
+    @Override
+    public Transport transport() { return Transport.NIO; }
+    @Override
+    public UpstreamMetrics upstreamMetrics() { return metrics; }
+  };
+  /** Embedded loop runs the scheduled timeouts only when time is advanced */
+  EmbeddedChannel channel = new EmbeddedChannel();
+
+  @AfterEach
+  public void tearDown() {
+    channel.close();
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void permitsAreHandedOverInArrivalOrder() {
+    WaitingRoom room = waitingRoom(WaitingRoomConfig.builder().build());
+    DefaultUpstream upstream = upstream(room);
+    assertThat(upstream.limiter().tryAcquire()).isTrue();
+    Future<DefaultUpstream> first = room.enter(channel.eventLoop(), upstream);
+    Future<DefaultUpstream> second = room.enter(channel.eventLoop(), upstream);
+    assertThat(room.length()).isEqualTo(2);
+    assertThat(first.isDone()).isFalse();
+    upstream.limiter().releaseWithoutSample();
+    assertThat(first.getNow()).isSameAs(upstream);
+    assertThat(second.isDone()).isFalse();
+    upstream.limiter().releaseWithoutSample();
+    assertThat(second.getNow()).isSameAs(upstream);
+    assertThat(room.length()).isZero();
+  }
+
+  @Test
+  public void fullQueueGetsHoldingPage() {
+    WaitingRoom room = waitingRoom(WaitingRoomConfig.builder().queueSize(1).retryAfterSeconds(7).build());
+    DefaultUpstream upstream = upstream(room);
+    assertThat(upstream.limiter().tryAcquire()).isTrue();
+    Future<DefaultUpstream> waiting = room.enter(channel.eventLoop(), upstream);
+    Future<DefaultUpstream> rejected = room.enter(channel.eventLoop(), upstream);
+    assertThat(waiting.isDone()).isFalse();
+    assertThat(rejected.cause()).isInstanceOf(WaitingRoom.WaitingRoomFullException.class);
+    FullHttpResponse response = ((WaitingRoom.WaitingRoomFullException) rejected.cause()).holdingPageResponse();
+    assertThat(response.status()).isEqualTo(HttpResponseStatus.SERVICE_UNAVAILABLE);
+    assertThat(response.headers().get(HttpHeaderNames.RETRY_AFTER)).isEqualTo("7");
+    assertThat(response.headers().getInt(HttpHeaderNames.CONTENT_LENGTH)).isEqualTo(response.content().readableBytes());
+    assertThat(room.length()).isEqualTo(1);
+  }
+
+  @Test
+  public void waitTimesOut() {
+    WaitingRoom room = waitingRoom(WaitingRoomConfig.builder().queueTimeoutMillis(100).build());
+    DefaultUpstream upstream = upstream(room);
+    assertThat(upstream.limiter().tryAcquire()).isTrue();
+    Future<DefaultUpstream> waiting = room.enter(channel.eventLoop(), upstream);
+    channel.advanceTimeBy(150, TimeUnit.MILLISECONDS);
+    channel.runScheduledPendingTasks();
+    assertThat(waiting.cause()).isInstanceOf(WaitingRoom.WaitingRoomFullException.class);
+    assertThat(room.length()).isZero();
+  }
+
+  private WaitingRoom waitingRoom(WaitingRoomConfig cfg) {
+    return new WaitingRoom("example.com", cfg, metrics);
+  }
+
+  /**
+   * Target with a single permit, no connection is opened
+   */
+  private DefaultUpstream upstream(WaitingRoom room) {
+    UpstreamConfig cfg = UpstreamConfig.builder()
+      .host("example.com")
+      .target("127.0.0.1:8080")
+      .concurrencyLimit(ConcurrencyLimitConfig.builder().initialLimit(1).minLimit(1).maxLimit(1).build())
+      .build();
+    return new DefaultUpstream(ctx, cfg, cfg.target(), 1, room);
+  }
+
+}